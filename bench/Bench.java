@@ -0,0 +1,132 @@
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.regex.Pattern;
+
+// Small dependency-free benchmark harness in the spirit of JMH: timed warmup
+// and measurement iterations, a blackhole for results, and per-operation
+// allocation and GC figures (the same numbers as JMH's -prof gc).
+final class Bench {
+    interface Op {
+        double run();
+    }
+
+    private record Case(String name, int opsPerCall, boolean allocationFree, Op op) {
+    }
+
+    private final List<Case> cases = new ArrayList<>();
+    private final com.sun.management.ThreadMXBean threads =
+            (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+    private int warmupIterations = 5;
+    private int iterations = 5;
+    private long iterationNanos = 500_000_000L;
+    private Pattern filter = Pattern.compile(".*");
+
+    private static volatile double sink;
+
+    // Options: -wi N (warmup iterations), -i N (iterations), -t MS (iteration time), then an optional name regex
+    Bench(String[] args) {
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "-wi" -> warmupIterations = Integer.parseInt(args[++i]);
+                case "-i" -> iterations = Integer.parseInt(args[++i]);
+                case "-t" -> iterationNanos = Long.parseLong(args[++i]) * 1_000_000L;
+                default -> filter = Pattern.compile(args[i]);
+            }
+        }
+    }
+
+    void add(String name, Op op) {
+        add(name, 1, op);
+    }
+
+    // opsPerCall > 1 for benchmarks where one call processes many items (e.g. batch rows)
+    void add(String name, int opsPerCall, Op op) {
+        cases.add(new Case(name, opsPerCall, false, op));
+    }
+
+    // A benchmark that must not allocate once warmed up; run() reports it as failed if it does
+    void addAllocationFree(String name, Op op) {
+        cases.add(new Case(name, 1, true, op));
+    }
+
+    // Returns the number of allocation-free benchmarks that allocated
+    int run() {
+        System.out.printf("%-40s %12s %10s %14s %8s %8s%n", "Benchmark", "ns/op", "error", "B/op", "gc.count", "gc.ms");
+        int failures = 0;
+        for (Case c : cases) {
+            if (filter.matcher(c.name).find() && !measure(c)) {
+                failures++;
+            }
+        }
+        return failures;
+    }
+
+    private boolean measure(Case c) {
+        for (int i = 0; i < warmupIterations; i++) {
+            iteration(c);
+        }
+        double[] nsPerOp = new double[iterations];
+        long gcCount = gcCount(), gcTime = gcTime();
+        long allocated = threads.getThreadAllocatedBytes(Thread.currentThread().getId());
+        long totalOps = 0;
+        for (int i = 0; i < iterations; i++) {
+            long start = System.nanoTime();
+            long ops = iteration(c);
+            nsPerOp[i] = (double) (System.nanoTime() - start) / ops;
+            totalOps += ops;
+        }
+        allocated = threads.getThreadAllocatedBytes(Thread.currentThread().getId()) - allocated;
+
+        double mean = 0;
+        for (double v : nsPerOp) mean += v;
+        mean /= iterations;
+        double variance = 0;
+        for (double v : nsPerOp) variance += (v - mean) * (v - mean);
+        double error = iterations > 1 ? Math.sqrt(variance / (iterations - 1)) : 0;
+
+        System.out.printf(Locale.ROOT, "%-40s %12.3f %10.3f %14.1f %8d %8d%n", c.name, mean, error,
+                (double) allocated / totalOps, gcCount() - gcCount, gcTime() - gcTime);
+        if (c.allocationFree && allocated > 0) {
+            System.out.printf("FAILED: %s allocated %d bytes over %d ops%n", c.name, allocated, totalOps);
+            return false;
+        }
+        return true;
+    }
+
+    // Runs the op in growing bursts until the iteration time is used; returns operations done
+    private long iteration(Case c) {
+        long deadline = System.nanoTime() + iterationNanos;
+        long calls = 0;
+        int burst = 1;
+        double acc = 0;
+        do {
+            for (int i = 0; i < burst; i++) {
+                acc += c.op.run();
+            }
+            calls += burst;
+            if (burst < 1 << 16) burst <<= 1;
+        } while (System.nanoTime() < deadline);
+        sink = acc;
+        return calls * c.opsPerCall;
+    }
+
+    private static long gcCount() {
+        long count = 0;
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            count += Math.max(0, gc.getCollectionCount());
+        }
+        return count;
+    }
+
+    private static long gcTime() {
+        long time = 0;
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            time += Math.max(0, gc.getCollectionTime());
+        }
+        return time;
+    }
+}
@@ -0,0 +1,283 @@
+import javax.swing.JList;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+
+// Benchmark suite for the parser, evaluator backends, preprocessing,
+// factorial and history rendering. Every run reports allocation per op, and
+// exits with status 1 if a benchmark declared allocation-free allocated at all.
+//
+//   javac -encoding UTF-8 -d out/bench src/*.java bench/*.java
+//   java -Djava.awt.headless=true -cp out/bench CalculatorBenchmarks [-wi N] [-i N] [-t MS] [regex]
+public class CalculatorBenchmarks {
+    static final String SHORT = "3 + 4 * 2 / (1 - 5)^2";
+    static final String DEEP = nested(64);
+    static final String LONG = sum(500);
+    static final String FORMULA = "x*0.5 + y*0.25 - x*y/3 + (x-1)*(y+1)*(x+y)";
+    static final String REDUNDANT = "2*π*x + 2*π*x^2 + (x*y+1)^3 / (x*y+1)^2 - x*1 + y/1";
+    static final String FUNCTIONS = "sin(x)^2 + cos(x)^2 + sqrt(abs(y)) + max(x, y) * ln(1 + y)";
+    static final String ELEMENTARY = "sin(x)^2 + cos(x)^2 + sqrt(y) * exp(x) / ln(1 + y)";
+    static final String NUMBER = "3.141592653589793";
+    static final int BATCH_ROWS = 1 << 20;
+
+    public static void main(String[] args) throws IOException {
+        Bench bench = new Bench(args);
+        double[] none = new double[0];
+
+        String[][] inputs = {{"short", SHORT}, {"deep", DEEP}, {"long", LONG}};
+        for (String[] input : inputs) {
+            String text = input[1];
+            bench.add("eval." + input[0], () -> ScientificCalculator.eval(text));
+        }
+        SymbolTable constants = SymbolTable.standard();
+        for (String[] input : inputs) {
+            // Unoptimized: the optimizer folds these constant inputs to a single instruction
+            Expression expression = Expression.compile(input[1], constants, false);
+            bench.add("compile." + input[0], () -> Expression.compile(input[1]).size());
+            bench.addAllocationFree("interpret." + input[0], () -> expression.interpret(none));
+        }
+        // Inputs that overflowed the old recursive descent parser; per-token cost should stay flat
+        for (int depth : new int[]{1_000, 100_000}) {
+            String text = nested(depth);
+            bench.add("parse.nested." + depth, () -> new ExpressionCompiler(text, constants).compile().size());
+        }
+        String negations = "-".repeat(1_000_000) + "1";
+        bench.add("parse.negations.1000000", () -> new ExpressionCompiler(negations, constants).compile().size());
+
+        Expression formula = Expression.compile(FORMULA, "x", "y");
+        CompiledFunction generated = formula.generate();
+        double[] vars = {1.5, 2.5};
+        bench.add("formula.interpret", () -> {
+            vars[0] += 1e-9;
+            return formula.interpret(vars);
+        });
+        bench.add("formula.generated", () -> {
+            vars[0] += 1e-9;
+            return generated.apply(vars);
+        });
+        // The same program over complex x and y; compare with formula.interpret
+        ComplexEvaluator complex = new ComplexEvaluator();
+        double[] varsIm = {0.5, -0.25};
+        bench.addAllocationFree("formula.complex", () -> {
+            vars[0] += 1e-9;
+            return complex.evaluate(formula, vars, varsIm);
+        });
+
+        SymbolTable xy = SymbolTable.standard();
+        xy.variable("x");
+        xy.variable("y");
+        Expression parsed = new ExpressionCompiler(REDUNDANT, xy).compile();
+        Expression optimized = ExpressionOptimizer.optimize(parsed);
+        System.out.println("optimizer: " + parsed.size() + " -> " + optimized.size() + " instructions");
+        bench.add("optimizer.before", () -> {
+            vars[0] += 1e-9;
+            return parsed.interpret(vars);
+        });
+        bench.add("optimizer.after", () -> {
+            vars[0] += 1e-9;
+            return optimized.interpret(vars);
+        });
+        bench.add("optimizer.compile", () -> ExpressionOptimizer.optimize(parsed).size());
+
+        SymbolTable xOnly = SymbolTable.standard();
+        int xSlot = xOnly.variable("x");
+        Solver cubic = new Solver(Expression.compile("x^3 - 2*x - 5", xOnly), xSlot);
+        bench.add("solve.newton", () -> cubic.solve(2));
+        bench.add("solve.brent", () -> cubic.solve(0, 3));
+        Solver periodic = new Solver(Expression.compile("(x%1 - 0.5)*(x - 0.3)", xOnly), xSlot);
+        bench.add("solve.roots.1024", () -> periodic.roots(0, 100, 1024).length);
+        bench.add("derivative", () -> Derivatives.derivative(formula, 0).size());
+        Integrator smooth = new Integrator(Expression.compile("1/(1 + x^2)", xOnly), xSlot);
+        bench.add("integrate.smooth", () -> smooth.integrate(-1000, 1000));
+        Integrator singular = new Integrator(Expression.compile("x^-0.5", xOnly), xSlot);
+        bench.add("integrate.singular", () -> singular.integrate(0, 1));
+        Integrator jumps = new Integrator(Expression.compile("(x*1000)%1", xOnly), xSlot);
+        bench.add("integrate.jumps.10000", () -> jumps.integrate(0, 10));
+
+        // A sawtooth with 100k jumps over the view, refined at every one of them
+        Expression saw = Expression.compile("(x*1000)%1", xOnly);
+        bench.add("plot.tile", () -> PlotPanel.Tile.sample(saw, xSlot, new double[1], -12, 100).samples);
+        PlotPanel plot = new PlotPanel(saw, xSlot);
+        plot.setView(0, 100, -0.5, 1.5);
+        BufferedImage image = new BufferedImage(1920, 1080, BufferedImage.TYPE_INT_RGB);
+        Graphics2D graphics = image.createGraphics();
+        plot.render(graphics, 1920, 1080, true);
+        System.out.println("plot: " + plot.visibleSamples() + " samples in view");
+        bench.add("plot.paint.1920x1080", () -> {
+            graphics.clearRect(0, 0, 1920, 1080);
+            plot.render(graphics, 1920, 1080, true);
+            return plot.visibleSamples();
+        });
+
+        // With -Dcalculator.metrics=true this costs two clock reads and a histogram update;
+        // compare cache.evaluate.short and compile.* with and without it for the overhead
+        bench.addAllocationFree("metrics.record", () -> {
+            Metrics.record(Metrics.Stage.EVALUATE, Metrics.start());
+            return 0;
+        });
+
+        ExpressionCache cache = new ExpressionCache(ExpressionCache.DEFAULT_CAPACITY, Expression::compile);
+        bench.addAllocationFree("cache.evaluate.short", () -> cache.get(SHORT).evaluate(none));
+        bench.addAllocationFree("evaluate.formula", () -> {
+            vars[0] += 1e-9;
+            return formula.evaluate(vars);
+        });
+
+        Expression functions = Expression.compile(FUNCTIONS, "x", "y");
+        CompiledFunction generatedFunctions = functions.generate();
+        bench.add("compile.functions", () -> Expression.compile(FUNCTIONS, "x", "y").size());
+        bench.addAllocationFree("evaluate.functions", () -> {
+            vars[0] += 1e-9;
+            return functions.evaluate(vars);
+        });
+        bench.addAllocationFree("functions.generated", () -> {
+            vars[0] += 1e-9;
+            return generatedFunctions.apply(vars);
+        });
+        // Functions with complex versions, over real and over complex x and y
+        Expression elementary = Expression.compile(ELEMENTARY, "x", "y");
+        bench.addAllocationFree("elementary.interpret", () -> {
+            vars[0] += 1e-9;
+            return elementary.interpret(vars);
+        });
+        bench.addAllocationFree("elementary.complex", () -> {
+            vars[0] += 1e-9;
+            return complex.evaluate(elementary, vars, varsIm);
+        });
+
+        Lexer lexer = new Lexer(LONG);
+        bench.addAllocationFree("lexer.long", () -> {
+            lexer.reset(LONG);
+            int tokens = 0;
+            while (lexer.next() != Lexer.END) tokens++;
+            return tokens;
+        });
+        // A keystroke in the middle of a long input, typed and deleted again: what
+        // the preview costs the EDT (compare lexer.long), and parsing its tokens
+        TokenList tokens = new TokenList();
+        tokens.set(LONG);
+        int middle = LONG.length() / 2;
+        String typed = LONG.substring(0, middle) + "7" + LONG.substring(middle);
+        bench.add("preview.keystroke.long", 2, () -> {
+            tokens.edit(typed, middle, 0, 1);
+            tokens.edit(LONG, middle, 1, 0);
+            return tokens.size();
+        });
+        TokenList snapshot = tokens.copy();
+        bench.add("preview.parse.long", () -> new ExpressionCompiler(snapshot, constants).compile().size());
+        bench.add("parse.long", () -> new ExpressionCompiler(LONG, constants).compile().size());
+        bench.addAllocationFree("number.scan", () -> Lexer.parseNumber(NUMBER, 0, NUMBER.length()));
+        bench.add("number.parseDouble", () -> Double.parseDouble(NUMBER.substring(0, NUMBER.length())));
+
+        double[] x = new double[BATCH_ROWS], y = new double[BATCH_ROWS], out = new double[BATCH_ROWS];
+        for (int i = 0; i < BATCH_ROWS; i++) {
+            x[i] = i * 1e-3;
+            y[i] = (BATCH_ROWS - i) * 1e-3;
+        }
+        double[][] columns = {x, y};
+        bench.add("batch.sequential (per row)", BATCH_ROWS, () -> {
+            BatchEvaluator.evaluateRange(formula, out, columns, 0, BATCH_ROWS);
+            return out[BATCH_ROWS / 2];
+        });
+        bench.add("batch.parallel (per row)", BATCH_ROWS, () -> {
+            BatchEvaluator.evaluate(formula, out, x, y);
+            return out[BATCH_ROWS / 2];
+        });
+
+        SymbolTable symbols = SymbolTable.standard();
+        bench.add("compile.constants", () -> Expression.compile("2*π*3 + e^2 - π/4", symbols).size());
+        for (int n : new int[]{20, 1_000, 100_000}) {
+            bench.add("factorial." + n, () -> Factorials.compute(n).bitLength());
+        }
+        bench.add("factorial.cached.100000", () -> Factorials.factorial(100_000).bitLength());
+        bench.add("logGamma", () -> Factorials.logGamma(12345.678));
+
+        // Redefining the first cell of a chain recomputes all of it; of a fan-out, one wide level.
+        // Giving it the value it already has stops the recompute right there.
+        Definitions chain = new Definitions(SymbolTable.standard());
+        Definitions fan = new Definitions(SymbolTable.standard());
+        chain.define("v0 = 1");
+        fan.define("v0 = 1");
+        for (int i = 1; i < 1_000; i++) {
+            chain.define("v" + i + " = v" + (i - 1) + " * 1.0001 + 1");
+            fan.define("v" + i + " = v0 * " + i + " + sqrt(" + i + ")");
+        }
+        String[] roots = {"v0 = 1", "v0 = 2"};
+        int[] round = {0};
+        bench.add("definitions.chain.1000", () -> chain.define(roots[++round[0] & 1]).changed().size());
+        bench.add("definitions.fan.1000", () -> fan.define(roots[++round[0] & 1]).changed().size());
+        bench.add("definitions.unchanged.1000", () -> chain.define(roots[0]).changed().size());
+
+        // Products and solves cost O(n^3); 1000 shows the blocked kernel and fork/join
+        for (int n : new int[]{256, 1_000}) {
+            Matrix a = Matrix.random(n, n), b = Matrix.random(n, n);
+            bench.add("matrix.multiply." + n, () -> a.multiply(b).get(0, 0));
+        }
+        Matrix system = Matrix.random(500, 500).add(Matrix.identity(500).scale(500));
+        Matrix rhs = Matrix.random(500, 1);
+        bench.add("matrix.solve.500", () -> system.solve(rhs).get(0, 0));
+        bench.add("matrix.determinant.500", () -> system.determinant());
+        MatrixEvaluator matrices = new MatrixEvaluator(SymbolTable.standard());
+        bench.add("matrix.evaluate.2x2", () -> matrices.evaluate("det([[1, 2], [3, 4]] * [[4, 3], [2, 1]])").get(0, 0));
+
+        // One pass over a mapped file of a million "index, value" lines, and the digest alone
+        Path column = Files.createTempFile("column", ".csv");
+        column.toFile().deleteOnExit();
+        try (BufferedWriter writer = Files.newBufferedWriter(column)) {
+            Random random = new Random(1);
+            for (int i = 0; i < 1_000_000; i++) writer.write(i + ", " + Math.exp(random.nextGaussian()) + "\n");
+        }
+        bench.add("statistics.file (per row)", 1_000_000, () -> {
+            try {
+                return StreamingStatistics.read(column, 1).quantile(0.5);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        });
+        double[] samples = new Random(2).doubles(1_000_000).toArray();
+        bench.add("statistics.digest (per value)", samples.length, () -> {
+            TDigest digest = new TDigest();
+            for (double sample : samples) digest.add(sample);
+            return digest.quantile(0.99);
+        });
+
+        // A full history of the given size, so every update also evicts the oldest entry
+        for (int size : new int[]{10, 1_000, 10_000, 1_000_000}) {
+            HistoryListModel history = new HistoryListModel(size);
+            JList<String> list = ScientificCalculator.createHistoryList(history);
+            for (int i = 0; i < size; i++) {
+                history.add(i + "+" + i + " = " + (2.0 * i));
+            }
+            String entry = "1+1 = 2.0";
+            bench.add("updateHistory." + size, () -> {
+                history.add(entry);
+                list.ensureIndexIsVisible(history.getSize() - 1);
+                return history.getSize();
+            });
+        }
+
+        if (bench.run() > 0) System.exit(1);
+    }
+
+    private static String nested(int depth) {
+        StringBuilder sb = new StringBuilder();
+        sb.append("(".repeat(depth)).append("1");
+        for (int i = 0; i < depth; i++) {
+            sb.append(i % 2 == 0 ? "+2)" : "*1.5)");
+        }
+        return sb.toString();
+    }
+
+    private static String sum(int terms) {
+        StringBuilder sb = new StringBuilder("0.5");
+        for (int i = 1; i < terms; i++) {
+            sb.append(i % 3 == 0 ? " - " : " + ").append(i).append(".25");
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,126 @@
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+// Load generator for EvaluationServer. Opens a number of connections, each
+// sending its requests in pipelined rounds and waiting for the replies,
+// then reports client-side throughput and latency and the server's own
+// STATS line. Without --port it starts a server in this process.
+//
+//   javac -encoding UTF-8 -d out/bench src/*.java bench/*.java
+//   java -cp out/bench LoadGenerator [--port N] [--connections N] [--requests N] [--pipeline N]
+public class LoadGenerator {
+    static final String[] REQUESTS = {
+            "3 + 4 * 2 / (1 - 5)^2",
+            "rate = 0.07",
+            "1000 * (1 + rate)^10",
+            "MS 2^10; M + 1",
+            "M+ 1; MR",
+            "(1 + 2) * (3 + 4) * (5 + 6) - 7 / 8 % 9",
+    };
+
+    public static void main(String[] args) throws Exception {
+        int port = -1, connections = 64, requests = 20_000, pipeline = 16;
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "--port" -> port = Integer.parseInt(args[++i]);
+                case "--connections" -> connections = Integer.parseInt(args[++i]);
+                case "--requests" -> requests = Integer.parseInt(args[++i]);
+                case "--pipeline" -> pipeline = Integer.parseInt(args[++i]);
+                default -> throw new IllegalArgumentException("Unknown option " + args[i]);
+            }
+        }
+
+        EvaluationServer server = null;
+        if (port < 0) {
+            server = new EvaluationServer(0);
+            port = server.port();
+            Thread accept = new Thread(server, "accept");
+            accept.setDaemon(true);
+            accept.start();
+        }
+
+        // One warmup pass so the server's evaluation paths are compiled
+        run(port, connections, requests / 4, pipeline, new LatencyHistogram());
+        LatencyHistogram latency = new LatencyHistogram();
+        long start = System.nanoTime();
+        long errors = run(port, connections, requests, pipeline, latency);
+        double seconds = (System.nanoTime() - start) / 1e9;
+
+        System.out.printf(Locale.ROOT, "%d connections x %d requests, pipeline %d: %.0f requests/s, %d errors%n",
+                connections, requests, pipeline, connections * (double) requests / seconds, errors);
+        System.out.printf(Locale.ROOT, "client latency per round: mean=%.1fus p50=%.1fus p99=%.1fus max=%.1fus%n",
+                latency.mean() / 1e3, latency.percentile(0.5) / 1e3, latency.percentile(0.99) / 1e3,
+                latency.max() / 1e3);
+        try (Socket socket = new Socket(InetAddress.getLoopbackAddress(), port)) {
+            socket.getOutputStream().write("STATS\n".getBytes(StandardCharsets.UTF_8));
+            System.out.println("server: " + new BufferedReader(new InputStreamReader(socket.getInputStream(),
+                    StandardCharsets.UTF_8)).readLine());
+        }
+        if (server != null) server.close();
+    }
+
+    // Returns the number of error replies
+    private static long run(int port, int connections, int requests, int pipeline, LatencyHistogram latency)
+            throws Exception {
+        List<Thread> threads = new ArrayList<>();
+        long[] errors = new long[connections];
+        Exception[] failure = new Exception[1];
+        for (int c = 0; c < connections; c++) {
+            int id = c;
+            Thread t = new Thread(() -> {
+                try {
+                    errors[id] = client(port, requests, pipeline, latency);
+                } catch (IOException e) {
+                    synchronized (failure) {
+                        failure[0] = e;
+                    }
+                }
+            }, "client-" + c);
+            t.start();
+            threads.add(t);
+        }
+        for (Thread t : threads) t.join();
+        if (failure[0] != null) throw failure[0];
+        long total = 0;
+        for (long e : errors) total += e;
+        return total;
+    }
+
+    private static long client(int port, int requests, int pipeline, LatencyHistogram latency) throws IOException {
+        long errors = 0;
+        try (Socket socket = new Socket(InetAddress.getLoopbackAddress(), port)) {
+            socket.setTcpNoDelay(true);
+            OutputStream out = socket.getOutputStream();
+            BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(),
+                    StandardCharsets.UTF_8));
+            StringBuilder round = new StringBuilder();
+            int sent = 0;
+            while (sent < requests) {
+                int n = Math.min(pipeline, requests - sent);
+                round.setLength(0);
+                for (int i = 0; i < n; i++) {
+                    round.append(REQUESTS[(sent + i) % REQUESTS.length]).append('\n');
+                }
+                long start = System.nanoTime();
+                out.write(round.toString().getBytes(StandardCharsets.UTF_8));
+                for (int i = 0; i < n; i++) {
+                    String reply = in.readLine();
+                    if (reply == null) throw new IOException("Server closed the connection");
+                    if (reply.contains("error")) errors++;
+                }
+                latency.record(System.nanoTime() - start);
+                sent += n;
+            }
+            out.write("QUIT\n".getBytes(StandardCharsets.UTF_8));
+        }
+        return errors;
+    }
+}
@@ -0,0 +1,116 @@
+import javax.swing.SwingUtilities;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.Consumer;
+
+// Runs calculations off the event dispatch thread and publishes results back
+// on it. Only the latest task may publish: submitting a new one or cancelling
+// drops the previous result, and a task that outlives its budget is cancelled.
+// All public methods must be called on the EDT.
+public final class AsyncEvaluator {
+    public static final long DEFAULT_BUDGET_MILLIS = Long.getLong("calculator.eval.budgetMs", 5000);
+    // A budget for tasks that run until they finish or are cancelled
+    public static final long NO_BUDGET = Long.MAX_VALUE;
+
+    private final ExecutorService workers = Executors.newCachedThreadPool(daemon("calculator-worker"));
+    private final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(daemon("calculator-timer"));
+    private final Consumer<Boolean> busyListener;
+    private long budgetMillis = DEFAULT_BUDGET_MILLIS;
+
+    private long generation;
+    private Future<?> current;
+    private ScheduledFuture<?> deadline;
+
+    public AsyncEvaluator(Consumer<Boolean> busyListener) {
+        this.busyListener = busyListener;
+    }
+
+    public <T> void submit(Callable<T> task, Consumer<T> onResult, Consumer<Exception> onError) {
+        submit(task, onResult, onError, budgetMillis);
+    }
+
+    // Like submit, with a budget for this task alone in place of the shared one
+    public <T> void submit(Callable<T> task, Consumer<T> onResult, Consumer<Exception> onError, long budgetMillis) {
+        if (budgetMillis <= 0) throw new IllegalArgumentException("Budget must be positive: " + budgetMillis);
+        cancelPending();
+        long id = ++generation;
+        current = workers.submit(() -> {
+            try {
+                T result = task.call();
+                if (!Thread.interrupted()) publish(id, () -> onResult.accept(result));
+            } catch (InterruptedException e) {
+                // Cancelled; nothing to publish
+            } catch (Exception e) {
+                if (!Thread.interrupted()) publish(id, () -> onError.accept(e));
+            } catch (StackOverflowError e) {
+                publish(id, () -> onError.accept(new IllegalArgumentException("Expression nested too deeply")));
+            } catch (OutOfMemoryError e) {
+                publish(id, () -> onError.accept(new IllegalStateException("Not enough memory for this calculation", e)));
+            } catch (Throwable e) {
+                // The Future would keep any other error to itself, leaving the task busy until its deadline
+                publish(id, () -> onError.accept(new IllegalStateException(e.toString(), e)));
+            }
+        });
+        deadline = budgetMillis == NO_BUDGET ? null : timer.schedule(() -> SwingUtilities.invokeLater(() -> {
+            if (id == generation && current != null) {
+                cancel();
+                onError.accept(new TimeoutException("Calculation took longer than " + budgetMillis + " ms"));
+            }
+        }), budgetMillis, TimeUnit.MILLISECONDS);
+        busyListener.accept(true);
+    }
+
+    public void cancel() {
+        if (current != null) {
+            cancelPending();
+            generation++;
+            busyListener.accept(false);
+        }
+    }
+
+    public boolean isBusy() {
+        return current != null;
+    }
+
+    public void setBudgetMillis(long budgetMillis) {
+        if (budgetMillis <= 0) throw new IllegalArgumentException("Budget must be positive: " + budgetMillis);
+        this.budgetMillis = budgetMillis;
+    }
+
+    public long getBudgetMillis() {
+        return budgetMillis;
+    }
+
+    private void cancelPending() {
+        if (current != null) {
+            current.cancel(true);
+            if (deadline != null) deadline.cancel(false);
+            current = null;
+        }
+    }
+
+    private void publish(long id, Runnable action) {
+        SwingUtilities.invokeLater(() -> {
+            if (id != generation || current == null) return; // stale or cancelled
+            if (deadline != null) deadline.cancel(false);
+            current = null;
+            busyListener.accept(false);
+            action.run();
+        });
+    }
+
+    private static ThreadFactory daemon(String name) {
+        return r -> {
+            Thread t = new Thread(r, name);
+            t.setDaemon(true);
+            return t;
+        };
+    }
+}
@@ -0,0 +1,144 @@
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+// Evaluates one expression over columns of inputs. The postfix program is
+// run one instruction at a time over a chunk of rows, so every step is a
+// plain counted loop over double[] that the JIT can unroll and vectorize.
+public final class BatchEvaluator {
+    static final int CHUNK = 1024;
+    static final int PARALLEL_THRESHOLD = Integer.getInteger("calculator.batch.parallelThreshold", 1 << 15);
+
+    private BatchEvaluator() {
+    }
+
+    // out[row] = expression(columns[0][row], columns[1][row], ...)
+    public static void evaluate(Expression expression, double[] out, double[]... columns) {
+        int variables = expression.variables().length;
+        if (columns.length < variables) {
+            throw new IllegalArgumentException("Expected " + variables + " columns, got " + columns.length);
+        }
+        for (double[] column : columns) {
+            if (column.length < out.length) {
+                throw new IllegalArgumentException("Column shorter than output: " + column.length + " < " + out.length);
+            }
+        }
+        if (out.length >= PARALLEL_THRESHOLD && ForkJoinPool.getCommonPoolParallelism() > 1) {
+            int grain = Math.max(PARALLEL_THRESHOLD / 4, out.length / (ForkJoinPool.getCommonPoolParallelism() * 4));
+            ForkJoinPool.commonPool().invoke(new RangeTask(expression, out, columns, 0, out.length, grain));
+        } else {
+            evaluateRange(expression, out, columns, 0, out.length);
+        }
+    }
+
+    static void evaluateRange(Expression expression, double[] out, double[][] columns, int from, int to) {
+        byte[] ops = expression.ops();
+        int[] args = expression.args();
+        double[] constants = expression.constants();
+        double[][] registers = new double[Math.max(1, expression.maxStack())][CHUNK];
+        double[][] temps = new double[expression.temps()][CHUNK];
+
+        for (int start = from; start < to; start += CHUNK) {
+            int length = Math.min(CHUNK, to - start);
+            int sp = -1;
+            for (int pc = 0; pc < ops.length; pc++) {
+                switch (ops[pc]) {
+                    case Expression.CONST -> Arrays.fill(registers[++sp], 0, length, constants[args[pc]]);
+                    case Expression.VAR -> System.arraycopy(columns[args[pc]], start, registers[++sp], 0, length);
+                    case Expression.NEG -> negate(registers[sp], length);
+                    case Expression.ADD -> { sp--; add(registers[sp], registers[sp + 1], length); }
+                    case Expression.SUB -> { sp--; subtract(registers[sp], registers[sp + 1], length); }
+                    case Expression.MUL -> { sp--; multiply(registers[sp], registers[sp + 1], length); }
+                    case Expression.DIV -> { sp--; divide(registers[sp], registers[sp + 1], length); }
+                    case Expression.MOD -> { sp--; remainder(registers[sp], registers[sp + 1], length); }
+                    case Expression.POW -> { sp--; power(registers[sp], registers[sp + 1], length); }
+                    case Expression.STORE -> System.arraycopy(registers[sp], 0, temps[args[pc]], 0, length);
+                    case Expression.LOAD -> System.arraycopy(temps[args[pc]], 0, registers[++sp], 0, length);
+                    case Expression.CALL -> {
+                        MathFunction function = FunctionRegistry.get(args[pc]);
+                        switch (function.arity()) {
+                            case 0 -> fill(function, registers[++sp], length);
+                            case 1 -> apply(function, registers[sp], length);
+                            default -> { sp--; apply(function, registers[sp], registers[sp + 1], length); }
+                        }
+                    }
+                    default -> throw new IllegalStateException("Bad opcode " + ops[pc]);
+                }
+            }
+            System.arraycopy(registers[0], 0, out, start, length);
+        }
+    }
+
+    // Kernels are kept separate and minimal so each compiles to one vectorizable loop
+
+    private static void negate(double[] a, int length) {
+        for (int i = 0; i < length; i++) a[i] = -a[i];
+    }
+
+    private static void add(double[] a, double[] b, int length) {
+        for (int i = 0; i < length; i++) a[i] += b[i];
+    }
+
+    private static void subtract(double[] a, double[] b, int length) {
+        for (int i = 0; i < length; i++) a[i] -= b[i];
+    }
+
+    private static void multiply(double[] a, double[] b, int length) {
+        for (int i = 0; i < length; i++) a[i] *= b[i];
+    }
+
+    private static void divide(double[] a, double[] b, int length) {
+        for (int i = 0; i < length; i++) a[i] /= b[i];
+    }
+
+    private static void remainder(double[] a, double[] b, int length) {
+        for (int i = 0; i < length; i++) a[i] %= b[i];
+    }
+
+    private static void power(double[] a, double[] b, int length) {
+        for (int i = 0; i < length; i++) a[i] = Math.pow(a[i], b[i]);
+    }
+
+    // Impure functions are called once per row, like the interpreter would
+    private static void fill(MathFunction f, double[] a, int length) {
+        for (int i = 0; i < length; i++) a[i] = f.apply();
+    }
+
+    private static void apply(MathFunction f, double[] a, int length) {
+        for (int i = 0; i < length; i++) a[i] = f.apply(a[i]);
+    }
+
+    private static void apply(MathFunction f, double[] a, double[] b, int length) {
+        for (int i = 0; i < length; i++) a[i] = f.apply(a[i], b[i]);
+    }
+
+    @SuppressWarnings("serial")
+    private static final class RangeTask extends RecursiveAction {
+        private final Expression expression;
+        private final double[] out;
+        private final double[][] columns;
+        private final int from, to, grain;
+
+        RangeTask(Expression expression, double[] out, double[][] columns, int from, int to, int grain) {
+            this.expression = expression;
+            this.out = out;
+            this.columns = columns;
+            this.from = from;
+            this.to = to;
+            this.grain = grain;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from <= grain) {
+                evaluateRange(expression, out, columns, from, to);
+                return;
+            }
+            // Split on a chunk boundary so no chunk straddles two tasks
+            int mid = from + ((to - from) / 2 / CHUNK) * CHUNK;
+            if (mid == from) mid = from + CHUNK;
+            invokeAll(new RangeTask(expression, out, columns, from, mid, grain),
+                    new RangeTask(expression, out, columns, mid, to, grain));
+        }
+    }
+}
@@ -0,0 +1,4 @@
+// Entry point implemented by classes generated from an Expression
+public interface CompiledFunction {
+    double apply(double[] vars);
+}
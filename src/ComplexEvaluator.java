@@ -0,0 +1,295 @@
+// Evaluates compiled expressions over complex numbers. The program is the
+// one the scalar compiler produces; this interpreter runs it on paired
+// stacks of real and imaginary parts, so no operation allocates. A value
+// is bound to each slot by a pair of arrays, and i is just a slot bound to
+// 0 + 1i (see SymbolTable.withParameters).
+//
+// Compile with the optimizer off: it folds constant calls with real
+// arithmetic, which would turn sqrt(-1) into NaN before this sees it.
+//
+// Built-in functions with complex versions are the elementary ones below.
+// Any other function is applied to real arguments as usual and fails on
+// complex ones, or where its real version has no value.
+//
+// One instance per thread: the stacks are reused between evaluations.
+public final class ComplexEvaluator {
+    // What each FunctionRegistry function does here
+    private static final byte REAL = 0, SQRT = 1, LN = 2, LOG = 3, EXP = 4, SIN = 5, COS = 6, TAN = 7,
+            SINH = 8, COSH = 9, TANH = 10, ABS = 11, POWER = 12;
+    private static final byte[] KINDS = new byte[FunctionRegistry.functions().size()];
+    private static final double LN_10 = Math.log(10);
+
+    static {
+        String[] names = {null, "sqrt", "ln", "log", "exp", "sin", "cos", "tan", "sinh", "cosh", "tanh", "abs", "pow"};
+        for (byte kind = 1; kind < names.length; kind++) {
+            KINDS[FunctionRegistry.find(names[kind], 0, names[kind].length())] = kind;
+        }
+    }
+
+    private double[] re = new double[32], im = new double[32];
+    private double imaginary;
+
+    // Real part of the expression with slot s bound to valuesRe[s] + valuesIm[s] i;
+    // the imaginary part is left in imaginary()
+    public double evaluate(Expression expression, double[] valuesRe, double[] valuesIm) {
+        byte[] ops = expression.ops();
+        int[] args = expression.args();
+        double[] constants = expression.constants();
+        int maxStack = expression.maxStack();
+        if (re.length < maxStack + expression.temps()) {
+            re = new double[maxStack + expression.temps()];
+            im = new double[re.length];
+        }
+        double[] re = this.re, im = this.im;
+        int sp = -1;
+        for (int pc = 0; pc < ops.length; pc++) {
+            switch (ops[pc]) {
+                case Expression.CONST -> {
+                    re[++sp] = constants[args[pc]];
+                    im[sp] = 0;
+                }
+                case Expression.VAR -> {
+                    re[++sp] = valuesRe[args[pc]];
+                    im[sp] = valuesIm[args[pc]];
+                }
+                case Expression.NEG -> {
+                    re[sp] = -re[sp];
+                    // 0 - rather than -, so -2 stays on the upper side of the branch cut and ln(-2) = ln 2 + πi
+                    im[sp] = 0 - im[sp];
+                }
+                case Expression.ADD -> {
+                    sp--;
+                    re[sp] += re[sp + 1];
+                    im[sp] += im[sp + 1];
+                }
+                case Expression.SUB -> {
+                    sp--;
+                    re[sp] -= re[sp + 1];
+                    im[sp] -= im[sp + 1];
+                }
+                case Expression.MUL -> {
+                    sp--;
+                    multiply(re, im, sp, re[sp + 1], im[sp + 1]);
+                }
+                case Expression.DIV -> {
+                    sp--;
+                    divide(re, im, sp, re[sp + 1], im[sp + 1]);
+                }
+                case Expression.MOD -> {
+                    sp--;
+                    if (im[sp] != 0 || im[sp + 1] != 0) throw new ArithmeticException("% needs real operands");
+                    re[sp] %= re[sp + 1];
+                }
+                case Expression.POW -> {
+                    sp--;
+                    power(re, im, sp, re[sp + 1], im[sp + 1]);
+                }
+                case Expression.STORE -> {
+                    re[maxStack + args[pc]] = re[sp];
+                    im[maxStack + args[pc]] = im[sp];
+                }
+                case Expression.LOAD -> {
+                    re[++sp] = re[maxStack + args[pc]];
+                    im[sp] = im[maxStack + args[pc]];
+                }
+                case Expression.CALL -> sp = call(args[pc], re, im, sp);
+                default -> throw new IllegalStateException("Bad opcode " + ops[pc]);
+            }
+        }
+        imaginary = im[0];
+        return re[0];
+    }
+
+    // Imaginary part of the last result
+    public double imaginary() {
+        return imaginary;
+    }
+
+    private static int call(int index, double[] re, double[] im, int sp) {
+        MathFunction function = FunctionRegistry.get(index);
+        double a = sp >= 0 ? re[sp] : 0, b = sp >= 0 ? im[sp] : 0;
+        switch (KINDS[index]) {
+            case SQRT -> {
+                // Halves the argument angle without cancellation: the larger part comes from |z| + |a|
+                if (b == 0 && a >= 0) {
+                    re[sp] = Math.sqrt(a);
+                } else {
+                    double t = Math.sqrt((modulus(a, b) + Math.abs(a)) / 2);
+                    re[sp] = a >= 0 ? t : Math.abs(b) / (2 * t);
+                    im[sp] = a >= 0 ? b / (2 * t) : Math.copySign(t, b);
+                }
+            }
+            case LN -> {
+                re[sp] = b == 0 && a >= 0 ? Math.log(a) : Math.log(modulus(a, b));
+                im[sp] = b == 0 && a >= 0 ? 0 : Math.atan2(b, a);
+            }
+            case LOG -> {
+                re[sp] = b == 0 && a >= 0 ? Math.log10(a) : Math.log(modulus(a, b)) / LN_10;
+                im[sp] = b == 0 && a >= 0 ? 0 : Math.atan2(b, a) / LN_10;
+            }
+            case EXP -> exp(re, im, sp, a, b);
+            case SIN -> {
+                re[sp] = b == 0 ? Math.sin(a) : Math.sin(a) * Math.cosh(b);
+                im[sp] = b == 0 ? 0 : Math.cos(a) * Math.sinh(b);
+            }
+            case COS -> {
+                re[sp] = b == 0 ? Math.cos(a) : Math.cos(a) * Math.cosh(b);
+                im[sp] = b == 0 ? 0 : -Math.sin(a) * Math.sinh(b);
+            }
+            case TAN -> {
+                if (b == 0) {
+                    re[sp] = Math.tan(a);
+                } else {
+                    // (sin 2a + i sinh 2b) / (cos 2a + cosh 2b), which tends to ±i once cosh overflows
+                    double d = Math.cos(2 * a) + Math.cosh(2 * b);
+                    re[sp] = Double.isInfinite(d) ? 0 : Math.sin(2 * a) / d;
+                    im[sp] = Double.isInfinite(d) ? Math.signum(b) : Math.sinh(2 * b) / d;
+                }
+            }
+            case SINH -> {
+                re[sp] = b == 0 ? Math.sinh(a) : Math.sinh(a) * Math.cos(b);
+                im[sp] = b == 0 ? 0 : Math.cosh(a) * Math.sin(b);
+            }
+            case COSH -> {
+                re[sp] = b == 0 ? Math.cosh(a) : Math.cosh(a) * Math.cos(b);
+                im[sp] = b == 0 ? 0 : Math.sinh(a) * Math.sin(b);
+            }
+            case TANH -> {
+                if (b == 0) {
+                    re[sp] = Math.tanh(a);
+                } else {
+                    double d = Math.cosh(2 * a) + Math.cos(2 * b);
+                    re[sp] = Double.isInfinite(d) ? Math.signum(a) : Math.sinh(2 * a) / d;
+                    im[sp] = Double.isInfinite(d) ? 0 : Math.sin(2 * b) / d;
+                }
+            }
+            case ABS -> {
+                re[sp] = modulus(a, b);
+                im[sp] = 0;
+            }
+            case POWER -> {
+                power(re, im, sp - 1, a, b);
+                return sp - 1;
+            }
+            default -> {
+                // Real functions of real arguments only
+                int arity = function.arity();
+                for (int k = 0; k < arity; k++) {
+                    if (im[sp - k] != 0) {
+                        throw new ArithmeticException(function.name() + " is not defined for complex arguments");
+                    }
+                }
+                double value = switch (arity) {
+                    case 0 -> function.apply();
+                    case 1 -> function.apply(a);
+                    default -> function.apply(re[sp - 1], a);
+                };
+                if (Double.isNaN(value)) throw new ArithmeticException(function.name() + " has no value here");
+                sp -= arity - 1;
+                re[sp] = value;
+                im[sp] = 0;
+            }
+        }
+        return sp;
+    }
+
+    // |a + bi|; Math.hypot only where squaring would overflow or underflow, as it is several times slower
+    private static double modulus(double a, double b) {
+        double s = a * a + b * b;
+        return s > Double.MIN_NORMAL && s < Double.MAX_VALUE ? Math.sqrt(s) : Math.hypot(a, b);
+    }
+
+    private static void multiply(double[] re, double[] im, int sp, double c, double d) {
+        double a = re[sp], b = im[sp];
+        if (b == 0 && d == 0) {
+            re[sp] = a * c;
+        } else {
+            re[sp] = a * c - b * d;
+            im[sp] = a * d + b * c;
+        }
+    }
+
+    // Smith's algorithm: divides through by the larger part of the divisor so nothing overflows early
+    private static void divide(double[] re, double[] im, int sp, double c, double d) {
+        double a = re[sp], b = im[sp];
+        if (d == 0) {
+            // A zero part stays 0 rather than 0 / 0, so 1/0 and i/0 are only too large
+            re[sp] = a == 0 && b != 0 ? 0 : a / c;
+            if (b != 0) im[sp] = b / c;
+        } else if (Math.abs(c) >= Math.abs(d)) {
+            double r = d / c, t = c + d * r;
+            re[sp] = (a + b * r) / t;
+            im[sp] = (b - a * r) / t;
+        } else {
+            double r = c / d, t = c * r + d;
+            re[sp] = (a * r + b) / t;
+            im[sp] = (b * r - a) / t;
+        }
+    }
+
+    private static void exp(double[] re, double[] im, int sp, double a, double b) {
+        double scale = Math.exp(a);
+        re[sp] = b == 0 ? scale : scale * Math.cos(b);
+        im[sp] = b == 0 ? 0 : scale * Math.sin(b);
+    }
+
+    // z^w as exp(w ln z), except that real powers of non-negative reals stay
+    // Math.pow and whole powers up to 64 multiply out, so i^2 is exactly -1
+    private static void power(double[] re, double[] im, int sp, double c, double d) {
+        double a = re[sp], b = im[sp];
+        if (b == 0 && d == 0 && (a >= 0 || c == Math.rint(c))) {
+            re[sp] = Math.pow(a, c);
+            return;
+        }
+        if (d == 0 && c == Math.rint(c) && Math.abs(c) <= 64) {
+            double pr = 1, pi = 0, br = a, bi = b;
+            for (long n = (long) Math.abs(c); n > 0; n >>= 1) {
+                if ((n & 1) != 0) {
+                    double t = pr * br - pi * bi;
+                    pi = pr * bi + pi * br;
+                    pr = t;
+                }
+                double t = br * br - bi * bi;
+                bi = 2 * br * bi;
+                br = t;
+            }
+            re[sp] = pr;
+            im[sp] = pi;
+            if (c < 0) {
+                re[sp] = 1;
+                im[sp] = 0;
+                divide(re, im, sp, pr, pi);
+            }
+            return;
+        }
+        if (a == 0 && b == 0) {
+            // 0^w is 0 for Re w > 0 and has no value otherwise
+            re[sp] = c > 0 ? 0 : Double.NaN;
+            im[sp] = c > 0 ? 0 : Double.NaN;
+            return;
+        }
+        double lnRe = Math.log(modulus(a, b)), lnIm = Math.atan2(b, a);
+        exp(re, im, sp, lnRe * c - lnIm * d, lnRe * d + lnIm * c);
+    }
+
+    // a + bi as "a + bi", or in polar form as "r ∠ θ" with θ in radians. A
+    // part smaller than 1e-15 of the other is shown as 0, so e^(iπ) reads -1.
+    public static String format(double re, double im, boolean polar) {
+        if (polar) return Math.hypot(re, im) + " ∠ " + Math.atan2(im, re);
+        return rectangular(re, im, "i");
+    }
+
+    // a + bi as an expression that evaluates back to it, "a + b*i"
+    public static String toExpression(double re, double im) {
+        return rectangular(re, im, "*i");
+    }
+
+    private static String rectangular(double re, double im, String unit) {
+        if (Math.abs(im) < Math.abs(re) * 1e-15) im = 0;
+        if (Math.abs(re) < Math.abs(im) * 1e-15) re = 0;
+        if (im == 0) return String.valueOf(re);
+        String imaginary = Math.abs(im) == 1 ? "i" : Math.abs(im) + unit;
+        if (re == 0) return im < 0 ? "-" + imaginary : imaginary;
+        return re + (im < 0 ? " - " : " + ") + imaginary;
+    }
+}
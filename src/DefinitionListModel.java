@@ -0,0 +1,47 @@
+import javax.swing.AbstractListModel;
+
+// List model over Definitions, one row per definition. Each define fires an
+// insertion for a new definition and a change for every row whose text or
+// value changed, so the list repaints just those rows; rows are rendered
+// from text kept in the definitions, never by evaluating anything.
+@SuppressWarnings("serial")
+public final class DefinitionListModel extends AbstractListModel<String> {
+    private final Definitions definitions;
+
+    public DefinitionListModel(Definitions definitions) {
+        this.definitions = definitions;
+    }
+
+    public Definitions.Update define(String line) {
+        Definitions.Update update = definitions.define(line);
+        for (Definitions.Definition definition : update.changed()) {
+            int row = definition.index();
+            if (update.added() && definition == update.definition()) {
+                fireIntervalAdded(this, row, row);
+            } else {
+                fireContentsChanged(this, row, row);
+            }
+        }
+        return update;
+    }
+
+    public void setDegrees(boolean degrees) {
+        for (Definitions.Definition definition : definitions.setDegrees(degrees)) {
+            fireContentsChanged(this, definition.index(), definition.index());
+        }
+    }
+
+    public Definitions definitions() {
+        return definitions;
+    }
+
+    @Override
+    public int getSize() {
+        return definitions.size();
+    }
+
+    @Override
+    public String getElementAt(int index) {
+        return definitions.all().get(index).toString();
+    }
+}
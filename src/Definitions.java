@@ -0,0 +1,420 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+// Spreadsheet-style definitions over a SymbolTable: values such as
+// rate = 0.07 and functions such as f(x) = x*(1+rate)^n. Each is compiled
+// once. A value lives in a variable slot, so any program that reads it stays
+// valid when it changes; a function is inlined into its callers when they
+// are compiled. Definitions may only refer to constants and to earlier
+// definitions, which makes them a DAG. Redefining one recomputes just what
+// depends on it, in topological order one level at a time, evaluating large
+// levels in parallel; the recompute stops at any value that comes out the
+// same, so definitions whose inputs all kept their values are not visited.
+// Trig functions in definitions follow the angle unit set by setDegrees,
+// as they do in typed input (see SymbolTable.inDegrees).
+//
+// Not thread safe: define() must not run concurrently with anything that
+// compiles against or reads the symbol table.
+public final class Definitions {
+    // Definitions in one level of the graph before they are evaluated in parallel
+    static final int PARALLEL_THRESHOLD = Integer.getInteger("calculator.definitions.parallelThreshold", 256);
+
+    private final SymbolTable symbols;
+    private final Map<String, Definition> byName = new HashMap<>();
+    private final List<Definition> definitions = new ArrayList<>();
+    private Definition[] bySlot = new Definition[8];
+    private boolean degrees;
+
+    public Definitions(SymbolTable symbols) {
+        this.symbols = symbols;
+    }
+
+    // Result of define(): the one defined, then the values that changed
+    // because of it, in the order they were recomputed. recompiled
+    // is set when a function changed, which leaves every program that
+    // inlined it out of date.
+    public record Update(Definition definition, boolean added, List<Definition> changed, boolean recompiled) {
+    }
+
+    // Whether line has the form name = expression or name(a, b) = expression
+    public static boolean isDefinition(String line) {
+        int equals = line.indexOf('=');
+        if (equals < 0) return false;
+        String head = line.substring(0, equals).trim();
+        int open = head.indexOf('(');
+        return isName(open < 0 ? head : head.substring(0, open).trim()) && (open < 0 || head.endsWith(")"));
+    }
+
+    public Update define(String line) {
+        int equals = line.indexOf('=');
+        if (equals < 0) throw new IllegalArgumentException("Expected name = expression");
+        String head = line.substring(0, equals).trim();
+        String text = line.substring(equals + 1).trim();
+        String name = head;
+        String[] parameters = null;
+        int open = head.indexOf('(');
+        if (open >= 0) {
+            if (!head.endsWith(")")) throw new IllegalArgumentException("Missing ')' in " + head);
+            name = head.substring(0, open).trim();
+            String list = head.substring(open + 1, head.length() - 1).trim();
+            parameters = list.isEmpty() ? new String[0] : list.split(",");
+            for (int i = 0; i < parameters.length; i++) {
+                parameters[i] = parameters[i].trim();
+                if (!isName(parameters[i])) throw new IllegalArgumentException("Invalid parameter name: " + parameters[i]);
+            }
+        }
+        if (!isName(name)) throw new IllegalArgumentException("Invalid name: " + name);
+
+        Definition existing = byName.get(name);
+        boolean function = parameters != null;
+        if (existing != null && existing.isFunction() != function) {
+            throw new IllegalArgumentException(name + " is already " + (function ? "a value" : "a function"));
+        }
+        if (existing == null) {
+            if (function && FunctionRegistry.lookup(name) != null) {
+                throw new IllegalArgumentException(name + " is a built-in function");
+            }
+            if (!function && symbols.find(name, 0, name.length()) >= 0) {
+                throw new IllegalArgumentException(name + " is already in use");
+            }
+        }
+
+        List<Definition> dependencies = dependencies(text, parameters);
+        if (existing != null) {
+            checkCycle(existing, dependencies);
+            // Callers are recompiled with the new body and must still match it
+            if (function && existing.parameters.length != parameters.length && !existing.dependents.isEmpty()) {
+                throw new IllegalArgumentException(name + " is called with " + existing.parameters.length
+                        + " arguments by " + existing.dependents.get(0).name);
+            }
+        }
+        Expression expression = compile(text, parameters);
+
+        Definition definition = existing;
+        if (definition == null) {
+            int slot = -1;
+            if (!function) {
+                slot = symbols.variable(name);
+                if (slot >= bySlot.length) bySlot = Arrays.copyOf(bySlot, Math.max(slot + 1, bySlot.length * 2));
+            }
+            definition = new Definition(name, definitions.size(), slot);
+            if (slot >= 0) bySlot[slot] = definition;
+            definitions.add(definition);
+            byName.put(name, definition);
+        } else {
+            for (Definition dependency : definition.dependencies) dependency.dependents.remove(definition);
+        }
+        definition.parameters = parameters;
+        definition.text = text;
+        definition.expression = expression;
+        definition.dependencies = dependencies;
+        for (Definition dependency : dependencies) dependency.dependents.add(definition);
+        updateHeights(definition);
+        if (function) symbols.defineFunction(name, parameters.length, expression);
+
+        List<Definition> changed = recompute(definition);
+        return new Update(definition, existing == null, Collections.unmodifiableList(changed),
+                function && existing != null);
+    }
+
+    // Compiles every definition again with trig functions in degrees or
+    // radians, and returns the values that changed. Each is compiled after
+    // everything it depends on, so callers inline the new function bodies.
+    public List<Definition> setDegrees(boolean degrees) {
+        if (degrees == this.degrees) return List.of();
+        this.degrees = degrees;
+        List<Definition> order = new ArrayList<>(definitions);
+        order.sort(Comparator.comparingInt(d -> d.height));
+        List<Definition> changed = new ArrayList<>();
+        for (Definition definition : order) {
+            definition.expression = compile(definition.text, definition.parameters);
+            if (definition.isFunction()) {
+                symbols.defineFunction(definition.name, definition.parameters.length, definition.expression);
+                continue;
+            }
+            double before = definition.value;
+            definition.value = definition.expression.evaluate(symbols.values());
+            symbols.set(definition.slot, definition.value);
+            if (Double.doubleToRawLongBits(definition.value) != Double.doubleToRawLongBits(before)) {
+                definition.display = null;
+                changed.add(definition);
+            }
+        }
+        return changed;
+    }
+
+    public Definition get(String name) {
+        return byName.get(name);
+    }
+
+    // Every definition, in the order they were first made
+    public List<Definition> all() {
+        return Collections.unmodifiableList(definitions);
+    }
+
+    public int size() {
+        return definitions.size();
+    }
+
+    private Expression compile(String text, String[] parameters) {
+        // Slots are the same in the copy inDegrees makes
+        SymbolTable table = degrees ? symbols.inDegrees() : symbols;
+        if (parameters == null) {
+            Expression expression = Expression.compile(text, table);
+            checkReferences(expression, 0);
+            return expression;
+        }
+        Expression body = Expression.compile(text, table.withParameters(parameters));
+        checkReferences(body, parameters.length);
+        return body;
+    }
+
+    // Variables other than definitions (M, for one) are not part of the graph,
+    // so nothing would recompute a definition when they change
+    private void checkReferences(Expression expression, int parameters) {
+        byte[] ops = expression.ops();
+        int[] args = expression.args();
+        for (int pc = 0; pc < ops.length; pc++) {
+            if (ops[pc] != Expression.VAR || args[pc] < parameters) continue;
+            int slot = args[pc] - parameters;
+            if (slot >= bySlot.length || bySlot[slot] == null) {
+                throw new IllegalArgumentException("Definitions cannot use " + symbols.name(slot));
+            }
+        }
+    }
+
+    // Definitions named in text, other than the parameters
+    private List<Definition> dependencies(String text, String[] parameters) {
+        List<Definition> dependencies = new ArrayList<>();
+        Lexer lexer = new Lexer(text);
+        for (int type = lexer.next(); type != Lexer.END; type = lexer.next()) {
+            if (type != Lexer.IDENTIFIER) continue;
+            String name = text.substring(lexer.start(), lexer.end());
+            if (parameters != null && Arrays.asList(parameters).contains(name)) continue;
+            Definition definition = byName.get(name);
+            if (definition != null && !dependencies.contains(definition)) dependencies.add(definition);
+        }
+        return dependencies;
+    }
+
+    private void checkCycle(Definition definition, List<Definition> dependencies) {
+        List<Definition> pending = new ArrayList<>(dependencies);
+        boolean[] seen = new boolean[definitions.size()];
+        while (!pending.isEmpty()) {
+            Definition next = pending.remove(pending.size() - 1);
+            if (next == definition) throw new IllegalArgumentException("Circular definition of " + definition.name);
+            if (seen[next.index]) continue;
+            seen[next.index] = true;
+            pending.addAll(next.dependencies);
+        }
+    }
+
+    // Recomputes what depends on root, in order of height: every definition
+    // is higher than all of its dependencies, so each height is a level whose
+    // members are independent of each other. Only dependents of a definition
+    // that changed are visited. Whatever calls a replaced function is
+    // recompiled first, since it inlined the old body.
+    private List<Definition> recompute(Definition root) {
+        List<Definition> changed = new ArrayList<>(List.of(root));
+        List<Definition> visited = new ArrayList<>();
+        PriorityQueue<Definition> queue = new PriorityQueue<>(Comparator.comparingInt(d -> d.height));
+        List<Definition> level = new ArrayList<>();
+        Definition[] values = new Definition[16];
+        double[] before = new double[16];
+        queue.add(root);
+        root.queued = true;
+        root.changed = true;
+        root.replaced = root.isFunction();
+        while (!queue.isEmpty()) {
+            level.clear();
+            int height = queue.peek().height;
+            while (!queue.isEmpty() && queue.peek().height == height) level.add(queue.poll());
+            int count = 0;
+            for (Definition definition : level) {
+                boolean inlined = false;
+                for (Definition dependency : definition.dependencies) {
+                    definition.changed |= dependency.changed;
+                    inlined |= dependency.replaced;
+                }
+                if (inlined) {
+                    definition.expression = compile(definition.text, definition.parameters);
+                    if (definition.isFunction()) {
+                        symbols.defineFunction(definition.name, definition.parameters.length, definition.expression);
+                        definition.replaced = true;
+                    }
+                }
+                if (definition.changed && !definition.isFunction()) {
+                    if (count == values.length) {
+                        values = Arrays.copyOf(values, count * 2);
+                        before = Arrays.copyOf(before, count * 2);
+                    }
+                    values[count] = definition;
+                    before[count++] = definition.value;
+                }
+                visited.add(definition);
+            }
+            if (count >= PARALLEL_THRESHOLD && ForkJoinPool.getCommonPoolParallelism() > 1) {
+                ForkJoinPool.commonPool().invoke(new LevelTask(values, symbols, 0, count));
+            } else {
+                evaluate(values, symbols, 0, count);
+            }
+            // A value that came out the same stops the recompute along its edges
+            for (int i = 0; i < count; i++) {
+                if (Double.doubleToRawLongBits(values[i].value) == Double.doubleToRawLongBits(before[i])) {
+                    values[i].changed = false;
+                } else if (values[i] != root) {
+                    changed.add(values[i]);
+                }
+            }
+
+            for (Definition definition : level) {
+                if (!definition.changed && !definition.replaced) continue;
+                for (Definition dependent : definition.dependents) {
+                    if (!dependent.queued) {
+                        dependent.queued = true;
+                        queue.add(dependent);
+                    }
+                }
+            }
+        }
+        for (Definition definition : visited) {
+            definition.queued = false;
+            definition.changed = false;
+            definition.replaced = false;
+        }
+        for (Definition definition : changed) definition.display = null;
+        return changed;
+    }
+
+    // Longest path from definition down to one without dependencies; updated
+    // downstream when a redefinition moves it
+    private void updateHeights(Definition definition) {
+        List<Definition> pending = new ArrayList<>(List.of(definition));
+        while (!pending.isEmpty()) {
+            Definition next = pending.remove(pending.size() - 1);
+            int height = 0;
+            for (Definition dependency : next.dependencies) height = Math.max(height, dependency.height + 1);
+            if (height == next.height && next != definition) continue;
+            next.height = height;
+            pending.addAll(next.dependents);
+        }
+    }
+
+    static void evaluate(Definition[] values, SymbolTable symbols, int from, int to) {
+        double[] store = symbols.values();
+        for (int i = from; i < to; i++) {
+            Definition definition = values[i];
+            definition.value = definition.expression.evaluate(store);
+            symbols.set(definition.slot, definition.value);
+        }
+    }
+
+    static boolean isName(String name) {
+        if (name.isEmpty() || !Character.isLetter(name.charAt(0))) return false;
+        for (int i = 1; i < name.length(); i++) {
+            char c = name.charAt(i);
+            if (!Character.isLetterOrDigit(c) && c != '_') return false;
+        }
+        return true;
+    }
+
+    // One named value or function
+    public static final class Definition {
+        private final String name;
+        private final int index;
+        private final int slot; // -1 for a function
+        private String[] parameters; // null for a value
+        private String text;
+        private Expression expression; // the value's program, or the function's body
+        private double value;
+        private List<Definition> dependencies = List.of();
+        private final List<Definition> dependents = new ArrayList<>();
+        private int height;
+        private boolean queued;
+        private boolean changed; // value differs, so dependents must be evaluated again
+        private boolean replaced; // function body differs, so callers must be recompiled
+        private String display;
+
+        Definition(String name, int index, int slot) {
+            this.name = name;
+            this.index = index;
+            this.slot = slot;
+        }
+
+        public String name() {
+            return name;
+        }
+
+        // Position in Definitions.all()
+        public int index() {
+            return index;
+        }
+
+        public boolean isFunction() {
+            return slot < 0;
+        }
+
+        public List<String> parameters() {
+            return parameters == null ? List.of() : List.of(parameters);
+        }
+
+        // The right-hand side as written
+        public String text() {
+            return text;
+        }
+
+        // Current value; NaN for a function
+        public double value() {
+            return isFunction() ? Double.NaN : value;
+        }
+
+        // The definition in the form define() takes
+        public String source() {
+            return isFunction() ? name + "(" + String.join(", ", parameters) + ") = " + text : name + " = " + text;
+        }
+
+        // The source, then the value unless the text already says it
+        @Override
+        public String toString() {
+            if (display == null) {
+                boolean plain = isFunction() || Lexer.parseNumber(text, 0, text.length()) == value;
+                display = plain ? source() : source() + " = " + value;
+            }
+            return display;
+        }
+    }
+
+    @SuppressWarnings("serial")
+    private static final class LevelTask extends RecursiveAction {
+        private static final int GRAIN = 64;
+
+        private final Definition[] values;
+        private final SymbolTable symbols;
+        private final int from, to;
+
+        LevelTask(Definition[] values, SymbolTable symbols, int from, int to) {
+            this.values = values;
+            this.symbols = symbols;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from <= GRAIN) {
+                evaluate(values, symbols, from, to);
+                return;
+            }
+            int mid = (from + to) >>> 1;
+            invokeAll(new LevelTask(values, symbols, from, mid), new LevelTask(values, symbols, mid, to));
+        }
+    }
+}
@@ -0,0 +1,131 @@
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+// Symbolic differentiation of compiled expressions. The program is loaded
+// into an optimizer graph, a derivative node is built for every node in
+// child-before-parent order (so no recursion), and the result is emitted as
+// an ordinary program that shares subexpressions with f through temps.
+//
+// Unlike the optimizer, terms multiplied by an exact zero are dropped here
+// (0*u = 0 is not IEEE-exact when u is infinite or NaN); that is what keeps
+// derivatives from growing a long tail of dead terms.
+//
+// Calls to unary functions follow the chain rule with the function's own
+// derivative formula (cos(x) for sin, and so on) inlined at the argument.
+public final class Derivatives {
+    // f' of each unary function, compiled the first time it is needed
+    private static final Map<MathFunction, Expression> DERIVATIVES = new ConcurrentHashMap<>();
+
+    private final ExpressionOptimizer graph = new ExpressionOptimizer();
+
+    private Derivatives() {
+    }
+
+    // d f / d(variable slot); throws IllegalArgumentException where f has no
+    // closed-form derivative in this grammar (u % v with a variable divisor, u^v
+    // with a variable exponent and a base that is not a plain constant, or a
+    // function without a derivative formula applied to a variable argument)
+    public static Expression derivative(Expression f, int variable) {
+        Derivatives d = new Derivatives();
+        int root = d.graph.build(f);
+        int derivative = d.differentiate(root, variable);
+        return d.graph.emit(derivative, f.variables(), f.size());
+    }
+
+    private int differentiate(int root, int variable) {
+        // Only nodes under root count; the graph also holds intermediates that simplification dropped
+        boolean[] reachable = new boolean[root + 1];
+        reachable[root] = true;
+        for (int n = root; n >= 0; n--) {
+            if (!reachable[n]) continue;
+            if (graph.arity(n) > 0) reachable[graph.left(n)] = true;
+            if (graph.arity(n) > 1) reachable[graph.right(n)] = true;
+        }
+        int[] d = new int[root + 1];
+        for (int n = 0; n <= root; n++) {
+            if (!reachable[n]) continue;
+            int u = graph.left(n), v = graph.right(n);
+            d[n] = switch (graph.op(n)) {
+                case Expression.CONST -> zero();
+                case Expression.VAR -> graph.constant(u == variable ? 1 : 0);
+                case Expression.NEG -> graph.negate(d[u]);
+                case Expression.ADD -> add(d[u], d[v]);
+                case Expression.SUB -> subtract(d[u], d[v]);
+                // (uv)' = u'v + uv'
+                case Expression.MUL -> add(multiply(d[u], v), multiply(u, d[v]));
+                // (u/v)' = (u'v - uv') / v^2
+                case Expression.DIV -> divide(subtract(multiply(d[u], v), multiply(u, d[v])), multiply(v, v));
+                // u % v = u - v*trunc(u/v), and trunc is flat between its jumps
+                case Expression.MOD -> {
+                    if (!isZero(d[v])) throw new IllegalArgumentException("Cannot differentiate % with a variable divisor");
+                    yield d[u];
+                }
+                case Expression.POW -> power(n, u, v, d[u], d[v]);
+                case Expression.CALL -> call(n, u, v, d);
+                default -> throw new IllegalStateException("Bad opcode " + graph.op(n));
+            };
+        }
+        return d[root];
+    }
+
+    private int power(int n, int u, int v, int du, int dv) {
+        if (isZero(dv)) {
+            // (u^c)' = c * u^(c-1) * u'
+            if (isZero(du)) return zero();
+            int exponent = graph.binary(Expression.SUB, v, graph.constant(1));
+            return multiply(multiply(v, graph.binary(Expression.POW, u, exponent)), du);
+        }
+        if (isZero(du) && graph.op(u) == Expression.CONST) {
+            // (c^v)' = c^v * ln(c) * v'
+            return multiply(multiply(n, graph.constant(Math.log(graph.value(u)))), dv);
+        }
+        throw new IllegalArgumentException("Cannot differentiate u^v with a variable exponent and non-constant base");
+    }
+
+    // (f(u))' = f'(u) * u', with f' inlined from the function's derivative formula
+    private int call(int n, int u, int v, int[] d) {
+        MathFunction f = FunctionRegistry.get(graph.function(n));
+        boolean constant = (f.arity() < 1 || isZero(d[u])) && (f.arity() < 2 || isZero(d[v]));
+        if (constant) return zero();
+        Expression derivative = f.arity() == 1 ? derivative(f) : null;
+        if (derivative == null) throw new IllegalArgumentException("Cannot differentiate " + f.name());
+        if (isZero(d[u])) return zero();
+        return multiply(graph.build(derivative, new int[]{u}), d[u]);
+    }
+
+    private static Expression derivative(MathFunction f) {
+        String formula = f.derivative();
+        if (formula == null) return null;
+        return DERIVATIVES.computeIfAbsent(f, key -> Expression.compile(formula, "x"));
+    }
+
+    private int zero() {
+        return graph.constant(0);
+    }
+
+    private boolean isZero(int node) {
+        return graph.op(node) == Expression.CONST && graph.value(node) == 0;
+    }
+
+    private int add(int a, int b) {
+        if (isZero(a)) return b;
+        if (isZero(b)) return a;
+        return graph.binary(Expression.ADD, a, b);
+    }
+
+    private int subtract(int a, int b) {
+        if (isZero(b)) return a;
+        if (isZero(a)) return graph.negate(b);
+        return graph.binary(Expression.SUB, a, b);
+    }
+
+    private int multiply(int a, int b) {
+        if (isZero(a) || isZero(b)) return zero();
+        return graph.binary(Expression.MUL, a, b);
+    }
+
+    private int divide(int a, int b) {
+        if (isZero(a)) return zero();
+        return graph.binary(Expression.DIV, a, b);
+    }
+}
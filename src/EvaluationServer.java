@@ -0,0 +1,229 @@
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.LongAdder;
+
+// Line-protocol evaluation service on the loopback interface, so other
+// processes on the machine can use the engine without Swing. Each connection
+// runs on its own virtual thread where the JDK has them (a cached pool of
+// platform threads otherwise) and is a session with its own variables and
+// memory. One line is one request and gets one line back, in order;
+// clients may pipeline any number of requests before reading, and replies
+// are flushed only when no more input is waiting.
+//
+//   3*(4+5)          27.0
+//   1+1; 2*M         2.0; 10.0          several requests in one batch
+//   rate = 0.07      0.07               defines or updates a session variable
+//   MS 5             5.0                memory store; also M+ expr, MR, MC
+//   STATS            requests=... p99=...  server-wide throughput and latency
+//   QUIT                                closes the connection
+//
+// Errors come back as "error: message". Blank lines get no reply.
+public final class EvaluationServer implements Runnable, AutoCloseable {
+    static final int SESSION_CACHE_SIZE = 64;
+
+    private final ServerSocket socket;
+    private final ExecutorService connections = connectionExecutor();
+    private final LongAdder requests = new LongAdder();
+    private final LongAdder sessions = new LongAdder();
+    private final LatencyHistogram latency = new LatencyHistogram();
+    private final long started = System.nanoTime();
+
+    // Port 0 picks a free port; see port()
+    public EvaluationServer(int port) throws IOException {
+        this.socket = new ServerSocket(port, 128, InetAddress.getLoopbackAddress());
+    }
+
+    public int port() {
+        return socket.getLocalPort();
+    }
+
+    // Accepts connections until closed
+    @Override
+    public void run() {
+        while (!socket.isClosed()) {
+            try {
+                Socket connection = socket.accept();
+                connection.setTcpNoDelay(true);
+                connections.execute(() -> serve(connection));
+            } catch (IOException e) {
+                if (socket.isClosed()) return;
+            }
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        socket.close();
+        connections.shutdownNow();
+    }
+
+    public String stats() {
+        double seconds = (System.nanoTime() - started) / 1e9;
+        long count = requests.sum();
+        return String.format(Locale.ROOT,
+                "requests=%d sessions=%d throughput=%.0f/s mean=%.1fus p50=%.1fus p99=%.1fus max=%.1fus",
+                count, sessions.sum(), count / seconds, latency.mean() / 1e3,
+                latency.percentile(0.5) / 1e3, latency.percentile(0.99) / 1e3, latency.max() / 1e3);
+    }
+
+    private void serve(Socket connection) {
+        sessions.increment();
+        try (connection) {
+            BufferedReader in = new BufferedReader(
+                    new InputStreamReader(connection.getInputStream(), StandardCharsets.UTF_8), 1 << 16);
+            OutputStream out = new BufferedOutputStream(connection.getOutputStream(), 1 << 16);
+            Session session = new Session();
+            StringBuilder reply = new StringBuilder();
+            String line;
+            while ((line = in.readLine()) != null) {
+                long start = System.nanoTime();
+                String request = line.trim();
+                if (request.equals("QUIT")) break;
+                if (!request.isEmpty()) {
+                    reply.setLength(0);
+                    session.handle(request, reply);
+                    reply.append('\n');
+                    out.write(reply.toString().getBytes(StandardCharsets.UTF_8));
+                    requests.increment();
+                    latency.record(System.nanoTime() - start);
+                }
+                // Pipelined requests are answered together
+                if (!in.ready()) out.flush();
+            }
+            out.flush();
+        } catch (SocketException e) {
+            // Client went away
+        } catch (IOException e) {
+            // Nothing to report to; the connection is closed either way
+        }
+    }
+
+    // Virtual threads need JDK 21; found reflectively so this still builds and runs on 17
+    private static ExecutorService connectionExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            return Executors.newCachedThreadPool(r -> {
+                Thread t = new Thread(r, "session");
+                t.setDaemon(true);
+                return t;
+            });
+        }
+    }
+
+    // Per-connection state: a symbol table with M (alias MR) and any assigned
+    // names, and a cache of expressions compiled against it
+    private final class Session {
+        private final SymbolTable symbols = SymbolTable.standard();
+        private final int memorySlot;
+        private final ExpressionCache cache = new ExpressionCache(SESSION_CACHE_SIZE,
+                text -> Expression.compile(text, symbols));
+
+        Session() {
+            memorySlot = symbols.variable("M");
+            symbols.alias("MR", "M");
+        }
+
+        // Handles one line of requests separated by ';'
+        void handle(String line, StringBuilder reply) {
+            int start = 0;
+            while (true) {
+                int end = line.indexOf(';', start);
+                if (end < 0) end = line.length();
+                if (start > 0) reply.append("; ");
+                try {
+                    reply.append(execute(line.substring(start, end).trim()));
+                } catch (RuntimeException e) {
+                    reply.append("error: ").append(e.getMessage());
+                }
+                if (end == line.length()) return;
+                start = end + 1;
+            }
+        }
+
+        private String execute(String request) {
+            switch (request) {
+                case "MR":
+                    return String.valueOf(memory());
+                case "MC":
+                    symbols.undefine(memorySlot);
+                    return "0.0";
+                case "STATS":
+                    return stats();
+                default:
+                    break;
+            }
+            if (request.startsWith("MS ")) {
+                return String.valueOf(store(memorySlot, evaluate(request.substring(3))));
+            }
+            if (request.startsWith("M+ ")) {
+                double value = evaluate(request.substring(3));
+                return String.valueOf(store(memorySlot, symbols.isDefined(memorySlot) ? memory() + value : value));
+            }
+            int equals = request.indexOf('=');
+            if (equals > 0) {
+                String name = request.substring(0, equals).trim();
+                if (!isName(name)) throw new IllegalArgumentException("Invalid variable name: " + name);
+                double value = evaluate(request.substring(equals + 1));
+                int before = symbols.size();
+                int slot = symbols.variable(name);
+                // A new name may shadow a constant that cached programs have folded in
+                if (symbols.size() != before) cache.clear();
+                return String.valueOf(store(slot, value));
+            }
+            return String.valueOf(evaluate(request));
+        }
+
+        private double evaluate(String text) {
+            Expression expression = cache.get(text.trim());
+            String[] names = expression.variables();
+            for (int slot = 0; slot < names.length; slot++) {
+                if (!symbols.isDefined(slot) && expression.usesVariable(slot)) {
+                    throw new IllegalStateException(slot == memorySlot
+                            ? "No value stored in memory" : names[slot] + " is not defined");
+                }
+            }
+            long start = Metrics.start();
+            double result = expression.evaluate(symbols.values());
+            Metrics.recordEvaluation(text, start);
+            if (!Double.isFinite(result)) Metrics.failed(Metrics.Stage.EVALUATE);
+            return check(result);
+        }
+
+        private double memory() {
+            if (!symbols.isDefined(memorySlot)) throw new IllegalStateException("No value stored in memory");
+            return symbols.get(memorySlot);
+        }
+
+        private double store(int slot, double value) {
+            symbols.set(slot, check(value));
+            return value;
+        }
+
+        private double check(double value) {
+            if (Double.isInfinite(value)) throw new ArithmeticException("Result is too large");
+            if (Double.isNaN(value)) throw new ArithmeticException("Invalid calculation");
+            return value;
+        }
+
+        private boolean isName(String name) {
+            if (name.isEmpty() || !Character.isLetter(name.charAt(0))) return false;
+            for (int i = 1; i < name.length(); i++) {
+                char c = name.charAt(i);
+                if (!Character.isLetterOrDigit(c) && c != '_') return false;
+            }
+            return true;
+        }
+    }
+}
@@ -0,0 +1,190 @@
+// Compiled form of an expression: a flat postfix program that is evaluated
+// on a small operand stack, so the source text is parsed only once.
+public final class Expression {
+    static final byte CONST = 0;
+    static final byte VAR = 1;
+    static final byte NEG = 2;
+    static final byte ADD = 3;
+    static final byte SUB = 4;
+    static final byte MUL = 5;
+    static final byte DIV = 6;
+    static final byte MOD = 7;
+    static final byte POW = 8;
+    // Shared subexpressions: STORE copies the top of the stack into temp slot arg, LOAD pushes it back
+    static final byte STORE = 9;
+    static final byte LOAD = 10;
+    // Calls FunctionRegistry function arg on the top arity() values
+    static final byte CALL = 11;
+
+    static final boolean OPTIMIZE = Boolean.parseBoolean(System.getProperty("calculator.optimize", "true"));
+
+    // Per-thread operand stack for interpret(), grown on demand, so warm evaluation allocates nothing
+    private static final ThreadLocal<double[]> SCRATCH = ThreadLocal.withInitial(() -> new double[32]);
+
+    // Evaluations before an expression is turned into bytecode; negative disables generation
+    static final int JIT_THRESHOLD = Integer.getInteger("calculator.jit.threshold", 10_000);
+
+    private final byte[] ops;
+    private final int[] args;
+    private final double[] constants;
+    private final String[] variables;
+    private final int maxStack;
+    private final int temps;
+    private final int sourceSize;
+
+    private volatile CompiledFunction generated;
+    private boolean generationFailed;
+    private int evaluations; // racy on purpose, only used as a hotness hint
+
+    Expression(byte[] ops, int[] args, double[] constants, String[] variables, int maxStack, int temps,
+               int sourceSize) {
+        this.ops = ops;
+        this.args = args;
+        this.constants = constants;
+        this.variables = variables;
+        this.maxStack = maxStack;
+        this.temps = temps;
+        this.sourceSize = sourceSize;
+    }
+
+    // Parses str once; the named variables are bound to evaluate() arguments by position.
+    // The built-in constants (π, pi, e) are folded in unless shadowed by a variable.
+    public static Expression compile(String str, String... variables) {
+        SymbolTable symbols = SymbolTable.standard();
+        for (String variable : variables) {
+            symbols.variable(variable);
+        }
+        return compile(str, symbols);
+    }
+
+    // Identifiers resolve to slots of symbols; evaluate with symbols.values()
+    public static Expression compile(String str, SymbolTable symbols) {
+        return compile(str, symbols, OPTIMIZE);
+    }
+
+    // Optimizing costs about as much as parsing, so it only pays off for
+    // expressions that are evaluated more than once
+    static Expression compile(String str, SymbolTable symbols, boolean optimize) {
+        long start = Metrics.start();
+        ExpressionCompiler compiler = new ExpressionCompiler(str, symbols);
+        Expression expression = compiler.compile();
+        if (expression == null) {
+            Metrics.failed(Metrics.Stage.PARSE);
+            throw compiler.exception();
+        }
+        Metrics.record(Metrics.Stage.PARSE, start);
+        if (!optimize) return expression;
+        start = Metrics.start();
+        expression = ExpressionOptimizer.optimize(expression);
+        Metrics.record(Metrics.Stage.OPTIMIZE, start);
+        return expression;
+    }
+
+    public double evaluate(double... values) {
+        if (values.length < variables.length) {
+            throw new IllegalArgumentException("Expected " + variables.length + " values, got " + values.length);
+        }
+        CompiledFunction function = generated;
+        if (function != null) return function.apply(values);
+        if (JIT_THRESHOLD >= 0 && ++evaluations > JIT_THRESHOLD && !generationFailed) {
+            function = generate();
+            if (function != null) return function.apply(values);
+        }
+        return interpret(values);
+    }
+
+    // Generates the bytecode backend now; returns null if generation failed,
+    // in which case this expression keeps using the interpreter.
+    synchronized CompiledFunction generate() {
+        if (generated == null && !generationFailed) {
+            try {
+                generated = ExpressionClassGenerator.generate(ops, args, constants, maxStack, temps);
+            } catch (RuntimeException | LinkageError e) {
+                generationFailed = true;
+            }
+        }
+        return generated;
+    }
+
+    boolean isGenerated() {
+        return generated != null;
+    }
+
+    double interpret(double[] values) {
+        // Temp slots live above the operand stack
+        double[] stack = SCRATCH.get();
+        if (stack.length < maxStack + temps) {
+            stack = new double[Math.max(maxStack + temps, stack.length * 2)];
+            SCRATCH.set(stack);
+        }
+        int sp = -1;
+        for (int pc = 0; pc < ops.length; pc++) {
+            switch (ops[pc]) {
+                case CONST -> stack[++sp] = constants[args[pc]];
+                case VAR -> stack[++sp] = values[args[pc]];
+                case NEG -> stack[sp] = -stack[sp];
+                case ADD -> { sp--; stack[sp] += stack[sp + 1]; }
+                case SUB -> { sp--; stack[sp] -= stack[sp + 1]; }
+                case MUL -> { sp--; stack[sp] *= stack[sp + 1]; }
+                case DIV -> { sp--; stack[sp] /= stack[sp + 1]; }
+                case MOD -> { sp--; stack[sp] %= stack[sp + 1]; }
+                case POW -> { sp--; stack[sp] = Math.pow(stack[sp], stack[sp + 1]); }
+                case STORE -> stack[maxStack + args[pc]] = stack[sp];
+                case LOAD -> { sp++; stack[sp] = stack[maxStack + args[pc]]; }
+                case CALL -> {
+                    MathFunction function = FunctionRegistry.get(args[pc]);
+                    switch (function.arity()) {
+                        case 0 -> stack[++sp] = function.apply();
+                        case 1 -> stack[sp] = function.apply(stack[sp]);
+                        default -> { sp--; stack[sp] = function.apply(stack[sp], stack[sp + 1]); }
+                    }
+                }
+                default -> throw new IllegalStateException("Bad opcode " + ops[pc]);
+            }
+        }
+        return stack[0];
+    }
+
+    public String[] variables() {
+        return variables.clone();
+    }
+
+    public boolean usesVariable(int index) {
+        for (int pc = 0; pc < ops.length; pc++) {
+            if (ops[pc] == VAR && args[pc] == index) return true;
+        }
+        return false;
+    }
+
+    // Number of instructions in the compiled program
+    public int size() {
+        return ops.length;
+    }
+
+    // Number of instructions the parser produced, before optimization
+    public int sourceSize() {
+        return sourceSize;
+    }
+
+    // Raw program access for other backends; callers must not modify the arrays
+
+    byte[] ops() {
+        return ops;
+    }
+
+    int[] args() {
+        return args;
+    }
+
+    double[] constants() {
+        return constants;
+    }
+
+    int maxStack() {
+        return maxStack;
+    }
+
+    int temps() {
+        return temps;
+    }
+}
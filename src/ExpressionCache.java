@@ -0,0 +1,136 @@
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+
+// Size-bounded LRU cache of compiled expressions. Keys are the input text with
+// runs of spaces collapsed and trimmed, which the grammar treats identically.
+//
+// Each clear() starts a new generation. A caller that compiles against a
+// snapshot of its symbols passes the generation it took the snapshot in, so
+// a program compiled before a redefinition never lands in the cache after it.
+public final class ExpressionCache {
+    public static final int DEFAULT_CAPACITY = Integer.getInteger("calculator.cache.size", 256);
+    private static final long ANY_GENERATION = -1;
+
+    private final int capacity;
+    private final Function<String, Expression> compiler;
+    private final Map<String, Expression> entries;
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+    private long generation; // guarded by entries
+
+    public ExpressionCache(int capacity, Function<String, Expression> compiler) {
+        if (capacity < 1) throw new IllegalArgumentException("Capacity must be positive: " + capacity);
+        this.capacity = capacity;
+        this.compiler = compiler;
+        this.entries = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Expression> eldest) {
+                if (size() > ExpressionCache.this.capacity) {
+                    evictions.increment();
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    // Returns the cached expression for input, compiling it on a miss.
+    // Inputs that fail to compile throw and are not cached.
+    public Expression get(String input) {
+        return get(input, compiler, ANY_GENERATION);
+    }
+
+    // Like get, compiling a miss with compiler instead, for a caller whose
+    // snapshot was taken in the given generation. Once the cache has been
+    // cleared since, it neither returns nor keeps entries for this caller.
+    public Expression get(String input, Function<String, Expression> compiler, long generation) {
+        String key = normalize(input);
+        Expression expression;
+        synchronized (entries) {
+            expression = isCurrent(generation) ? entries.get(key) : null;
+        }
+        if (expression != null) {
+            hits.increment();
+            return expression;
+        }
+        misses.increment();
+        // Compile outside the lock so a slow parse doesn't block other lookups
+        expression = compiler.apply(key);
+        synchronized (entries) {
+            if (!isCurrent(generation)) return expression;
+            Expression existing = entries.putIfAbsent(key, expression);
+            return existing != null ? existing : expression;
+        }
+    }
+
+    private boolean isCurrent(long generation) {
+        return generation == ANY_GENERATION || generation == this.generation;
+    }
+
+    public void clear() {
+        synchronized (entries) {
+            entries.clear();
+            generation++;
+        }
+    }
+
+    public long generation() {
+        synchronized (entries) {
+            return generation;
+        }
+    }
+
+    public int size() {
+        synchronized (entries) {
+            return entries.size();
+        }
+    }
+
+    public int capacity() {
+        return capacity;
+    }
+
+    public long hits() {
+        return hits.sum();
+    }
+
+    public long misses() {
+        return misses.sum();
+    }
+
+    public long evictions() {
+        return evictions.sum();
+    }
+
+    @Override
+    public String toString() {
+        return "ExpressionCache[size=" + size() + "/" + capacity + ", hits=" + hits() + ", misses=" + misses()
+                + ", evictions=" + evictions() + "]";
+    }
+
+    // Collapses runs of spaces and trims them; returns input itself when already normalized
+    static String normalize(String input) {
+        int length = input.length();
+        boolean clean = length == 0 || (input.charAt(0) != ' ' && input.charAt(length - 1) != ' ');
+        for (int i = 1; clean && i < length; i++) {
+            clean = !(input.charAt(i) == ' ' && input.charAt(i - 1) == ' ');
+        }
+        if (clean) return input;
+
+        StringBuilder sb = new StringBuilder(length);
+        for (int i = 0; i < length; i++) {
+            char c = input.charAt(i);
+            if (c != ' ') {
+                sb.append(c);
+            } else if (sb.length() > 0 && sb.charAt(sb.length() - 1) != ' ') {
+                sb.append(' ');
+            }
+        }
+        int end = sb.length();
+        if (end > 0 && sb.charAt(end - 1) == ' ') sb.setLength(end - 1);
+        return sb.toString();
+    }
+}
@@ -0,0 +1,241 @@
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.HashMap;
+import java.util.Map;
+
+// Turns an Expression's postfix program into a hidden class implementing
+// CompiledFunction, so the JIT sees plain double arithmetic and Math calls.
+// Built-in functions become direct calls to their java.lang.Math method;
+// other functions go through FunctionRegistry.call with their index.
+final class ExpressionClassGenerator {
+    private static final int MAX_CODE_LENGTH = 65535;
+
+    private final ByteArrayOutputStream poolBytes = new ByteArrayOutputStream();
+    private final DataOutputStream pool = new DataOutputStream(poolBytes);
+    private final Map<Object, Integer> poolIndex = new HashMap<>();
+    private int poolCount = 1;
+
+    private ExpressionClassGenerator() {
+    }
+
+    static CompiledFunction generate(byte[] ops, int[] args, double[] constants, int maxStack, int temps) {
+        try {
+            byte[] bytes = new ExpressionClassGenerator().classBytes(ops, args, constants, maxStack, temps);
+            MethodHandles.Lookup lookup = MethodHandles.lookup().defineHiddenClass(bytes, true);
+            return (CompiledFunction) lookup.findConstructor(lookup.lookupClass(), MethodType.methodType(void.class))
+                    .invoke();
+        } catch (Throwable t) {
+            throw new IllegalStateException("Bytecode generation failed", t);
+        }
+    }
+
+    private byte[] classBytes(byte[] ops, int[] args, double[] constants, int maxStack, int temps)
+            throws IOException {
+        int thisClass = classRef("GeneratedExpression");
+        int superClass = classRef("java/lang/Object");
+        int iface = classRef("CompiledFunction");
+        int codeName = utf8("Code");
+        int objectInit = methodRef("java/lang/Object", "<init>", "()V");
+        int initName = utf8("<init>");
+        int initType = utf8("()V");
+        int applyName = utf8("apply");
+        int applyType = utf8("([D)D");
+
+        if (maxStack * 2 + 2 > 0xFFFF) throw new IllegalStateException("Operand stack too deep");
+        byte[] init = {0x2a, (byte) 0xb7, (byte) (objectInit >> 8), (byte) objectInit, (byte) 0xb1};
+        byte[] apply = applyCode(ops, args, constants);
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        DataOutputStream data = new DataOutputStream(out);
+        data.writeInt(0xCAFEBABE);
+        data.writeShort(0);
+        data.writeShort(61);
+        data.writeShort(poolCount);
+        pool.flush();
+        poolBytes.writeTo(data);
+        data.writeShort(0x0031); // public final super
+        data.writeShort(thisClass);
+        data.writeShort(superClass);
+        data.writeShort(1);
+        data.writeShort(iface);
+        data.writeShort(0); // fields
+        data.writeShort(2); // methods
+        writeMethod(data, 0x0001, initName, initType, codeName, 1, 1, init);
+        // Temp slots are double locals after this and the argument array
+        writeMethod(data, 0x0011, applyName, applyType, codeName, maxStack * 2 + 2, 2 + temps * 2, apply);
+        data.writeShort(0); // attributes
+        data.flush();
+        return out.toByteArray();
+    }
+
+    private byte[] applyCode(byte[] ops, int[] args, double[] constants) throws IOException {
+        ByteArrayOutputStream code = new ByteArrayOutputStream();
+        int pow = methodRef("java/lang/Math", "pow", "(DD)D");
+        for (int pc = 0; pc < ops.length; pc++) {
+            switch (ops[pc]) {
+                case Expression.CONST -> pushDouble(code, constants[args[pc]]);
+                case Expression.VAR -> {
+                    code.write(0x2b); // aload_1
+                    pushInt(code, args[pc]);
+                    code.write(0x31); // daload
+                }
+                case Expression.NEG -> code.write(0x77);
+                case Expression.ADD -> code.write(0x63);
+                case Expression.SUB -> code.write(0x67);
+                case Expression.MUL -> code.write(0x6b);
+                case Expression.DIV -> code.write(0x6f);
+                case Expression.MOD -> code.write(0x73);
+                case Expression.POW -> writeInvokeStatic(code, pow);
+                case Expression.STORE -> {
+                    code.write(0x5c); // dup2
+                    writeLocal(code, 0x39, 2 + args[pc] * 2); // dstore
+                }
+                case Expression.LOAD -> writeLocal(code, 0x18, 2 + args[pc] * 2); // dload
+                case Expression.CALL -> {
+                    MathFunction function = FunctionRegistry.get(args[pc]);
+                    String doubles = "D".repeat(function.arity());
+                    if (function.intrinsic() != null) {
+                        writeInvokeStatic(code, methodRef("java/lang/Math", function.intrinsic(), "(" + doubles + ")D"));
+                    } else {
+                        pushInt(code, args[pc]);
+                        writeInvokeStatic(code, methodRef("FunctionRegistry", "call", "(" + doubles + "I)D"));
+                    }
+                }
+                default -> throw new IllegalStateException("Bad opcode " + ops[pc]);
+            }
+        }
+        code.write(0xaf); // dreturn
+        if (code.size() > MAX_CODE_LENGTH) throw new IllegalStateException("Method too large");
+        return code.toByteArray();
+    }
+
+    private void pushDouble(ByteArrayOutputStream code, double value) throws IOException {
+        long bits = Double.doubleToRawLongBits(value);
+        if (bits == 0L) {
+            code.write(0x0e); // dconst_0
+        } else if (bits == Double.doubleToRawLongBits(1.0)) {
+            code.write(0x0f); // dconst_1
+        } else {
+            int index = doubleConstant(value);
+            code.write(0x14); // ldc2_w
+            code.write(index >> 8);
+            code.write(index);
+        }
+    }
+
+    private void pushInt(ByteArrayOutputStream code, int value) throws IOException {
+        if (value <= 5) {
+            code.write(0x03 + value); // iconst_n
+        } else if (value <= Byte.MAX_VALUE) {
+            code.write(0x10); // bipush
+            code.write(value);
+        } else if (value <= Short.MAX_VALUE) {
+            code.write(0x11); // sipush
+            code.write(value >> 8);
+            code.write(value);
+        } else {
+            int index = intConstant(value);
+            code.write(0x13); // ldc_w
+            code.write(index >> 8);
+            code.write(index);
+        }
+    }
+
+    private static void writeLocal(ByteArrayOutputStream code, int opcode, int index) {
+        if (index > 0xFF) {
+            code.write(0xc4); // wide
+            code.write(opcode);
+            code.write(index >> 8);
+        } else {
+            code.write(opcode);
+        }
+        code.write(index);
+    }
+
+    private static void writeInvokeStatic(ByteArrayOutputStream code, int method) {
+        code.write(0xb8);
+        code.write(method >> 8);
+        code.write(method);
+    }
+
+    private static void writeMethod(DataOutputStream data, int access, int name, int type, int codeName,
+                                    int maxStack, int maxLocals, byte[] code) throws IOException {
+        data.writeShort(access);
+        data.writeShort(name);
+        data.writeShort(type);
+        data.writeShort(1);
+        data.writeShort(codeName);
+        data.writeInt(12 + code.length);
+        data.writeShort(maxStack);
+        data.writeShort(maxLocals);
+        data.writeInt(code.length);
+        data.write(code);
+        data.writeShort(0); // exception table
+        data.writeShort(0); // attributes
+    }
+
+    // Constant pool
+
+    private int utf8(String value) throws IOException {
+        Integer index = poolIndex.get(value);
+        if (index != null) return index;
+        pool.writeByte(1);
+        pool.writeUTF(value);
+        return register(value, 1);
+    }
+
+    private int classRef(String name) throws IOException {
+        String key = "Class:" + name;
+        Integer index = poolIndex.get(key);
+        if (index != null) return index;
+        int nameIndex = utf8(name);
+        pool.writeByte(7);
+        pool.writeShort(nameIndex);
+        return register(key, 1);
+    }
+
+    private int methodRef(String owner, String name, String type) throws IOException {
+        String key = "Method:" + owner + "." + name + type;
+        Integer index = poolIndex.get(key);
+        if (index != null) return index;
+        int ownerIndex = classRef(owner);
+        int nameIndex = utf8(name);
+        int typeIndex = utf8(type);
+        pool.writeByte(12);
+        pool.writeShort(nameIndex);
+        pool.writeShort(typeIndex);
+        int nameAndType = register("NameAndType:" + name + type, 1);
+        pool.writeByte(10);
+        pool.writeShort(ownerIndex);
+        pool.writeShort(nameAndType);
+        return register(key, 1);
+    }
+
+    private int doubleConstant(double value) throws IOException {
+        Long key = Double.doubleToRawLongBits(value);
+        Integer index = poolIndex.get(key);
+        if (index != null) return index;
+        pool.writeByte(6);
+        pool.writeLong(key);
+        return register(key, 2);
+    }
+
+    private int intConstant(int value) throws IOException {
+        Integer index = poolIndex.get(value);
+        if (index != null) return index;
+        pool.writeByte(3);
+        pool.writeInt(value);
+        return register(value, 1);
+    }
+
+    private int register(Object key, int slots) {
+        if (poolCount + slots > 0xFFFF) throw new IllegalStateException("Constant pool overflow");
+        int index = poolCount;
+        poolCount += slots;
+        poolIndex.put(key, index);
+        return index;
+    }
+}
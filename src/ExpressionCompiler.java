@@ -0,0 +1,338 @@
+import java.util.Arrays;
+
+// Parser for the calculator grammar. Instead of computing the value while
+// scanning, it emits a postfix program for Expression. It is a shunting-yard
+// loop over an explicit operator stack, so nesting depth and input length are
+// limited by heap, not by the thread stack, and parsing is linear time.
+// Errors are recorded as a code and position rather than thrown, so bad
+// input costs no more than good input until someone asks for the message.
+//
+//   expression = term (('+' | '-') term)*
+//   term       = factor (('*' | '/' | '%') factor)*
+//   factor     = ('+' | '-') factor | primary ('^' factor)?
+//   primary    = '(' expression ')' | number | identifier | call
+//   call       = identifier '(' (expression (',' expression)*)? ')'
+//
+// So unary minus binds looser than '^' (-2^2 = -4) but tighter than '*',
+// and '^' is right associative. A call to a function defined in the symbol
+// table is replaced by the function's body, with each parameter standing
+// for the code of its argument.
+final class ExpressionCompiler {
+    // Operator stack entries besides the binary opcodes; a call is Expression.CALL
+    // with the function index, directly below the OPEN of its argument list
+    private static final byte OPEN = -1;
+    // Call of a symbol table function, with its index there; inlined when it closes
+    private static final byte INLINE = -2;
+
+    private final CharSequence str;
+    private final SymbolTable symbols;
+    private final Lexer lexer;
+
+    private byte[] ops = new byte[16];
+    private int[] args = new int[16];
+    private int size;
+    private double[] constants = new double[8];
+    private int constantCount;
+    private int depth, maxDepth;
+    private int temps;
+
+    private byte[] operators = new byte[16];
+    // Function index for CALL entries, commas seen so far for OPEN entries
+    private int[] operatorArgs = new int[16];
+    private int[] operatorStarts = new int[16]; // input position of each entry
+    private int top = -1;
+    private int open; // unclosed '(' on the operator stack
+    // Program position where each argument of the open calls starts
+    private int[] argumentStarts = new int[16];
+    private int argumentTop;
+
+    private ParseError error;
+    private int errorStart, errorEnd;
+
+    ExpressionCompiler(CharSequence str, SymbolTable symbols) {
+        this.str = str;
+        this.symbols = symbols;
+        this.lexer = new Lexer(str);
+    }
+
+    // Parses tokens lexed earlier, skipping the scan of their text
+    ExpressionCompiler(TokenList tokens, SymbolTable symbols) {
+        this.str = tokens.text();
+        this.symbols = symbols;
+        this.lexer = new Lexer(tokens);
+    }
+
+    // Returns null if the input does not parse; see error(), errorPosition() and exception()
+    Expression compile() {
+        if (!parse()) return null;
+        return new Expression(Arrays.copyOf(ops, size), Arrays.copyOf(args, size),
+                Arrays.copyOf(constants, constantCount), symbols.names(), maxDepth, temps, size);
+    }
+
+    // The error of a failed compile() as an exception
+    ExpressionException exception() {
+        return new ExpressionException(error, errorStart, error.message(str, errorStart, errorEnd));
+    }
+
+    ParseError error() {
+        return error;
+    }
+
+    int errorPosition() {
+        return errorStart;
+    }
+
+    private boolean parse() {
+        boolean operand = true; // expecting an operand rather than an operator
+        for (int type = lexer.next(); ; type = lexer.next()) {
+            char c = type == Lexer.OPERATOR ? str.charAt(lexer.start()) : 0;
+            if (operand) {
+                switch (type) {
+                    case Lexer.NUMBER -> {
+                        emitConstant(lexer.number());
+                        operand = false;
+                    }
+                    case Lexer.IDENTIFIER -> {
+                        if (nextIs('(')) {
+                            if (!openCall()) return false;
+                            // A ')' right away closes a call without arguments
+                            if (nextIs(')')) {
+                                lexer.next();
+                                if (!closeParenthesis(true)) return false;
+                                operand = false;
+                            }
+                        } else {
+                            if (!emitIdentifier()) return false;
+                            operand = false;
+                        }
+                    }
+                    case Lexer.MALFORMED_NUMBER -> {
+                        return fail(ParseError.MALFORMED_NUMBER);
+                    }
+                    case Lexer.OPERATOR -> {
+                        if (c == '-') {
+                            push(Expression.NEG, 0);
+                        } else if (c == '(') {
+                            push(OPEN, 0);
+                            open++;
+                        } else if (c != '+') { // unary plus is a no-op
+                            return fail(ParseError.UNEXPECTED);
+                        }
+                    }
+                    default -> {
+                        return fail(ParseError.UNEXPECTED);
+                    }
+                }
+                continue;
+            }
+
+            byte binary = switch (c) {
+                case '+' -> Expression.ADD;
+                case '-' -> Expression.SUB;
+                case '*' -> Expression.MUL;
+                case '/' -> Expression.DIV;
+                case '%' -> Expression.MOD;
+                case '^' -> Expression.POW;
+                default -> OPEN;
+            };
+            if (binary != OPEN) {
+                int precedence = precedence(binary);
+                // '^' is right associative, everything else left associative
+                while (top >= 0 && operators[top] != OPEN
+                        && (precedence(operators[top]) > precedence
+                        || (precedence(operators[top]) == precedence && binary != Expression.POW))) {
+                    emit(operators[top--], 0);
+                }
+                push(binary, 0);
+                operand = true;
+            } else if (c == ')' && open > 0) {
+                if (!closeParenthesis(false)) return false;
+            } else if (c == ',' && open > 0) {
+                while (operators[top] != OPEN) emit(operators[top--], 0);
+                if (top == 0 || !isCall(operators[top - 1])) return fail(ParseError.MISSING_PARENTHESIS);
+                operatorArgs[top]++;
+                startArgument();
+                operand = true;
+            } else if (type == Lexer.END && open == 0) {
+                while (top >= 0) emit(operators[top--], 0);
+                return true;
+            } else {
+                // Anything else can only end the expression or close a parenthesis
+                return fail(open > 0 ? ParseError.MISSING_PARENTHESIS : ParseError.UNEXPECTED_CHARACTER);
+            }
+        }
+    }
+
+    private static int precedence(byte op) {
+        return switch (op) {
+            case Expression.ADD, Expression.SUB -> 1;
+            case Expression.MUL, Expression.DIV, Expression.MOD -> 2;
+            case Expression.NEG -> 3;
+            default -> 4; // POW
+        };
+    }
+
+    private void push(byte op, int arg) {
+        if (++top == operators.length) {
+            operators = Arrays.copyOf(operators, top * 2);
+            operatorArgs = Arrays.copyOf(operatorArgs, top * 2);
+            operatorStarts = Arrays.copyOf(operatorStarts, top * 2);
+        }
+        operators[top] = op;
+        operatorArgs[top] = arg;
+        operatorStarts[top] = lexer.start();
+    }
+
+    // Whether the next token starts with c, without consuming it
+    private boolean nextIs(char c) {
+        int i = lexer.end();
+        while (i < str.length() && str.charAt(i) == ' ') i++;
+        return i < str.length() && str.charAt(i) == c;
+    }
+
+    private static boolean isCall(byte op) {
+        return op == Expression.CALL || op == INLINE;
+    }
+
+    // At a function name followed by '('; pushes the call and consumes the '('
+    private boolean openCall() {
+        int function = symbols.findFunction(str, lexer.start(), lexer.end());
+        if (function >= 0) {
+            push(INLINE, function);
+        } else {
+            function = FunctionRegistry.find(str, lexer.start(), lexer.end());
+            if (function < 0) return fail(ParseError.UNKNOWN_FUNCTION);
+            push(Expression.CALL, function);
+        }
+        lexer.next();
+        push(OPEN, 0);
+        open++;
+        startArgument();
+        return true;
+    }
+
+    private void startArgument() {
+        if (argumentTop == argumentStarts.length) argumentStarts = Arrays.copyOf(argumentStarts, argumentTop * 2);
+        argumentStarts[argumentTop++] = size;
+    }
+
+    // At a ')' that has a matching '('; finishes the group or the call it closes.
+    // empty is set for the ')' of a call with no arguments.
+    private boolean closeParenthesis(boolean empty) {
+        while (operators[top] != OPEN) emit(operators[top--], 0);
+        int commas = operatorArgs[top];
+        top--;
+        open--;
+        if (top < 0 || !isCall(operators[top])) return true;
+        boolean inline = operators[top] == INLINE;
+        int function = operatorArgs[top];
+        int start = operatorStarts[top];
+        top--;
+        argumentTop -= commas + 1;
+        int arguments = empty ? 0 : commas + 1;
+        int arity = inline ? symbols.functionParameters(function) : FunctionRegistry.get(function).arity();
+        if (arguments != arity) {
+            String name = inline ? symbols.functionName(function) : FunctionRegistry.get(function).name();
+            return fail(ParseError.ARGUMENT_COUNT, start, start + name.length());
+        }
+        if (inline) {
+            inline(function, arguments);
+        } else {
+            emit(Expression.CALL, function);
+        }
+        return true;
+    }
+
+    // Replaces the arguments just emitted, which start at argumentStarts[argumentTop],
+    // by the body of function. An argument the body uses more than once is
+    // computed at its first use and kept in a temp; unused ones are dropped.
+    private void inline(int function, int arguments) {
+        Expression body = symbols.functionBody(function);
+        byte[] bodyOps = body.ops();
+        int[] bodyArgs = body.args();
+        int[] starts = Arrays.copyOfRange(argumentStarts, argumentTop, argumentTop + arguments + 1);
+        starts[arguments] = size;
+        int from = starts[0];
+        byte[] argumentOps = Arrays.copyOfRange(ops, from, size);
+        int[] argumentArgs = Arrays.copyOfRange(args, from, size);
+        size = from;
+        depth -= arguments;
+
+        int[] uses = new int[arguments];
+        for (int pc = 0; pc < bodyOps.length; pc++) {
+            if (bodyOps[pc] == Expression.VAR && bodyArgs[pc] < arguments) uses[bodyArgs[pc]]++;
+        }
+        int[] temp = new int[arguments];
+        Arrays.fill(temp, -1);
+        int bodyTemps = temps;
+        temps += body.temps();
+        for (int pc = 0; pc < bodyOps.length; pc++) {
+            int arg = bodyArgs[pc];
+            switch (bodyOps[pc]) {
+                case Expression.CONST -> emitConstant(body.constants()[arg]);
+                case Expression.VAR -> {
+                    if (arg >= arguments) {
+                        emit(Expression.VAR, arg - arguments + symbols.parameterCount());
+                    } else if (temp[arg] >= 0) {
+                        emit(Expression.LOAD, temp[arg]);
+                    } else {
+                        int end = starts[arg + 1] - from;
+                        for (int i = starts[arg] - from; i < end; i++) emit(argumentOps[i], argumentArgs[i]);
+                        // Single instructions are as cheap to repeat as to reload
+                        if (uses[arg] > 1 && starts[arg + 1] - starts[arg] > 1) {
+                            temp[arg] = temps++;
+                            emit(Expression.STORE, temp[arg]);
+                        }
+                    }
+                }
+                case Expression.STORE, Expression.LOAD -> emit(bodyOps[pc], arg + bodyTemps);
+                default -> emit(bodyOps[pc], arg);
+            }
+        }
+    }
+
+    // identifier = letter (letter | digit | '_')*, resolved to a constant or a variable slot
+    private boolean emitIdentifier() {
+        int symbol = symbols.find(str, lexer.start(), lexer.end());
+        if (symbol < 0) return fail(ParseError.UNKNOWN_SYMBOL);
+        int slot = symbols.symbolSlot(symbol);
+        if (slot < 0) {
+            emitConstant(symbols.symbolValue(symbol));
+        } else {
+            emit(Expression.VAR, slot);
+        }
+        return true;
+    }
+
+    private boolean fail(ParseError error) {
+        return fail(error, lexer.start(), lexer.end());
+    }
+
+    private boolean fail(ParseError error, int start, int end) {
+        this.error = error;
+        this.errorStart = start;
+        this.errorEnd = end;
+        return false;
+    }
+
+    private void emitConstant(double value) {
+        if (constantCount == constants.length) constants = Arrays.copyOf(constants, constantCount * 2);
+        constants[constantCount] = value;
+        emit(Expression.CONST, constantCount++);
+    }
+
+    private void emit(byte op, int arg) {
+        if (size == ops.length) {
+            ops = Arrays.copyOf(ops, size * 2);
+            args = Arrays.copyOf(args, size * 2);
+        }
+        ops[size] = op;
+        args[size++] = arg;
+        switch (op) {
+            case Expression.CONST, Expression.VAR, Expression.LOAD -> maxDepth = Math.max(maxDepth, ++depth);
+            case Expression.NEG, Expression.STORE -> { }
+            case Expression.CALL -> maxDepth = Math.max(maxDepth, depth += 1 - FunctionRegistry.get(arg).arity());
+            default -> depth--;
+        }
+    }
+}
@@ -0,0 +1,23 @@
+// Compile error with its position in the input, so callers can point at it.
+// Built without a stack trace: it reports bad input, not a bug.
+public final class ExpressionException extends RuntimeException {
+    private static final long serialVersionUID = 1L;
+
+    private final ParseError error;
+    private final int position;
+
+    ExpressionException(ParseError error, int position, String message) {
+        super(message, null, false, false);
+        this.error = error;
+        this.position = position;
+    }
+
+    public ParseError error() {
+        return error;
+    }
+
+    // Offset of the offending token in the input
+    public int position() {
+        return position;
+    }
+}
@@ -0,0 +1,324 @@
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+// Rewrites a postfix program into a cheaper equivalent one. The program is
+// rebuilt as a DAG with identical subtrees merged, simplified bottom-up while
+// building, and emitted again with every shared subtree computed once and
+// kept in a temp slot (STORE / LOAD).
+//
+// Every rewrite gives bit-identical results except small integer powers,
+// which become multiplications: x^2 is then correctly rounded, x^3 and x^4
+// can be up to 2 ulp off where Math.pow promises 1. Calls to pure functions
+// are folded and merged like operators; impure calls are left alone.
+final class ExpressionOptimizer {
+    private static final int MAX_UNROLLED_POWER = 4;
+
+    private byte[] op = new byte[16];
+    private int[] left = new int[16];
+    private int[] right = new int[16];
+    private double[] value = new double[16];
+    private int count;
+    private final Map<Node, Integer> interned = new HashMap<>();
+
+    private record Node(byte op, int left, int right, long bits) {
+    }
+
+    ExpressionOptimizer() {
+    }
+
+    static Expression optimize(Expression expression) {
+        ExpressionOptimizer graph = new ExpressionOptimizer();
+        return graph.emit(graph.build(expression), expression.variables(), expression.size());
+    }
+
+    // Adds the program's nodes to the graph and returns its root
+    int build(Expression expression) {
+        return build(expression, null);
+    }
+
+    // Like build(Expression), but with variable slot i replaced by node bindings[i]
+    int build(Expression expression, int[] bindings) {
+        byte[] ops = expression.ops();
+        int[] args = expression.args();
+        double[] constants = expression.constants();
+        int[] stack = new int[Math.max(1, expression.maxStack())];
+        int[] temps = new int[expression.temps()];
+        int sp = -1;
+        for (int pc = 0; pc < ops.length; pc++) {
+            switch (ops[pc]) {
+                case Expression.CONST -> stack[++sp] = constant(constants[args[pc]]);
+                case Expression.VAR -> stack[++sp] = bindings == null ? variable(args[pc]) : bindings[args[pc]];
+                case Expression.NEG -> stack[sp] = negate(stack[sp]);
+                case Expression.STORE -> temps[args[pc]] = stack[sp];
+                case Expression.LOAD -> stack[++sp] = temps[args[pc]];
+                case Expression.CALL -> {
+                    switch (FunctionRegistry.get(args[pc]).arity()) {
+                        case 0 -> stack[++sp] = call(args[pc], 0, 0);
+                        case 1 -> stack[sp] = call(args[pc], stack[sp], 0);
+                        default -> { sp--; stack[sp] = call(args[pc], stack[sp], stack[sp + 1]); }
+                    }
+                }
+                default -> { sp--; stack[sp] = binary(ops[pc], stack[sp], stack[sp + 1]); }
+            }
+        }
+        return stack[0];
+    }
+
+    // Graph access; node ids are ordered so that children come before their parents
+
+    int count() {
+        return count;
+    }
+
+    byte op(int node) {
+        return op[node];
+    }
+
+    int left(int node) {
+        return left[node];
+    }
+
+    int right(int node) {
+        return right[node];
+    }
+
+    double value(int node) {
+        return value[node];
+    }
+
+    // FunctionRegistry index of a CALL node, kept in its value
+    int function(int node) {
+        return (int) value[node];
+    }
+
+    // Number of children: 0 for leaves, then left and right in that order
+    int arity(int node) {
+        return switch (op[node]) {
+            case Expression.CONST, Expression.VAR -> 0;
+            case Expression.NEG -> 1;
+            case Expression.CALL -> FunctionRegistry.get(function(node)).arity();
+            default -> 2;
+        };
+    }
+
+    // Node constructors; each simplifies using only rewrites that keep IEEE results
+
+    int variable(int slot) {
+        return intern(Expression.VAR, slot, 0, 0);
+    }
+
+    int negate(int a) {
+        if (op[a] == Expression.CONST) return constant(-value[a]);
+        if (op[a] == Expression.NEG) return left[a];
+        return intern(Expression.NEG, a, 0, 0);
+    }
+
+    int binary(byte code, int a, int b) {
+        if (op[a] == Expression.CONST && op[b] == Expression.CONST) return constant(fold(code, value[a], value[b]));
+        switch (code) {
+            case Expression.ADD -> {
+                // x + (-0) == x for every x; x + 0 is not (-0 + 0 is +0)
+                if (isConstant(b, -0.0)) return a;
+                if (isConstant(a, -0.0)) return b;
+            }
+            case Expression.SUB -> {
+                if (isConstant(b, 0.0)) return a;
+            }
+            case Expression.MUL -> {
+                if (isConstant(b, 1.0)) return a;
+                if (isConstant(a, 1.0)) return b;
+                if (isConstant(b, -1.0)) return negate(a);
+                if (isConstant(a, -1.0)) return negate(b);
+            }
+            case Expression.DIV -> {
+                if (isConstant(b, 1.0)) return a;
+                if (isConstant(b, -1.0)) return negate(a);
+            }
+            case Expression.POW -> {
+                if (op[b] == Expression.CONST) {
+                    double y = value[b];
+                    // Math.pow defines both exactly, NaN base included
+                    if (y == 0) return constant(1.0);
+                    if (y == 1) return a;
+                    if (y == Math.rint(y) && y > 1 && y <= MAX_UNROLLED_POWER) return power(a, (int) y);
+                }
+            }
+            default -> { }
+        }
+        // Addition and multiplication commute exactly, so order operands to merge a+b with b+a
+        if ((code == Expression.ADD || code == Expression.MUL) && a > b) return intern(code, b, a, 0);
+        return intern(code, a, b, 0);
+    }
+
+    // function(a) or function(a, b), with unused arguments ignored
+    int call(int function, int a, int b) {
+        MathFunction f = FunctionRegistry.get(function);
+        int arity = f.arity();
+        if (arity < 2) b = 0;
+        if (arity < 1) a = 0;
+        if (!f.isPure()) return append(Expression.CALL, a, b, function);
+        if ((arity < 1 || op[a] == Expression.CONST) && (arity < 2 || op[b] == Expression.CONST)) {
+            return constant(switch (arity) {
+                case 0 -> f.apply();
+                case 1 -> f.apply(value[a]);
+                default -> f.apply(value[a], value[b]);
+            });
+        }
+        int node = intern(Expression.CALL, a, b, function);
+        value[node] = function;
+        return node;
+    }
+
+    // x^n by squaring; the repeated operand becomes a shared node
+    private int power(int base, int n) {
+        if (n == 1) return base;
+        int half = power(base, n / 2);
+        int square = binary(Expression.MUL, half, half);
+        return (n & 1) == 0 ? square : binary(Expression.MUL, square, base);
+    }
+
+    static double fold(byte code, double a, double b) {
+        return switch (code) {
+            case Expression.ADD -> a + b;
+            case Expression.SUB -> a - b;
+            case Expression.MUL -> a * b;
+            case Expression.DIV -> a / b;
+            case Expression.MOD -> a % b;
+            case Expression.POW -> Math.pow(a, b);
+            default -> throw new IllegalStateException("Bad opcode " + code);
+        };
+    }
+
+    private boolean isConstant(int node, double expected) {
+        return op[node] == Expression.CONST
+                && Double.doubleToRawLongBits(value[node]) == Double.doubleToRawLongBits(expected);
+    }
+
+    int constant(double v) {
+        int node = intern(Expression.CONST, 0, 0, Double.doubleToRawLongBits(v));
+        value[node] = v;
+        return node;
+    }
+
+    private int intern(byte code, int a, int b, long bits) {
+        Node key = new Node(code, a, b, bits);
+        Integer existing = interned.get(key);
+        if (existing != null) return existing;
+        int node = append(code, a, b, 0);
+        interned.put(key, node);
+        return node;
+    }
+
+    // A new node that is never merged with another
+    private int append(byte code, int a, int b, double v) {
+        if (count == op.length) {
+            op = Arrays.copyOf(op, count * 2);
+            left = Arrays.copyOf(left, count * 2);
+            right = Arrays.copyOf(right, count * 2);
+            value = Arrays.copyOf(value, count * 2);
+        }
+        op[count] = code;
+        left[count] = a;
+        right[count] = b;
+        value[count] = v;
+        return count++;
+    }
+
+    // Emission
+
+    private static boolean isLeaf(byte code) {
+        return code == Expression.CONST || code == Expression.VAR;
+    }
+
+    // Emits the subgraph under root as a program, sharing repeated subtrees through temps
+    Expression emit(int root, String[] variables, int sourceSize) {
+        // Children are always created before their parents, so one pass from
+        // the root downwards sees every parent of a node before the node itself
+        int[] uses = new int[count];
+        uses[root] = 1;
+        for (int n = root; n >= 0; n--) {
+            if (uses[n] == 0) continue;
+            int arity = arity(n);
+            if (arity > 0) uses[left[n]]++;
+            if (arity > 1) uses[right[n]]++;
+        }
+        // Leaves are cheaper to reload than to keep in a temp
+        int[] temp = new int[count];
+        Arrays.fill(temp, -1);
+        int temps = 0;
+        for (int n = 0; n <= root; n++) {
+            if (uses[n] > 1 && !isLeaf(op[n])) temp[n] = temps++;
+        }
+
+        byte[] ops = new byte[16];
+        int[] args = new int[16];
+        int size = 0;
+        Map<Long, Integer> constantIndex = new HashMap<>();
+        double[] constants = new double[8];
+        int constantCount = 0;
+        int depth = 0, maxDepth = 0;
+        boolean[] stored = new boolean[count];
+
+        // Iterative post-order walk; state 0 = children pending, 1 = left done, 2 = both done
+        int[] work = new int[16];
+        byte[] state = new byte[16];
+        int top = 0;
+        work[0] = root;
+        state[0] = 0;
+        while (top >= 0) {
+            int n = work[top];
+            byte code = op[n];
+            boolean loaded = temp[n] >= 0 && stored[n];
+            if (!loaded && state[top] < arity(n)) {
+                int child = state[top]++ == 0 ? left[n] : right[n];
+                if (++top == work.length) {
+                    work = Arrays.copyOf(work, top * 2);
+                    state = Arrays.copyOf(state, top * 2);
+                }
+                work[top] = child;
+                state[top] = 0;
+                continue;
+            }
+            top--;
+
+            if (size + 2 > ops.length) {
+                ops = Arrays.copyOf(ops, ops.length * 2);
+                args = Arrays.copyOf(args, args.length * 2);
+            }
+            if (loaded) {
+                ops[size] = Expression.LOAD;
+                args[size++] = temp[n];
+                maxDepth = Math.max(maxDepth, ++depth);
+                continue;
+            }
+            int arg = 0;
+            if (code == Expression.CONST) {
+                Integer index = constantIndex.get(Double.doubleToRawLongBits(value[n]));
+                if (index == null) {
+                    if (constantCount == constants.length) constants = Arrays.copyOf(constants, constantCount * 2);
+                    constants[constantCount] = value[n];
+                    index = constantCount++;
+                    constantIndex.put(Double.doubleToRawLongBits(value[n]), index);
+                }
+                arg = index;
+            } else if (code == Expression.VAR) {
+                arg = left[n];
+            } else if (code == Expression.CALL) {
+                arg = function(n);
+            }
+            ops[size] = code;
+            args[size++] = arg;
+            depth += 1 - arity(n);
+            maxDepth = Math.max(maxDepth, depth);
+            if (temp[n] >= 0) {
+                ops[size] = Expression.STORE;
+                args[size++] = temp[n];
+                stored[n] = true;
+            }
+        }
+
+        return new Expression(Arrays.copyOf(ops, size), Arrays.copyOf(args, size),
+                Arrays.copyOf(constants, constantCount), variables, maxDepth, temps, sourceSize);
+    }
+}
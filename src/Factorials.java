@@ -0,0 +1,204 @@
+import java.math.BigInteger;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+// Exact factorials via the prime swing algorithm, n! = (n/2)!^2 * swing(n),
+// with the swing built from prime powers and multiplied as a balanced product
+// tree (forked across cores for large n). Also gamma / log-gamma for the
+// non-integer and overflowing cases, and display formatting that never
+// needs the full decimal expansion.
+public final class Factorials {
+    static final int DISPLAY_DIGITS = 40;
+    // Above this, display() switches to log-gamma instead of the exact product;
+    // it shows only the leading digits, which log-gamma gets right far sooner
+    static final int MAX_EXACT = Integer.getInteger("calculator.factorial.maxExact", 10_000);
+    // Total size of the cached factorials; 1,000,000! alone is about 18.5 million bits
+    private static final long CACHE_BITS = Long.getLong("calculator.factorial.cacheBits", 64L * 1024 * 1024);
+    private static final int SEQUENTIAL_FACTORS = 512;
+    private static final double LOG10_2 = Math.log10(2);
+    private static final double[] LANCZOS = {
+            0.99999999999980993, 676.5203681218851, -1259.1392167224028, 771.32342877765313,
+            -176.61502916214059, 12.507343278686905, -0.13857109526572012, 9.9843695780195716e-6,
+            1.5056327351493116e-7
+    };
+
+    // Least recently used first; guarded by itself, as is cachedBits
+    private static final Map<Integer, BigInteger> cache = new LinkedHashMap<>(16, 0.75f, true);
+    private static long cachedBits;
+
+    private Factorials() {
+    }
+
+    public static BigInteger factorial(int n) {
+        if (n < 0) throw new IllegalArgumentException("Factorial of negative number");
+        synchronized (cache) {
+            BigInteger cached = cache.get(n);
+            if (cached != null) return cached;
+        }
+        BigInteger result = compute(n);
+        if (result.bitLength() > CACHE_BITS) return result;
+        synchronized (cache) {
+            if (cache.put(n, result) == null) cachedBits += result.bitLength();
+            for (Iterator<BigInteger> eldest = cache.values().iterator(); cachedBits > CACHE_BITS; ) {
+                cachedBits -= eldest.next().bitLength();
+                eldest.remove();
+            }
+        }
+        return result;
+    }
+
+    // Uncached computation
+    static BigInteger compute(int n) {
+        if (n < 2) return BigInteger.ONE;
+        int[] primes = primesUpTo(n);
+        // n! = oddPart(n!) * 2^(n - popcount(n))
+        return oddFactorial(n, primes).shiftLeft(n - Integer.bitCount(n));
+    }
+
+    private static BigInteger oddFactorial(int n, int[] primes) {
+        if (n < 2) return BigInteger.ONE;
+        BigInteger half = oddFactorial(n / 2, primes);
+        return half.multiply(half).multiply(oddSwing(n, primes));
+    }
+
+    // Odd part of n! / (n/2)!^2: each odd prime p appears with exponent sum(floor(n / p^i) mod 2)
+    private static BigInteger oddSwing(int n, int[] primes) {
+        long[] factors = new long[primes.length];
+        int count = 0;
+        for (int p : primes) {
+            if (p > n) break;
+            if (p == 2) continue;
+            long factor = 1;
+            int q = n;
+            while ((q /= p) > 0) {
+                if ((q & 1) == 1) factor *= p;
+            }
+            if (factor > 1) factors[count++] = factor;
+        }
+        return product(factors, 0, count);
+    }
+
+    static BigInteger product(long[] factors, int from, int to) {
+        Thread caller = Thread.currentThread();
+        if (to - from > SEQUENTIAL_FACTORS * 4) {
+            return ForkJoinPool.commonPool().invoke(new ProductTask(factors, from, to, caller));
+        }
+        return sequentialProduct(factors, from, to, caller);
+    }
+
+    private static BigInteger sequentialProduct(long[] factors, int from, int to, Thread caller) {
+        if (caller.isInterrupted()) throw new CancellationException("Factorial cancelled");
+        int length = to - from;
+        if (length == 0) return BigInteger.ONE;
+        if (length <= 8) {
+            BigInteger result = BigInteger.valueOf(factors[from]);
+            for (int i = from + 1; i < to; i++) {
+                result = result.multiply(BigInteger.valueOf(factors[i]));
+            }
+            return result;
+        }
+        int mid = (from + to) >>> 1;
+        return sequentialProduct(factors, from, mid, caller).multiply(sequentialProduct(factors, mid, to, caller));
+    }
+
+    @SuppressWarnings("serial")
+    private static final class ProductTask extends RecursiveTask<BigInteger> {
+        private final long[] factors;
+        private final int from, to;
+        private final Thread caller; // polled for cancellation from the pool threads
+
+        ProductTask(long[] factors, int from, int to, Thread caller) {
+            this.factors = factors;
+            this.from = from;
+            this.to = to;
+            this.caller = caller;
+        }
+
+        @Override
+        protected BigInteger compute() {
+            if (to - from <= SEQUENTIAL_FACTORS) return sequentialProduct(factors, from, to, caller);
+            int mid = (from + to) >>> 1;
+            ProductTask left = new ProductTask(factors, from, mid, caller);
+            left.fork();
+            BigInteger right = new ProductTask(factors, mid, to, caller).compute();
+            return left.join().multiply(right);
+        }
+    }
+
+    private static int[] primesUpTo(int n) {
+        boolean[] composite = new boolean[n + 1];
+        int count = 0;
+        for (int i = 2; i <= n; i++) {
+            if (!composite[i]) {
+                count++;
+                for (long j = (long) i * i; j <= n; j += i) composite[(int) j] = true;
+            }
+        }
+        int[] primes = new int[count];
+        for (int i = 2, k = 0; i <= n; i++) {
+            if (!composite[i]) primes[k++] = i;
+        }
+        return primes;
+    }
+
+    // Lanczos approximation (g = 7), with the reflection formula below 0.5
+    public static double gamma(double x) {
+        if (x < 0.5) return Math.PI / (Math.sin(Math.PI * x) * gamma(1 - x));
+        x -= 1;
+        double a = LANCZOS[0];
+        double t = x + 7.5;
+        for (int i = 1; i < LANCZOS.length; i++) {
+            a += LANCZOS[i] / (x + i);
+        }
+        return Math.sqrt(2 * Math.PI) * Math.pow(t, x + 0.5) * Math.exp(-t) * a;
+    }
+
+    // log|gamma(x)|, finite far beyond where gamma itself overflows
+    public static double logGamma(double x) {
+        if (x < 0.5) return Math.log(Math.PI / Math.abs(Math.sin(Math.PI * x))) - logGamma(1 - x);
+        x -= 1;
+        double a = LANCZOS[0];
+        double t = x + 7.5;
+        for (int i = 1; i < LANCZOS.length; i++) {
+            a += LANCZOS[i] / (x + i);
+        }
+        return 0.5 * Math.log(2 * Math.PI) + (x + 0.5) * Math.log(t) - t + Math.log(a);
+    }
+
+    // x! for display: exact for non-negative integers up to MAX_EXACT, gamma(x + 1)
+    // otherwise; factorial() gives every digit at any size
+    public static String display(double x) {
+        if (Double.isNaN(x) || Double.isInfinite(x)) throw new IllegalArgumentException("Invalid factorial argument");
+        if (x == Math.rint(x)) {
+            if (x < 0) throw new IllegalArgumentException("Factorial of negative number");
+            if (x <= MAX_EXACT) return format(factorial((int) x), DISPLAY_DIGITS);
+        }
+        // gamma(x + 1) overflows a double beyond x ~ 170.6
+        if (x < 170) return String.valueOf(gamma(x + 1));
+        return formatLog10(logGamma(x + 1) / Math.log(10));
+    }
+
+    // Exact digits when short enough, otherwise mantissa and exponent taken from the top bits
+    public static String format(BigInteger value, int maxDigits) {
+        int bits = value.bitLength();
+        if (bits <= 63 || (int) (bits * LOG10_2) + 1 <= maxDigits) return value.toString();
+        int shift = bits - 63;
+        double log10 = Math.log10(value.shiftRight(shift).doubleValue()) + shift * LOG10_2;
+        return formatLog10(log10);
+    }
+
+    private static String formatLog10(double log10) {
+        long exponent = (long) Math.floor(log10);
+        double mantissa = Math.pow(10, log10 - exponent);
+        if (mantissa >= 9.9999999995) {
+            mantissa /= 10;
+            exponent++;
+        }
+        return String.format(Locale.ROOT, "%.9fE%d", mantissa, exponent);
+    }
+}
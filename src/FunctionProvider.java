@@ -0,0 +1,8 @@
+import java.util.Collection;
+
+// Service interface for adding functions to expressions without editing the
+// calculator: list an implementation in META-INF/services/FunctionProvider
+// on the class path and its functions are registered at startup.
+public interface FunctionProvider {
+    Collection<MathFunction> functions();
+}
@@ -0,0 +1,183 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.ServiceConfigurationError;
+import java.util.ServiceLoader;
+import java.util.function.DoubleBinaryOperator;
+import java.util.function.DoubleSupplier;
+import java.util.function.DoubleUnaryOperator;
+
+// Every function expressions can call: the built-ins below plus whatever
+// FunctionProviders the ServiceLoader finds. Fixed once the class loads.
+// Compiled programs refer to a function by its index here, and names are
+// found through an open-addressing hash table that the parser probes with a
+// range of the input, so resolving a call is O(1) and allocates nothing.
+public final class FunctionRegistry {
+    private static final MathFunction[] FUNCTIONS;
+    private static final int[] TABLE; // function index + 1, or 0 for an empty slot
+
+    static {
+        List<MathFunction> functions = new ArrayList<>(List.of(
+                unary("sin", Math::sin, "sin", "cos(x)"),
+                unary("cos", Math::cos, "cos", "-sin(x)"),
+                unary("tan", Math::tan, "tan", "1/cos(x)^2"),
+                unary("asin", Math::asin, "asin", "1/sqrt(1 - x^2)"),
+                unary("acos", Math::acos, "acos", "-1/sqrt(1 - x^2)"),
+                unary("atan", Math::atan, "atan", "1/(1 + x^2)"),
+                unary("sinh", Math::sinh, "sinh", "cosh(x)"),
+                unary("cosh", Math::cosh, "cosh", "sinh(x)"),
+                unary("tanh", Math::tanh, "tanh", "1/cosh(x)^2"),
+                unary("sqrt", Math::sqrt, "sqrt", "0.5/sqrt(x)"),
+                unary("cbrt", Math::cbrt, "cbrt", "1/(3*cbrt(x)^2)"),
+                unary("exp", Math::exp, "exp", "exp(x)"),
+                unary("ln", Math::log, "log", "1/x"),
+                unary("log", Math::log10, "log10", "1/(x*ln(10))"),
+                unary("abs", Math::abs, "abs", "x/abs(x)"),
+                // Flat between their jumps, like %
+                unary("floor", Math::floor, "floor", "0"),
+                unary("ceil", Math::ceil, "ceil", "0"),
+                // Halves round away from zero, as on a calculator; Math.rint would round them to even
+                unary("round", FunctionRegistry::round, null, "0"),
+                unary("sign", Math::signum, "signum", "0"),
+                binary("min", Math::min, "min"),
+                binary("max", Math::max, "max"),
+                binary("atan2", Math::atan2, "atan2"),
+                binary("hypot", Math::hypot, "hypot"),
+                binary("pow", Math::pow, "pow"),
+                new Builtin("rand", 0, false, null, null, Math::random, "random", null)));
+        try {
+            for (FunctionProvider provider : ServiceLoader.load(FunctionProvider.class)) {
+                for (MathFunction function : provider.functions()) {
+                    if (indexOf(functions, function.name()) >= 0) {
+                        System.err.println("Ignoring " + function + " from " + provider.getClass().getName()
+                                + ": the name is taken");
+                    } else {
+                        functions.add(function);
+                    }
+                }
+            }
+        } catch (ServiceConfigurationError e) {
+            System.err.println("Function providers not loaded: " + e.getMessage());
+        }
+        FUNCTIONS = functions.toArray(new MathFunction[0]);
+        TABLE = new int[Integer.highestOneBit(FUNCTIONS.length * 4 - 1) << 1];
+        for (int i = 0; i < FUNCTIONS.length; i++) {
+            String name = FUNCTIONS[i].name();
+            int slot = name.hashCode() & (TABLE.length - 1);
+            while (TABLE[slot] != 0) slot = (slot + 1) & (TABLE.length - 1);
+            TABLE[slot] = i + 1;
+        }
+    }
+
+    private FunctionRegistry() {
+    }
+
+    public static MathFunction lookup(String name) {
+        int index = find(name, 0, name.length());
+        return index < 0 ? null : FUNCTIONS[index];
+    }
+
+    public static List<MathFunction> functions() {
+        return Collections.unmodifiableList(Arrays.asList(FUNCTIONS));
+    }
+
+    // Index of the function spelled by text[start, end), or -1
+    static int find(CharSequence text, int start, int end) {
+        int hash = 0;
+        for (int i = start; i < end; i++) hash = 31 * hash + text.charAt(i);
+        for (int slot = hash & (TABLE.length - 1); TABLE[slot] != 0; slot = (slot + 1) & (TABLE.length - 1)) {
+            String name = FUNCTIONS[TABLE[slot] - 1].name();
+            if (name.length() == end - start && matches(name, text, start)) return TABLE[slot] - 1;
+        }
+        return -1;
+    }
+
+    static MathFunction get(int index) {
+        return FUNCTIONS[index];
+    }
+
+    // Entry points for generated bytecode, which pushes the function index after the arguments
+
+    static double call(int index) {
+        return FUNCTIONS[index].apply();
+    }
+
+    static double call(double x, int index) {
+        return FUNCTIONS[index].apply(x);
+    }
+
+    static double call(double x, double y, int index) {
+        return FUNCTIONS[index].apply(x, y);
+    }
+
+    // Math.round on the magnitude, so -2.5 goes to -3; beyond 2^52 every double is whole
+    private static double round(double x) {
+        if (!(Math.abs(x) < 0x1p52)) return x;
+        return x < 0 ? -Math.round(-x) : Math.round(x);
+    }
+
+    private static boolean matches(String name, CharSequence text, int start) {
+        for (int i = 0; i < name.length(); i++) {
+            if (name.charAt(i) != text.charAt(start + i)) return false;
+        }
+        return true;
+    }
+
+    private static int indexOf(List<MathFunction> functions, String name) {
+        for (int i = 0; i < functions.size(); i++) {
+            if (functions.get(i).name().equals(name)) return i;
+        }
+        return -1;
+    }
+
+    private static MathFunction unary(String name, DoubleUnaryOperator f, String intrinsic, String derivative) {
+        return new Builtin(name, 1, true, f, null, null, intrinsic, derivative);
+    }
+
+    private static MathFunction binary(String name, DoubleBinaryOperator f, String intrinsic) {
+        return new Builtin(name, 2, true, null, f, null, intrinsic, null);
+    }
+
+    private static final class Builtin extends MathFunction {
+        private final DoubleUnaryOperator unary;
+        private final DoubleBinaryOperator binary;
+        private final DoubleSupplier nullary;
+        private final String intrinsic, derivative;
+
+        Builtin(String name, int arity, boolean pure, DoubleUnaryOperator unary, DoubleBinaryOperator binary,
+                DoubleSupplier nullary, String intrinsic, String derivative) {
+            super(name, arity, pure);
+            this.unary = unary;
+            this.binary = binary;
+            this.nullary = nullary;
+            this.intrinsic = intrinsic;
+            this.derivative = derivative;
+        }
+
+        @Override
+        public double apply() {
+            return nullary.getAsDouble();
+        }
+
+        @Override
+        public double apply(double x) {
+            return unary.applyAsDouble(x);
+        }
+
+        @Override
+        public double apply(double x, double y) {
+            return binary.applyAsDouble(x, y);
+        }
+
+        @Override
+        String intrinsic() {
+            return intrinsic;
+        }
+
+        @Override
+        String derivative() {
+            return derivative;
+        }
+    }
+}
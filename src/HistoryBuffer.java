@@ -0,0 +1,82 @@
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+// Fixed-capacity ring buffer of history entries, oldest first. Adding to a
+// full buffer overwrites the oldest entry and hands it back to the caller.
+public final class HistoryBuffer implements Iterable<String> {
+    public static final int DEFAULT_CAPACITY = Integer.getInteger("calculator.history.size", 1000);
+
+    private final String[] entries;
+    private int head;
+    private int size;
+
+    public HistoryBuffer(int capacity) {
+        if (capacity < 1) throw new IllegalArgumentException("Capacity must be positive: " + capacity);
+        entries = new String[capacity];
+    }
+
+    // Returns the evicted entry, or null if the buffer was not full
+    public String add(String entry) {
+        String evicted = null;
+        int tail = (head + size) % entries.length;
+        if (size == entries.length) {
+            evicted = entries[head];
+            head = (head + 1) % entries.length;
+        } else {
+            size++;
+        }
+        entries[tail] = entry;
+        return evicted;
+    }
+
+    public String removeOldest() {
+        if (size == 0) throw new NoSuchElementException();
+        String oldest = entries[head];
+        entries[head] = null;
+        head = (head + 1) % entries.length;
+        size--;
+        return oldest;
+    }
+
+    public String get(int index) {
+        if (index < 0 || index >= size) throw new IndexOutOfBoundsException("Index: " + index + ", size: " + size);
+        return entries[(head + index) % entries.length];
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public int capacity() {
+        return entries.length;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public void clear() {
+        Arrays.fill(entries, null);
+        head = 0;
+        size = 0;
+    }
+
+    @Override
+    public Iterator<String> iterator() {
+        return new Iterator<>() {
+            private int next;
+
+            @Override
+            public boolean hasNext() {
+                return next < size;
+            }
+
+            @Override
+            public String next() {
+                if (next >= size) throw new NoSuchElementException();
+                return get(next++);
+            }
+        };
+    }
+}
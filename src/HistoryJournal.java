@@ -0,0 +1,184 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+
+// Append-only history file with one UTF-8 entry per line. Appends are queued
+// and written by a background thread in batches, so callers never wait on
+// disk. A last line without its '\n' is a torn write and is cut off on open.
+// After a write fails the journal is disabled and drops further entries.
+public final class HistoryJournal implements AutoCloseable {
+    public static final Path DEFAULT_PATH = Path.of(System.getProperty("calculator.history.file",
+            System.getProperty("user.home") + "/.scientific-calculator/history.log"));
+
+    private static final int BLOCK_SIZE = 64 * 1024;
+    private static final String CLOSE = new String("close");
+    private static final String CLEAR = new String("clear");
+
+    private final FileChannel channel;
+    private final BlockingQueue<String> queue = new LinkedBlockingQueue<>();
+    private final Thread writer;
+    private volatile boolean disabled;
+
+    private HistoryJournal(FileChannel channel) {
+        this.channel = channel;
+        this.writer = new Thread(this::writeLoop, "history-journal");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    public static HistoryJournal open(Path path) throws IOException {
+        Path parent = path.toAbsolutePath().getParent();
+        if (parent != null) Files.createDirectories(parent);
+        FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+        try {
+            channel.truncate(endOfLastRecord(channel));
+            channel.position(channel.size());
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+        HistoryJournal journal = new HistoryJournal(channel);
+        Runtime.getRuntime().addShutdownHook(new Thread(journal::closeQuietly));
+        return journal;
+    }
+
+    // Never blocks; the entry is written by the journal thread
+    public void append(String entry) {
+        if (disabled) return;
+        queue.add(entry.replace('\n', ' ').replace('\r', ' '));
+    }
+
+    // Empties the file once the entries queued before this are dropped
+    public void clear() {
+        if (disabled) return;
+        queue.add(CLEAR);
+    }
+
+    // Reads the last n entries by scanning backwards from the end of the file,
+    // so the cost depends on n, not on how long the journal has grown
+    public List<String> readLast(int n) throws IOException {
+        long end;
+        synchronized (channel) {
+            end = endOfLastRecord(channel);
+        }
+        long start = end;
+        int newlines = 0;
+        ByteBuffer block = ByteBuffer.allocate(BLOCK_SIZE);
+        // The byte at end - 1 is the last record's '\n'; we need the (n + 1)th one back
+        scan:
+        while (start > 0) {
+            int length = (int) Math.min(BLOCK_SIZE, start);
+            readFully(block, start - length, length);
+            for (int i = length - 1; i >= 0; i--) {
+                if (block.get(i) == '\n' && ++newlines > n) {
+                    start = start - length + i + 1;
+                    break scan;
+                }
+            }
+            start -= length;
+        }
+
+        List<String> entries = new ArrayList<>(n);
+        ByteBuffer bytes = ByteBuffer.allocate((int) (end - start));
+        readFully(bytes, start, bytes.capacity());
+        byte[] array = bytes.array();
+        int lineStart = 0;
+        for (int i = 0; i < array.length; i++) {
+            if (array[i] == '\n') {
+                entries.add(new String(array, lineStart, i - lineStart, StandardCharsets.UTF_8));
+                lineStart = i + 1;
+            }
+        }
+        return entries;
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (writer.isAlive()) {
+            queue.add(CLOSE);
+            try {
+                writer.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        channel.close();
+    }
+
+    private void closeQuietly() {
+        try {
+            close();
+        } catch (IOException ignored) {
+            // Exiting anyway; the next open() trims any torn record
+        }
+    }
+
+    private void writeLoop() {
+        List<String> batch = new ArrayList<>();
+        StringBuilder sb = new StringBuilder();
+        try {
+            while (true) {
+                batch.add(queue.take());
+                queue.drainTo(batch);
+                boolean closing = batch.removeIf(entry -> entry == CLOSE);
+                int cleared = -1; // only entries after the last CLEAR survive
+                for (int i = 0; i < batch.size(); i++) {
+                    if (batch.get(i) == CLEAR) cleared = i;
+                }
+                sb.setLength(0);
+                for (String entry : batch.subList(cleared + 1, batch.size())) {
+                    sb.append(entry).append('\n');
+                }
+                batch.clear();
+                ByteBuffer buffer = StandardCharsets.UTF_8.encode(sb.toString());
+                synchronized (channel) {
+                    // Truncating also moves the position back to the new end
+                    if (cleared >= 0) channel.truncate(0);
+                    while (buffer.hasRemaining()) channel.write(buffer);
+                }
+                if (closing) return;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (IOException e) {
+            disabled = true;
+            queue.clear();
+            System.err.println("History journal disabled: " + e.getMessage());
+        }
+    }
+
+    private void readFully(ByteBuffer buffer, long position, int length) throws IOException {
+        buffer.clear().limit(length);
+        while (buffer.hasRemaining()) {
+            int read = channel.read(buffer, position + buffer.position());
+            if (read < 0) throw new IOException("Unexpected end of journal");
+        }
+    }
+
+    // Offset just past the last '\n', i.e. the end of the last complete record
+    private static long endOfLastRecord(FileChannel channel) throws IOException {
+        long end = channel.size();
+        ByteBuffer block = ByteBuffer.allocate(BLOCK_SIZE);
+        while (end > 0) {
+            int length = (int) Math.min(BLOCK_SIZE, end);
+            block.clear().limit(length);
+            while (block.hasRemaining()) {
+                if (channel.read(block, end - length + block.position()) < 0) break;
+            }
+            for (int i = length - 1; i >= 0; i--) {
+                if (block.get(i) == '\n') return end - length + i + 1;
+            }
+            end -= length;
+        }
+        return 0;
+    }
+}
@@ -0,0 +1,60 @@
+import javax.swing.AbstractListModel;
+import java.util.List;
+
+// List model over a HistoryBuffer. Each add fires at most one removal (the
+// evicted oldest row) and one insertion, so a JList with fixed cell metrics
+// only lays out and paints the rows that are visible.
+@SuppressWarnings("serial")
+public final class HistoryListModel extends AbstractListModel<String> {
+    private final HistoryBuffer buffer;
+
+    public HistoryListModel(int capacity) {
+        buffer = new HistoryBuffer(capacity);
+    }
+
+    public void add(String entry) {
+        if (buffer.size() == buffer.capacity()) {
+            buffer.removeOldest();
+            fireIntervalRemoved(this, 0, 0);
+        }
+        buffer.add(entry);
+        int last = buffer.size() - 1;
+        fireIntervalAdded(this, last, last);
+    }
+
+    // Bulk load, e.g. from the journal on startup; fires a single event
+    public void addAll(List<String> entries) {
+        if (entries.isEmpty()) return;
+        int oldSize = buffer.size();
+        for (String entry : entries) {
+            if (buffer.size() == buffer.capacity()) buffer.removeOldest();
+            buffer.add(entry);
+        }
+        if (oldSize == 0) {
+            fireIntervalAdded(this, 0, buffer.size() - 1);
+        } else {
+            fireContentsChanged(this, 0, buffer.size() - 1);
+        }
+    }
+
+    public void clear() {
+        int size = buffer.size();
+        if (size == 0) return;
+        buffer.clear();
+        fireIntervalRemoved(this, 0, size - 1);
+    }
+
+    public HistoryBuffer entries() {
+        return buffer;
+    }
+
+    @Override
+    public int getSize() {
+        return buffer.size();
+    }
+
+    @Override
+    public String getElementAt(int index) {
+        return buffer.get(index);
+    }
+}
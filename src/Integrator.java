@@ -0,0 +1,231 @@
+import java.util.Arrays;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Definite integrals of a compiled expression by adaptive Gauss-Kronrod
+// quadrature. Each interval gets the 15-point Kronrod rule, with the
+// embedded 7-point Gauss rule as its error estimate; intervals that miss
+// their share of the tolerance are bisected, and the halves run as fork/join
+// tasks. Where f is infinite or undefined at an end point, the interval is
+// mapped through x = a + (b - a) t^2 (3 - 2t), whose derivative vanishes at
+// both ends and flattens singularities such as 1/sqrt(x).
+public final class Integrator {
+    static final double DEFAULT_TOLERANCE = 1e-10;
+    static final long DEFAULT_MAX_EVALUATIONS = 10_000_000;
+    private static final double EPSILON = Math.ulp(1.0);
+    // Levels of bisection that fork new tasks; below them a task works through its own stack
+    private static final int FORK_DEPTH = 10;
+
+    // 15-point Kronrod nodes on [-1, 1] (the positive half; odd entries are the 7-point Gauss nodes)
+    private static final double[] NODES = {
+            0.991455371120812639206854697526329, 0.949107912342758524526189684047851,
+            0.864864423359769072789712788640926, 0.741531185599394439863864773280788,
+            0.586087235467691130294144845693013, 0.405845151377397166906606412076961,
+            0.207784955007898467600689403773245, 0.0
+    };
+    private static final double[] KRONROD_WEIGHTS = {
+            0.022935322010529224963732008058970, 0.063092092629978553290700663189204,
+            0.104790010322250183839876322541518, 0.140653259715525918745189590510238,
+            0.169004726639267902826583426598550, 0.190350578064785409913256402421014,
+            0.204432940075298892414161999234649, 0.209482141084727828012999174891714
+    };
+    private static final double[] GAUSS_WEIGHTS = {
+            0.129484966168869693270611432679082, 0.279705391489276667901467771423780,
+            0.381830050505118944950369775488975, 0.417959183673469387755102040816327
+    };
+    private static final int POINTS = 15;
+
+    private final Expression f;
+    private final int variable;
+    private final double[] bindings;
+
+    // variable is the slot of x; bindings supplies the other variables of f
+    public Integrator(Expression f, int variable, double... bindings) {
+        this.f = f;
+        this.variable = variable;
+        this.bindings = Arrays.copyOf(bindings, Math.max(bindings.length,
+                Math.max(variable + 1, f.variables().length)));
+    }
+
+    public double integrate(double a, double b) {
+        return integrate(a, b, DEFAULT_TOLERANCE, DEFAULT_MAX_EVALUATIONS);
+    }
+
+    // The integral of f from a to b, to within tolerance (absolute for results
+    // up to 1 in size, relative above that). Throws ArithmeticException if that
+    // takes more than maxEvaluations evaluations of f or the integral diverges.
+    public double integrate(double a, double b, double tolerance, long maxEvaluations) {
+        if (!Double.isFinite(a) || !Double.isFinite(b)) {
+            throw new IllegalArgumentException("Bounds must be finite: [" + a + ", " + b + "]");
+        }
+        if (!(tolerance > 0)) throw new IllegalArgumentException("Tolerance must be positive: " + tolerance);
+        if (maxEvaluations < POINTS) throw new IllegalArgumentException("Too few evaluations: " + maxEvaluations);
+        if (a == b) return 0;
+        if (a > b) return -integrate(b, a, tolerance, maxEvaluations);
+
+        double[] values = bindings.clone();
+        boolean singular = !Double.isFinite(eval(values, a)) || !Double.isFinite(eval(values, b));
+        Quadrature quadrature = new Quadrature(a, b, singular, maxEvaluations - 2, Thread.currentThread());
+        // One pass over the whole interval sets the scale for the relative tolerance
+        double[] estimate = new double[3];
+        quadrature.rule(values, 0, 1, estimate);
+        double target = tolerance * Math.max(1, Math.abs(estimate[0]));
+
+        IntervalTask task = new IntervalTask(quadrature, 0, 1, estimate, target, 0);
+        ForkJoinPool.commonPool().invoke(task);
+        if (!Double.isFinite(task.value)) throw new ArithmeticException("Integral diverges");
+        if (quadrature.exhausted) {
+            throw new ArithmeticException("No convergence within " + maxEvaluations + " evaluations");
+        }
+        if (quadrature.unresolved) throw new ArithmeticException("Integral does not converge");
+        return task.value;
+    }
+
+    private double eval(double[] values, double x) {
+        values[variable] = x;
+        return f.evaluate(values);
+    }
+
+    private static int push(double[] stack, int sp, double a, double b, double[] estimate) {
+        stack[sp++] = a;
+        stack[sp++] = b;
+        stack[sp++] = estimate[0];
+        stack[sp++] = estimate[1];
+        stack[sp++] = estimate[2];
+        return sp;
+    }
+
+    private static void checkInterrupted(Thread caller) {
+        if (caller.isInterrupted()) throw new CancellationException("Integration cancelled");
+    }
+
+    // The integrand over t in [0, 1] and the shared evaluation budget
+    private final class Quadrature {
+        private final double a, b, width;
+        private final boolean singular;
+        private final AtomicLong budget;
+        private final Thread caller; // polled for cancellation from the pool threads
+        volatile boolean exhausted, unresolved;
+
+        Quadrature(double a, double b, boolean singular, long budget, Thread caller) {
+            this.a = a;
+            this.b = b;
+            this.width = b - a;
+            this.singular = singular;
+            this.budget = new AtomicLong(budget);
+            this.caller = caller;
+        }
+
+        // Applies the rule to [lo, hi]; out receives the integral, the error estimate and
+        // the integral of |f|. Returns false, leaving out alone, once the budget is spent.
+        boolean rule(double[] values, double lo, double hi, double[] out) {
+            checkInterrupted(caller);
+            if (budget.addAndGet(-POINTS) < 0) {
+                exhausted = true;
+                return false;
+            }
+            double center = (lo + hi) / 2, half = (hi - lo) / 2;
+            double fc = integrand(values, center);
+            double kronrod = fc * KRONROD_WEIGHTS[7], gauss = fc * GAUSS_WEIGHTS[3];
+            double absolute = Math.abs(kronrod);
+            for (int i = 0; i < 7; i++) {
+                double offset = half * NODES[i];
+                double f1 = integrand(values, center - offset), f2 = integrand(values, center + offset);
+                kronrod += (f1 + f2) * KRONROD_WEIGHTS[i];
+                absolute += (Math.abs(f1) + Math.abs(f2)) * KRONROD_WEIGHTS[i];
+                if ((i & 1) == 1) gauss += (f1 + f2) * GAUSS_WEIGHTS[i >> 1];
+            }
+            out[0] = kronrod * half;
+            out[1] = Math.abs((kronrod - gauss) * half);
+            out[2] = absolute * Math.abs(half);
+            return true;
+        }
+
+        private double integrand(double[] values, double t) {
+            if (!singular) return eval(values, a + width * t) * width;
+            double x = a + width * (t * t * (3 - 2 * t));
+            // Points that round onto a singular end point carry no measurable weight
+            if (x == a || x == b) return 0;
+            return eval(values, x) * 6 * width * t * (1 - t);
+        }
+    }
+
+    @SuppressWarnings("serial")
+    private final class IntervalTask extends RecursiveAction {
+        private final Quadrature quadrature;
+        private final double lo, hi, target;
+        private final double[] estimate; // integral, error and integral of |f| over [lo, hi]
+        private final int depth;
+        double value;
+
+        IntervalTask(Quadrature quadrature, double lo, double hi, double[] estimate, double target, int depth) {
+            this.quadrature = quadrature;
+            this.lo = lo;
+            this.hi = hi;
+            this.estimate = estimate;
+            this.target = target;
+            this.depth = depth;
+        }
+
+        @Override
+        protected void compute() {
+            double[] values = bindings.clone();
+            if (depth < FORK_DEPTH) {
+                if (accepted(lo, hi, estimate[0], estimate[1], estimate[2])) {
+                    value = estimate[0];
+                    return;
+                }
+                double mid = (lo + hi) / 2;
+                double[] left = new double[3], right = new double[3];
+                if (!quadrature.rule(values, lo, mid, left) || !quadrature.rule(values, mid, hi, right)) {
+                    value = estimate[0];
+                    return;
+                }
+                IntervalTask first = new IntervalTask(quadrature, lo, mid, left, target, depth + 1);
+                IntervalTask second = new IntervalTask(quadrature, mid, hi, right, target, depth + 1);
+                invokeAll(first, second);
+                value = first.value + second.value;
+                return;
+            }
+
+            // Deep enough to keep every core busy; bisect on an explicit stack
+            double[] stack = new double[64 * 5];
+            double[] left = new double[3], right = new double[3];
+            int sp = push(stack, 0, lo, hi, estimate);
+            double sum = 0;
+            while (sp > 0) {
+                double integral = stack[sp - 3], error = stack[sp - 2], absolute = stack[sp - 1];
+                double b = stack[sp - 4], a = stack[sp - 5];
+                sp -= 5;
+                if (accepted(a, b, integral, error, absolute)) {
+                    sum += integral;
+                    continue;
+                }
+                double mid = (a + b) / 2;
+                if (sp + 10 > stack.length || !quadrature.rule(values, a, mid, left)
+                        || !quadrature.rule(values, mid, b, right)) {
+                    if (sp + 10 > stack.length) quadrature.unresolved = true;
+                    sum += integral;
+                    continue;
+                }
+                sp = push(stack, sp, mid, b, right);
+                sp = push(stack, sp, a, mid, left);
+            }
+            value = sum;
+        }
+
+        // Whether [a, b] meets its share of the target, or cannot usefully be split
+        private boolean accepted(double a, double b, double integral, double error, double absolute) {
+            if (error <= target * (b - a) || error <= 64 * EPSILON * absolute) return true;
+            if (!Double.isFinite(integral)) return true; // reported as divergence
+            double mid = (a + b) / 2;
+            if (mid <= a || mid >= b) {
+                quadrature.unresolved = true;
+                return true;
+            }
+            return false;
+        }
+    }
+}
@@ -0,0 +1,78 @@
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+// Lock-free histogram of non-negative values (nanoseconds, usually) in the
+// style of HdrHistogram: each power of two is split into SUB_BUCKETS linear
+// buckets, so any recorded value is known to within 1/SUB_BUCKETS of itself
+// whatever its magnitude. Recording is two atomic adds and never
+// allocates; readers see a consistent-enough view without stopping writers.
+public final class LatencyHistogram {
+    private static final int SUB_BITS = 4;
+    private static final int SUB_BUCKETS = 1 << SUB_BITS;
+    private static final int BUCKETS = (64 - SUB_BITS + 1) * SUB_BUCKETS;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final LongAdder sum = new LongAdder();
+
+    public void record(long value) {
+        if (value < 0) value = 0;
+        counts.incrementAndGet(bucket(value));
+        sum.add(value);
+    }
+
+    public long count() {
+        long n = 0;
+        for (int i = 0; i < BUCKETS; i++) n += counts.get(i);
+        return n;
+    }
+
+    public double mean() {
+        long n = count();
+        return n == 0 ? 0 : (double) sum.sum() / n;
+    }
+
+    // The smallest bucket bound with at least the given fraction (0..1) of values at or below it
+    public long percentile(double fraction) {
+        long[] snapshot = new long[BUCKETS];
+        long n = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            snapshot[i] = counts.get(i);
+            n += snapshot[i];
+        }
+        if (n == 0) return 0;
+        long rank = Math.max(1, (long) Math.ceil(fraction * n));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += snapshot[i];
+            if (seen >= rank) return upperBound(i);
+        }
+        return upperBound(BUCKETS - 1);
+    }
+
+    public long max() {
+        for (int i = BUCKETS - 1; i >= 0; i--) {
+            if (counts.get(i) > 0) return upperBound(i);
+        }
+        return 0;
+    }
+
+    public void reset() {
+        for (int i = 0; i < BUCKETS; i++) counts.set(i, 0);
+        sum.reset();
+    }
+
+    // Values below SUB_BUCKETS get a bucket each; above that, the top SUB_BITS + 1 bits pick it
+    static int bucket(long value) {
+        if (value < SUB_BUCKETS) return (int) value;
+        int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BITS;
+        return (shift + 1) * SUB_BUCKETS + (int) ((value >>> shift) & (SUB_BUCKETS - 1));
+    }
+
+    // Largest value that falls in the bucket
+    static long upperBound(int bucket) {
+        if (bucket < SUB_BUCKETS) return bucket;
+        int shift = bucket / SUB_BUCKETS - 1;
+        long low = (long) (SUB_BUCKETS + bucket % SUB_BUCKETS) << shift;
+        return low + ((1L << shift) - 1);
+    }
+}
@@ -0,0 +1,149 @@
+// Splits calculator input into tokens without allocating: a token is a type
+// plus a [start, end) range of the input, and numbers are converted straight
+// from the characters. Spaces between tokens are skipped.
+final class Lexer {
+    static final int END = 0;
+    static final int NUMBER = 1;
+    static final int IDENTIFIER = 2;
+    static final int OPERATOR = 3; // + - * / % ^ ( ) ,
+    static final int MALFORMED_NUMBER = 4;
+    static final int OTHER = 5; // any other single character
+
+    // Powers of ten that are exact doubles
+    static final double[] POWERS_OF_TEN = {
+            1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11,
+            1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22
+    };
+
+    private CharSequence input;
+    private TokenList tokens; // replayed instead of scanning input, when set
+    private int pos; // input position, or the next token's index when replaying
+    private int type;
+    private int start, end;
+    private double number;
+
+    Lexer(CharSequence input) {
+        this.input = input;
+    }
+
+    // Replays tokens that were lexed earlier; see TokenList
+    Lexer(TokenList tokens) {
+        this.input = tokens.text();
+        this.tokens = tokens;
+    }
+
+    // Starts over on new input, so one lexer can be reused
+    void reset(CharSequence input) {
+        reset(input, 0);
+    }
+
+    // Starts over on new input from position, which must not be inside a token
+    void reset(CharSequence input, int position) {
+        this.input = input;
+        this.tokens = null;
+        this.pos = position;
+        this.type = END;
+        this.start = this.end = position;
+    }
+
+    // Advances to the next token and returns its type
+    int next() {
+        if (tokens != null) return replay();
+        int length = input.length();
+        while (pos < length && input.charAt(pos) == ' ') pos++;
+        start = pos;
+        if (pos == length) {
+            end = pos;
+            return type = END;
+        }
+        char c = input.charAt(pos);
+        if ((c >= '0' && c <= '9') || c == '.') {
+            while (pos < length && (isDigit(input.charAt(pos)) || input.charAt(pos) == '.')) pos++;
+            end = pos;
+            number = parseNumber(input, start, end);
+            return type = Double.isNaN(number) ? MALFORMED_NUMBER : NUMBER;
+        }
+        if (Character.isLetter(c)) {
+            pos++;
+            while (pos < length && (Character.isLetterOrDigit(input.charAt(pos)) || input.charAt(pos) == '_')) pos++;
+            end = pos;
+            return type = IDENTIFIER;
+        }
+        end = ++pos;
+        return type = switch (c) {
+            case '+', '-', '*', '/', '%', '^', '(', ')', ',' -> OPERATOR;
+            default -> OTHER;
+        };
+    }
+
+    private int replay() {
+        if (pos == tokens.size()) {
+            start = end = input.length();
+            return type = END;
+        }
+        start = tokens.start(pos);
+        end = tokens.end(pos);
+        number = tokens.number(pos);
+        return type = tokens.type(pos++);
+    }
+
+    int type() {
+        return type;
+    }
+
+    int start() {
+        return start;
+    }
+
+    int end() {
+        return end;
+    }
+
+    boolean isOperator(char c) {
+        return type == OPERATOR && input.charAt(start) == c;
+    }
+
+    double number() {
+        return number;
+    }
+
+    // Parses digits with at most one '.', correctly rounded, or returns NaN if
+    // the text is not a number. Values whose significant digits fit in 53 bits and
+    // a decimal exponent within +-22 take Clinger's fast path: the digits and
+    // the power of ten are both exact doubles, so one multiply or divide
+    // rounds correctly. Anything else falls back to Double.parseDouble.
+    static double parseNumber(CharSequence text, int from, int to) {
+        long mantissa = 0;
+        int digits = 0; // significant digits in mantissa
+        int exponent = 0;
+        boolean point = false, any = false, exact = true;
+        for (int i = from; i < to; i++) {
+            char c = text.charAt(i);
+            if (c == '.') {
+                if (point) return Double.NaN;
+                point = true;
+                continue;
+            }
+            if (!isDigit(c)) return Double.NaN;
+            any = true;
+            if (digits < 18) { // 18 digits always fit in a long
+                mantissa = mantissa * 10 + (c - '0');
+                if (mantissa != 0) digits++;
+                if (point) exponent--;
+            } else {
+                if (c != '0') exact = false;
+                if (!point) exponent++;
+            }
+        }
+        if (!any) return Double.NaN;
+        if (mantissa == 0) return 0.0;
+        if (exact && mantissa < 1L << 53 && exponent >= -22 && exponent <= 22) {
+            return exponent >= 0 ? mantissa * POWERS_OF_TEN[exponent] : mantissa / POWERS_OF_TEN[-exponent];
+        }
+        return Double.parseDouble(text.subSequence(from, to).toString());
+    }
+
+    private static boolean isDigit(char c) {
+        return c >= '0' && c <= '9';
+    }
+}
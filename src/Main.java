@@ -1,15 +1,107 @@
-//TIP To <b>Run</b> code, press <shortcut actionId="Run"/> or
-// click the <icon src="AllIcons.Actions.Execute"/> icon in the gutter.
+import java.io.BufferedOutputStream;
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+// Launcher: starts the Swing calculator, evaluates expressions line by line
+// when given --headless, serves them on the loopback interface with
+// --serve, or summarizes columns of numbers with --summarize. Only the GUI
+// touches AWT classes.
+//
+//   java Main                                   GUI
+//   java Main --headless [--threads N] [--stats] [FILE...]  stdin when no files (or "-") are given;
+//                                                --stats prints stage latencies to stderr at the end
+//   java Main --serve [--port N]                  see EvaluationServer for the protocol
+//   java Main --summarize [--column N] FILE...    count, mean, spread and quantiles of column N (from 1)
 public class Main {
-    public static void main(String[] args) {
-        //TIP Press <shortcut actionId="ShowIntentionActions"/> with your caret at the highlighted text
-        // to see how IntelliJ IDEA suggests fixing it.
-        System.out.printf("Hello and welcome!");
+    static final int DEFAULT_PORT = 7878;
+
+    public static void main(String[] args) throws IOException {
+        if (args.length > 0 && args[0].equals("--serve")) {
+            int port = DEFAULT_PORT;
+            if (args.length > 2 && args[1].equals("--port")) {
+                port = parseWhole(args[2], 0, 65535);
+                if (port < 0) usageError("Invalid port: " + args[2], "--serve [--port N]  (N from 0 to 65535)");
+            }
+            try (EvaluationServer server = new EvaluationServer(port)) {
+                System.out.println("Listening on " + InetAddress.getLoopbackAddress().getHostAddress() + ":" + server.port());
+                server.run();
+            }
+            return;
+        }
+        if (args.length > 0 && args[0].equals("--summarize")) {
+            int column = 0;
+            for (int i = 1; i < args.length; i++) {
+                if (args[i].equals("--column") && i + 1 < args.length) {
+                    column = parseWhole(args[++i], 1, Integer.MAX_VALUE) - 1;
+                    if (column < 0) {
+                        usageError("Invalid column: " + args[i], "--summarize [--column N] FILE...  (N is a whole number from 1)");
+                    }
+                } else {
+                    System.out.println(args[i] + ":");
+                    System.out.print(StreamingStatistics.read(Path.of(args[i]), column));
+                }
+            }
+            return;
+        }
+        if (args.length == 0 || !args[0].equals("--headless")) {
+            // Metrics are read once, when the class loads, so switch them on before anything records
+            if (System.getProperty("calculator.metrics") == null) System.setProperty("calculator.metrics", "true");
+            ScientificCalculator.main(args);
+            return;
+        }
+
+        int threads = Runtime.getRuntime().availableProcessors();
+        boolean stats = false;
+        List<String> files = new ArrayList<>();
+        for (int i = 1; i < args.length; i++) {
+            if (args[i].equals("--threads") && i + 1 < args.length) {
+                threads = parseWhole(args[++i], 1, Integer.MAX_VALUE);
+                if (threads < 0) {
+                    usageError("Invalid thread count: " + args[i],
+                            "--headless [--threads N] [--stats] [FILE...]  (N is a whole number from 1)");
+                }
+            } else if (args[i].equals("--stats")) {
+                stats = true;
+                System.setProperty("calculator.metrics", "true");
+            } else {
+                files.add(args[i]);
+            }
+        }
+
+        BufferedOutputStream out = new BufferedOutputStream(new FileOutputStream(FileDescriptor.out), 1 << 16);
+        try (StreamEvaluator evaluator = new StreamEvaluator(threads, out)) {
+            if (files.isEmpty()) {
+                evaluator.evaluate(System.in);
+            }
+            for (String file : files) {
+                if (file.equals("-")) {
+                    evaluator.evaluate(System.in);
+                } else {
+                    evaluator.evaluate(Path.of(file));
+                }
+            }
+        }
+        if (stats) System.err.print(Metrics.dump());
+    }
 
-        for (int i = 1; i <= 5; i++) {
-            //TIP Press <shortcut actionId="Debug"/> to start debugging your code. We have set one <icon src="AllIcons.Debugger.Db_set_breakpoint"/> breakpoint
-            // for you, but you can always add more by pressing <shortcut actionId="ToggleLineBreakpoint"/>.
-            System.out.println("i = " + i);
+    // text as a whole number from min to max (min >= 0), or -1 if it is not one
+    private static int parseWhole(String text, int min, int max) {
+        try {
+            int value = Integer.parseInt(text);
+            return value >= min && value <= max ? value : -1;
+        } catch (NumberFormatException e) {
+            return -1;
         }
     }
-}
\ No newline at end of file
+
+    private static void usageError(String message, String usage) {
+        System.err.println(message);
+        System.err.println("Usage: java Main " + usage);
+        System.exit(2);
+    }
+}
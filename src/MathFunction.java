@@ -0,0 +1,96 @@
+import java.util.function.DoubleBinaryOperator;
+import java.util.function.DoubleSupplier;
+import java.util.function.DoubleUnaryOperator;
+
+// A named function that expressions can call, such as sqrt(x) or max(a, b).
+// Pure functions depend only on their arguments, so calls with constant
+// arguments are folded at compile time and repeated calls are merged; impure
+// ones (rand) are called every time they appear. Subclasses override the
+// apply method for their arity, or use the of / impure factories.
+public abstract class MathFunction {
+    public static final int MAX_ARITY = 2;
+
+    private final String name;
+    private final int arity;
+    private final boolean pure;
+
+    protected MathFunction(String name, int arity, boolean pure) {
+        if (arity < 0 || arity > MAX_ARITY) throw new IllegalArgumentException("Unsupported arity " + arity + " for " + name);
+        if (name.isEmpty() || !Character.isLetter(name.charAt(0))) throw new IllegalArgumentException("Invalid name: " + name);
+        for (int i = 1; i < name.length(); i++) {
+            if (!Character.isLetterOrDigit(name.charAt(i)) && name.charAt(i) != '_') {
+                throw new IllegalArgumentException("Invalid name: " + name);
+            }
+        }
+        this.name = name;
+        this.arity = arity;
+        this.pure = pure;
+    }
+
+    public static MathFunction of(String name, DoubleUnaryOperator f) {
+        return new MathFunction(name, 1, true) {
+            @Override
+            public double apply(double x) {
+                return f.applyAsDouble(x);
+            }
+        };
+    }
+
+    public static MathFunction of(String name, DoubleBinaryOperator f) {
+        return new MathFunction(name, 2, true) {
+            @Override
+            public double apply(double x, double y) {
+                return f.applyAsDouble(x, y);
+            }
+        };
+    }
+
+    public static MathFunction impure(String name, DoubleSupplier f) {
+        return new MathFunction(name, 0, false) {
+            @Override
+            public double apply() {
+                return f.getAsDouble();
+            }
+        };
+    }
+
+    public final String name() {
+        return name;
+    }
+
+    public final int arity() {
+        return arity;
+    }
+
+    public final boolean isPure() {
+        return pure;
+    }
+
+    public double apply() {
+        throw new UnsupportedOperationException(name + " takes " + arity + " arguments");
+    }
+
+    public double apply(double x) {
+        throw new UnsupportedOperationException(name + " takes " + arity + " arguments");
+    }
+
+    public double apply(double x, double y) {
+        throw new UnsupportedOperationException(name + " takes " + arity + " arguments");
+    }
+
+    // Static method of java.lang.Math with the same meaning, which generated
+    // bytecode calls directly instead of going through apply; null if none
+    String intrinsic() {
+        return null;
+    }
+
+    // f'(x) as an expression in x, for unary functions that have one
+    String derivative() {
+        return null;
+    }
+
+    @Override
+    public String toString() {
+        return name + "/" + arity;
+    }
+}
@@ -0,0 +1,584 @@
+import java.util.Arrays;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.function.DoubleBinaryOperator;
+import java.util.function.DoubleUnaryOperator;
+
+// Immutable dense matrix of doubles, stored as one flat array in row-major
+// order; a 1x1 matrix doubles as a scalar. Everything of cubic cost runs
+// through one kernel, C += alpha * A * B on sub-blocks of flat arrays: the
+// k dimension is cut into blocks so a strip of B stays in cache, the inner
+// loop runs along rows of B and C so the JIT can vectorize it, and tiles of
+// C are computed as independent fork/join tasks. LU factorization is blocked
+// so that most of its work is that kernel too.
+//
+// Long operations poll the calling thread's interrupt flag and throw
+// CancellationException, so a cancelled calculation stops promptly.
+public final class Matrix {
+    // Rows of B kept in cache while a tile of C is updated
+    private static final int K_BLOCK = 128;
+    // Largest tile of C one task computes; above this it is split in two
+    private static final int TILE_ROWS = 64;
+    private static final int TILE_COLUMNS = 512;
+    // Multiply-adds before a product is worth forking
+    static final long PARALLEL_THRESHOLD = Long.getLong("calculator.matrix.parallelThreshold", 1L << 21);
+    // Columns factored at a time by lu(); the rest of the work is a product
+    private static final int PANEL = 64;
+    // Edge of the squares transpose() copies at a time
+    private static final int TRANSPOSE_BLOCK = 32;
+    // Largest matrix toString() writes out in full
+    private static final int PRINT_LIMIT = 100;
+
+    private final int rows, columns;
+    private final double[] data;
+
+    private Matrix(int rows, int columns, double[] data) {
+        this.rows = rows;
+        this.columns = columns;
+        this.data = data;
+    }
+
+    public static Matrix of(int rows, int columns, double... values) {
+        checkShape(rows, columns);
+        if (values.length != (long) rows * columns) {
+            throw new IllegalArgumentException("Expected " + (long) rows * columns + " values, got " + values.length);
+        }
+        return new Matrix(rows, columns, values.clone());
+    }
+
+    public static Matrix scalar(double value) {
+        return new Matrix(1, 1, new double[]{value});
+    }
+
+    public static Matrix filled(int rows, int columns, double value) {
+        checkShape(rows, columns);
+        double[] data = new double[rows * columns];
+        if (value != 0) Arrays.fill(data, value);
+        return new Matrix(rows, columns, data);
+    }
+
+    public static Matrix identity(int size) {
+        Matrix identity = filled(size, size, 0);
+        for (int i = 0; i < size; i++) identity.data[i * size + i] = 1;
+        return identity;
+    }
+
+    // Independent uniform values in [0, 1)
+    public static Matrix random(int rows, int columns) {
+        Matrix matrix = filled(rows, columns, 0);
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        for (int i = 0; i < matrix.data.length; i++) matrix.data[i] = random.nextDouble();
+        return matrix;
+    }
+
+    private static void checkShape(int rows, int columns) {
+        if (rows < 1 || columns < 1) throw new IllegalArgumentException("Invalid size: " + rows + "x" + columns);
+        if ((long) rows * columns > Integer.MAX_VALUE - 8) {
+            throw new IllegalArgumentException("Matrix too large: " + rows + "x" + columns);
+        }
+    }
+
+    public int rows() {
+        return rows;
+    }
+
+    public int columns() {
+        return columns;
+    }
+
+    public double get(int row, int column) {
+        if (row < 0 || row >= rows || column < 0 || column >= columns) {
+            throw new IndexOutOfBoundsException("(" + row + ", " + column + ") outside " + shape());
+        }
+        return data[row * columns + column];
+    }
+
+    public boolean isScalar() {
+        return rows == 1 && columns == 1;
+    }
+
+    public boolean isSquare() {
+        return rows == columns;
+    }
+
+    public String shape() {
+        return rows + "x" + columns;
+    }
+
+    // A copy of the elements in row-major order
+    public double[] toArray() {
+        return data.clone();
+    }
+
+    // Element-wise operations
+
+    public Matrix map(DoubleUnaryOperator f) {
+        double[] out = new double[data.length];
+        for (int i = 0; i < out.length; i++) out[i] = f.applyAsDouble(data[i]);
+        return new Matrix(rows, columns, out);
+    }
+
+    // f(this[i], other[i]) for matching shapes; a 1x1 operand is paired with every element of the other
+    public Matrix zip(Matrix other, DoubleBinaryOperator f) {
+        if (other.isScalar()) {
+            double y = other.data[0];
+            return map(x -> f.applyAsDouble(x, y));
+        }
+        if (isScalar()) {
+            double x = data[0];
+            return other.map(y -> f.applyAsDouble(x, y));
+        }
+        checkSameShape(other, "combine");
+        double[] out = new double[data.length];
+        for (int i = 0; i < out.length; i++) out[i] = f.applyAsDouble(data[i], other.data[i]);
+        return new Matrix(rows, columns, out);
+    }
+
+    public Matrix add(Matrix other) {
+        if (isScalar() || other.isScalar()) return zip(other, Double::sum);
+        checkSameShape(other, "add");
+        double[] out = new double[data.length];
+        for (int i = 0; i < out.length; i++) out[i] = data[i] + other.data[i];
+        return new Matrix(rows, columns, out);
+    }
+
+    public Matrix subtract(Matrix other) {
+        if (isScalar() || other.isScalar()) return zip(other, (x, y) -> x - y);
+        checkSameShape(other, "subtract");
+        double[] out = new double[data.length];
+        for (int i = 0; i < out.length; i++) out[i] = data[i] - other.data[i];
+        return new Matrix(rows, columns, out);
+    }
+
+    public Matrix scale(double factor) {
+        double[] out = new double[data.length];
+        for (int i = 0; i < out.length; i++) out[i] = data[i] * factor;
+        return new Matrix(rows, columns, out);
+    }
+
+    private void checkSameShape(Matrix other, String operation) {
+        if (rows != other.rows || columns != other.columns) {
+            throw new IllegalArgumentException("Cannot " + operation + " " + shape() + " and " + other.shape());
+        }
+    }
+
+    // Linear algebra
+
+    // The matrix product; a 1x1 operand scales the other
+    public Matrix multiply(Matrix other) {
+        if (other.isScalar()) return scale(other.data[0]);
+        if (isScalar()) return other.scale(data[0]);
+        if (columns != other.rows) throw new IllegalArgumentException("Cannot multiply " + shape() + " by " + other.shape());
+        double[] out = new double[rows * other.columns];
+        multiplyAdd(1, data, 0, columns, other.data, 0, other.columns, out, 0, other.columns,
+                rows, other.columns, columns, Thread.currentThread());
+        return new Matrix(rows, other.columns, out);
+    }
+
+    public Matrix transpose() {
+        double[] out = new double[data.length];
+        for (int i0 = 0; i0 < rows; i0 += TRANSPOSE_BLOCK) {
+            int i1 = Math.min(i0 + TRANSPOSE_BLOCK, rows);
+            for (int j0 = 0; j0 < columns; j0 += TRANSPOSE_BLOCK) {
+                int j1 = Math.min(j0 + TRANSPOSE_BLOCK, columns);
+                for (int i = i0; i < i1; i++) {
+                    for (int j = j0; j < j1; j++) out[j * rows + i] = data[i * columns + j];
+                }
+            }
+        }
+        return new Matrix(columns, rows, out);
+    }
+
+    // this^n for a square matrix by repeated squaring; negative n inverts first
+    public Matrix power(int n) {
+        requireSquare("raise %s to a power");
+        Matrix result = identity(rows), base = n < 0 ? inverse() : this;
+        long e = Math.abs((long) n);
+        while (true) {
+            if ((e & 1) != 0) result = result.multiply(base);
+            e >>>= 1;
+            if (e == 0) return result;
+            base = base.multiply(base);
+        }
+    }
+
+    public double determinant() {
+        requireSquare("take the determinant of %s");
+        LU lu = new LU(this);
+        if (lu.singular) return 0;
+        double det = lu.sign;
+        for (int i = 0; i < rows; i++) det *= lu.factors[i * rows + i];
+        return det;
+    }
+
+    public Matrix inverse() {
+        requireSquare("invert %s");
+        return new LU(this).solve(identity(rows));
+    }
+
+    // X with this * X = b: by LU for a square matrix, or the least-squares
+    // solution by QR when there are more rows (equations) than columns
+    public Matrix solve(Matrix b) {
+        if (b.rows != rows) throw new IllegalArgumentException("Cannot solve " + shape() + " with " + b.shape());
+        if (isSquare()) return new LU(this).solve(b);
+        if (rows < columns) {
+            throw new IllegalArgumentException("Cannot solve " + shape() + ": fewer equations than unknowns");
+        }
+        return new QR(this).solve(b);
+    }
+
+    // operation has a %s for the shape
+    private void requireSquare(String operation) {
+        if (!isSquare()) throw new IllegalArgumentException("Cannot " + operation.formatted(shape()) + ": not square");
+    }
+
+    // c[m x n] += alpha * a[m x k] * b[k x n], each a block at an offset into a
+    // row-major array with the given row length (stride)
+    static void multiplyAdd(double alpha, double[] a, int aOffset, int aStride, double[] b, int bOffset, int bStride,
+                            double[] c, int cOffset, int cStride, int m, int n, int k, Thread caller) {
+        if (m == 0 || n == 0 || k == 0) return;
+        if ((long) m * n * k >= PARALLEL_THRESHOLD && ForkJoinPool.getCommonPoolParallelism() > 1) {
+            ForkJoinPool.commonPool().invoke(new ProductTask(alpha, a, aOffset, aStride, b, bOffset, bStride,
+                    c, cOffset, cStride, 0, m, 0, n, k, caller));
+        } else {
+            for (int i = 0; i < m; i += TILE_ROWS) {
+                checkInterrupted(caller);
+                for (int j = 0; j < n; j += TILE_COLUMNS) {
+                    multiplyTile(alpha, a, aOffset, aStride, b, bOffset, bStride, c, cOffset, cStride,
+                            i, Math.min(i + TILE_ROWS, m), j, Math.min(j + TILE_COLUMNS, n), k);
+                }
+            }
+        }
+    }
+
+    // Rows [i0, i1) and columns [j0, j1) of the product
+    private static void multiplyTile(double alpha, double[] a, int aOffset, int aStride, double[] b, int bOffset,
+                                     int bStride, double[] c, int cOffset, int cStride,
+                                     int i0, int i1, int j0, int j1, int k) {
+        for (int p0 = 0; p0 < k; p0 += K_BLOCK) {
+            int p1 = Math.min(p0 + K_BLOCK, k);
+            for (int i = i0; i < i1; i++) {
+                int ai = aOffset + i * aStride;
+                int ci = cOffset + i * cStride;
+                int p = p0;
+                // Four rows of B per pass over the row of C: a quarter of the loads and stores of C
+                for (; p + 3 < p1; p += 4) {
+                    double x0 = alpha * a[ai + p], x1 = alpha * a[ai + p + 1];
+                    double x2 = alpha * a[ai + p + 2], x3 = alpha * a[ai + p + 3];
+                    int b0 = bOffset + p * bStride, b1 = b0 + bStride, b2 = b1 + bStride, b3 = b2 + bStride;
+                    for (int j = j0; j < j1; j++) {
+                        c[ci + j] += x0 * b[b0 + j] + x1 * b[b1 + j] + x2 * b[b2 + j] + x3 * b[b3 + j];
+                    }
+                }
+                for (; p < p1; p++) {
+                    double x = alpha * a[ai + p];
+                    int bp = bOffset + p * bStride;
+                    for (int j = j0; j < j1; j++) c[ci + j] += x * b[bp + j];
+                }
+            }
+        }
+    }
+
+    private static void checkInterrupted(Thread caller) {
+        if (caller.isInterrupted()) throw new CancellationException("Matrix calculation cancelled");
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        return o instanceof Matrix m && rows == m.rows && columns == m.columns && Arrays.equals(data, m.data);
+    }
+
+    @Override
+    public int hashCode() {
+        return 31 * (31 * rows + columns) + Arrays.hashCode(data);
+    }
+
+    // Whether toString lists every element, so that it reads back as the same matrix
+    public boolean isShownInFull() {
+        return data.length <= PRINT_LIMIT;
+    }
+
+    // A scalar as a number, a column vector as [a, b, c] and anything else as
+    // a list of rows, [[a, b], [c, d]], which is also how they are written in
+    // expressions. Large matrices are cut short after their shape.
+    @Override
+    public String toString() {
+        if (isScalar()) return String.valueOf(data[0]);
+        boolean full = isShownInFull();
+        StringBuilder sb = new StringBuilder();
+        if (!full) sb.append(shape()).append(' ');
+        int shownRows = full ? rows : Math.min(rows, 3);
+        int shownColumns = full ? columns : Math.min(columns, 3);
+        sb.append('[');
+        for (int i = 0; i < shownRows; i++) {
+            if (i > 0) sb.append(", ");
+            if (columns == 1) {
+                sb.append(data[i]);
+                continue;
+            }
+            sb.append('[');
+            for (int j = 0; j < shownColumns; j++) {
+                if (j > 0) sb.append(", ");
+                sb.append(data[i * columns + j]);
+            }
+            if (shownColumns < columns) sb.append(", …");
+            sb.append(']');
+        }
+        if (shownRows < rows) sb.append(", …");
+        return sb.append(']').toString();
+    }
+
+    // Computes one tile of a product, splitting it in two while it is large
+    @SuppressWarnings("serial")
+    private static final class ProductTask extends RecursiveAction {
+        private final double alpha;
+        private final double[] a, b, c;
+        private final int aOffset, aStride, bOffset, bStride, cOffset, cStride;
+        private final int i0, i1, j0, j1, k;
+        private final Thread caller;
+
+        ProductTask(double alpha, double[] a, int aOffset, int aStride, double[] b, int bOffset, int bStride,
+                    double[] c, int cOffset, int cStride, int i0, int i1, int j0, int j1, int k, Thread caller) {
+            this.alpha = alpha;
+            this.a = a;
+            this.aOffset = aOffset;
+            this.aStride = aStride;
+            this.b = b;
+            this.bOffset = bOffset;
+            this.bStride = bStride;
+            this.c = c;
+            this.cOffset = cOffset;
+            this.cStride = cStride;
+            this.i0 = i0;
+            this.i1 = i1;
+            this.j0 = j0;
+            this.j1 = j1;
+            this.k = k;
+            this.caller = caller;
+        }
+
+        @Override
+        protected void compute() {
+            checkInterrupted(caller);
+            int m = i1 - i0, n = j1 - j0;
+            if (m > TILE_ROWS && (m >= n || n <= TILE_COLUMNS)) {
+                int mid = i0 + (m / 2 + TILE_ROWS - 1) / TILE_ROWS * TILE_ROWS;
+                invokeAll(split(i0, mid, j0, j1), split(mid, i1, j0, j1));
+            } else if (n > TILE_COLUMNS) {
+                int mid = j0 + (n / 2 + TILE_COLUMNS - 1) / TILE_COLUMNS * TILE_COLUMNS;
+                invokeAll(split(i0, i1, j0, mid), split(i0, i1, mid, j1));
+            } else {
+                multiplyTile(alpha, a, aOffset, aStride, b, bOffset, bStride, c, cOffset, cStride, i0, i1, j0, j1, k);
+            }
+        }
+
+        private ProductTask split(int i0, int i1, int j0, int j1) {
+            return new ProductTask(alpha, a, aOffset, aStride, b, bOffset, bStride, c, cOffset, cStride,
+                    i0, i1, j0, j1, k, caller);
+        }
+    }
+
+    // PA = LU with partial pivoting, L unit lower triangular, both kept in
+    // one array. Blocked: each panel of PANEL columns is factored on its own,
+    // the rows of U to its right are solved for, and the trailing matrix is
+    // updated with one product.
+    private static final class LU {
+        final int n;
+        final double[] factors;
+        final int[] pivots; // row swapped with row i at step i
+        int sign = 1;
+        boolean singular;
+
+        LU(Matrix matrix) {
+            n = matrix.rows;
+            factors = matrix.data.clone();
+            pivots = new int[n];
+            Thread caller = Thread.currentThread();
+            for (int k0 = 0; k0 < n; k0 += PANEL) {
+                checkInterrupted(caller);
+                int k1 = Math.min(k0 + PANEL, n);
+                factorPanel(k0, k1);
+                if (k1 == n) break;
+                // U12 = L11^-1 A12, row by row
+                for (int i = k0 + 1; i < k1; i++) {
+                    int row = i * n;
+                    for (int p = k0; p < i; p++) {
+                        double l = factors[row + p];
+                        if (l == 0) continue;
+                        int pivotRow = p * n;
+                        for (int j = k1; j < n; j++) factors[row + j] -= l * factors[pivotRow + j];
+                    }
+                }
+                // A22 -= L21 U12
+                int width = k1 - k0;
+                multiplyAdd(-1, factors, k1 * n + k0, n, factors, k0 * n + k1, n, factors, k1 * n + k1, n,
+                        n - k1, n - k1, width, caller);
+            }
+        }
+
+        // Unblocked elimination of columns [k0, k1), swapping whole rows
+        private void factorPanel(int k0, int k1) {
+            for (int k = k0; k < k1; k++) {
+                int pivot = k;
+                double max = Math.abs(factors[k * n + k]);
+                for (int i = k + 1; i < n; i++) {
+                    double value = Math.abs(factors[i * n + k]);
+                    if (value > max) {
+                        max = value;
+                        pivot = i;
+                    }
+                }
+                pivots[k] = pivot;
+                if (pivot != k) {
+                    swapRows(k, pivot);
+                    sign = -sign;
+                }
+                double diagonal = factors[k * n + k];
+                if (diagonal == 0 || Double.isNaN(diagonal)) {
+                    singular = true;
+                    continue;
+                }
+                int pivotRow = k * n;
+                for (int i = k + 1; i < n; i++) {
+                    int row = i * n;
+                    double l = factors[row + k] /= diagonal;
+                    if (l == 0) continue;
+                    for (int j = k + 1; j < k1; j++) factors[row + j] -= l * factors[pivotRow + j];
+                }
+            }
+        }
+
+        private void swapRows(int r1, int r2) {
+            int a = r1 * n, b = r2 * n;
+            for (int j = 0; j < n; j++) {
+                double t = factors[a + j];
+                factors[a + j] = factors[b + j];
+                factors[b + j] = t;
+            }
+        }
+
+        // X with LU X = P b, by forward then back substitution, vectorized across the columns of b
+        Matrix solve(Matrix b) {
+            if (singular) throw new ArithmeticException("Matrix is singular");
+            int r = b.columns;
+            double[] x = b.data.clone();
+            for (int k = 0; k < n; k++) {
+                if (pivots[k] != k) {
+                    int a = k * r, c = pivots[k] * r;
+                    for (int j = 0; j < r; j++) {
+                        double t = x[a + j];
+                        x[a + j] = x[c + j];
+                        x[c + j] = t;
+                    }
+                }
+            }
+            Thread caller = Thread.currentThread();
+            for (int i = 0; i < n; i++) {
+                if ((i & 63) == 0) checkInterrupted(caller);
+                int row = i * r;
+                for (int p = 0; p < i; p++) {
+                    double l = factors[i * n + p];
+                    if (l == 0) continue;
+                    int source = p * r;
+                    for (int j = 0; j < r; j++) x[row + j] -= l * x[source + j];
+                }
+            }
+            for (int i = n - 1; i >= 0; i--) {
+                if ((i & 63) == 0) checkInterrupted(caller);
+                int row = i * r;
+                for (int p = i + 1; p < n; p++) {
+                    double u = factors[i * n + p];
+                    if (u == 0) continue;
+                    int source = p * r;
+                    for (int j = 0; j < r; j++) x[row + j] -= u * x[source + j];
+                }
+                double diagonal = factors[i * n + i];
+                for (int j = 0; j < r; j++) x[row + j] /= diagonal;
+            }
+            return new Matrix(n, r, x);
+        }
+    }
+
+    // A = QR by Householder reflections, for least squares with more rows
+    // than columns. Q is kept as the reflection vectors below the diagonal.
+    private static final class QR {
+        final int m, n;
+        final double[] factors;
+        final double[] diagonal; // R's diagonal
+        final double[] betas; // each reflection is I - beta v v^T
+
+        QR(Matrix matrix) {
+            m = matrix.rows;
+            n = matrix.columns;
+            factors = matrix.data.clone();
+            diagonal = new double[n];
+            betas = new double[n];
+            Thread caller = Thread.currentThread();
+            double[] w = new double[n];
+            for (int k = 0; k < n; k++) {
+                checkInterrupted(caller);
+                // Scaled so the sum of squares cannot overflow
+                double scale = 0;
+                for (int i = k; i < m; i++) scale = Math.max(scale, Math.abs(factors[i * n + k]));
+                double sum = 0;
+                for (int i = k; scale > 0 && i < m; i++) {
+                    double x = factors[i * n + k] / scale;
+                    sum += x * x;
+                }
+                double norm = scale * Math.sqrt(sum);
+                double alpha = factors[k * n + k] > 0 ? -norm : norm;
+                diagonal[k] = alpha;
+                if (norm == 0) continue;
+                // v = x - alpha e1, stored in place of x
+                factors[k * n + k] -= alpha;
+                double vv = 0;
+                for (int i = k; i < m; i++) vv += factors[i * n + k] * factors[i * n + k];
+                betas[k] = 2 / vv;
+                // Remaining columns: A -= beta v (v^T A), with v^T A accumulated row by row
+                Arrays.fill(w, k + 1, n, 0);
+                for (int i = k; i < m; i++) {
+                    double v = factors[i * n + k];
+                    int row = i * n;
+                    for (int j = k + 1; j < n; j++) w[j] += v * factors[row + j];
+                }
+                for (int i = k; i < m; i++) {
+                    double v = betas[k] * factors[i * n + k];
+                    int row = i * n;
+                    for (int j = k + 1; j < n; j++) factors[row + j] -= v * w[j];
+                }
+            }
+        }
+
+        // Least-squares X minimizing |A X - b|: R X = (Q^T b) in its first n rows
+        Matrix solve(Matrix b) {
+            int r = b.columns;
+            double[] y = b.data.clone();
+            double[] w = new double[r];
+            for (int k = 0; k < n; k++) {
+                if (diagonal[k] == 0) throw new ArithmeticException("Matrix is rank deficient");
+                Arrays.fill(w, 0);
+                for (int i = k; i < m; i++) {
+                    double v = factors[i * n + k];
+                    for (int j = 0; j < r; j++) w[j] += v * y[i * r + j];
+                }
+                for (int i = k; i < m; i++) {
+                    double v = betas[k] * factors[i * n + k];
+                    for (int j = 0; j < r; j++) y[i * r + j] -= v * w[j];
+                }
+            }
+            double[] x = Arrays.copyOf(y, n * r);
+            for (int i = n - 1; i >= 0; i--) {
+                int row = i * r;
+                for (int p = i + 1; p < n; p++) {
+                    double u = factors[i * n + p];
+                    int source = p * r;
+                    for (int j = 0; j < r; j++) x[row + j] -= u * x[source + j];
+                }
+                for (int j = 0; j < r; j++) x[row + j] /= diagonal[i];
+            }
+            return new Matrix(n, r, x);
+        }
+    }
+}
@@ -0,0 +1,390 @@
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+// Evaluates expressions whose values may be matrices. Only input that needs
+// it comes here (see handles()); everything else keeps going through the
+// scalar compiler, so plain expressions pay nothing for matrix support.
+// Values are Matrix, with numbers as 1x1 matrices, and the input is
+// evaluated as it is parsed: the work is in the matrix operations, so there
+// is nothing to gain from compiling it first. The parser is the same
+// shunting-yard loop as ExpressionCompiler, with '[' ... ']' for literals.
+//
+//   [1, 2, 3]                     column vector
+//   [[1, 2], [3, 4]]              a matrix, row by row
+//   A * B                         matrix product; scaling when either side is a number
+//   A + B, A - B, A / B, A % B    element-wise, with a number applied to every element
+//   A ^ n                         power of a square matrix by a whole number
+//   sin(A), max(A, 0), f(A)       any function, built-in or defined, element-wise
+//   transpose(A), inverse(A), det(A), solve(A, b), identity(n), zeros(r, c),
+//   ones(r, c), random(r, c)
+//
+// Names resolve to matrices assigned here first, then to the symbol table.
+public final class MatrixEvaluator {
+    private static final List<String> FUNCTIONS =
+            List.of("transpose", "inverse", "det", "solve", "identity", "zeros", "ones", "random");
+    private static final int[] ARITY = {1, 1, 1, 2, 1, 2, 2, 2};
+
+    // Operator stack entries besides the binary opcodes and NEG
+    private static final byte OPEN = -1;
+    private static final byte BRACKET = -2; // '[' of a literal; its count is the elements so far
+    private static final byte MATRIX_CALL = -3; // index into FUNCTIONS
+    private static final byte INLINE = -4; // symbol table function
+    // Expression.CALL is a FunctionRegistry function
+
+    private final SymbolTable symbols;
+    private final Map<String, Matrix> variables = new ConcurrentHashMap<>();
+
+    public MatrixEvaluator(SymbolTable symbols) {
+        this.symbols = symbols;
+    }
+
+    // Whether input has a matrix literal, calls a matrix function or names a matrix
+    public boolean handles(String input) {
+        Lexer lexer = new Lexer(input);
+        for (int type = lexer.next(); type != Lexer.END; type = lexer.next()) {
+            if (type == Lexer.OTHER && input.charAt(lexer.start()) == '[') return true;
+            if (type == Lexer.IDENTIFIER) {
+                String name = input.substring(lexer.start(), lexer.end());
+                if (variables.containsKey(name) || FUNCTIONS.contains(name)) return true;
+            }
+        }
+        return false;
+    }
+
+    public Matrix get(String name) {
+        return variables.get(name);
+    }
+
+    // Binds name to value, for later expressions to use
+    public void store(String name, Matrix value) {
+        if (!Definitions.isName(name)) throw new IllegalArgumentException("Invalid name: " + name);
+        if (symbols.find(name, 0, name.length()) >= 0 || symbols.findFunction(name, 0, name.length()) >= 0
+                || FunctionRegistry.lookup(name) != null || FUNCTIONS.contains(name)) {
+            throw new IllegalArgumentException(name + " is already in use");
+        }
+        variables.put(name, value);
+    }
+
+    public Matrix evaluate(String input) {
+        return new Evaluation(input, symbols).run();
+    }
+
+    // Evaluates against table instead of the live one, with its slots bound to
+    // its values; for a worker thread, table is a snapshot such as SymbolTable.copy()
+    public Matrix evaluate(String input, SymbolTable table) {
+        return new Evaluation(input, table).run();
+    }
+
+    // One pass over one input
+    private final class Evaluation {
+        private final String str;
+        private final Lexer lexer;
+        private final SymbolTable symbols; // used in place of the evaluator's table
+        private final double[] bindings;
+        private Matrix[] values = new Matrix[16];
+        private int sp = -1;
+        private byte[] operators = new byte[16];
+        private int[] operatorArgs = new int[16];
+        private int[] operatorStarts = new int[16];
+        private int top = -1;
+        private int open; // unclosed '(' and '[' on the operator stack
+
+        Evaluation(String str, SymbolTable symbols) {
+            this.str = str;
+            this.lexer = new Lexer(str);
+            this.symbols = symbols;
+            this.bindings = symbols.values();
+        }
+
+        Matrix run() {
+            boolean operand = true;
+            for (int type = lexer.next(); ; type = lexer.next()) {
+                char c = type == Lexer.OPERATOR || type == Lexer.OTHER ? str.charAt(lexer.start()) : 0;
+                if (operand) {
+                    switch (type) {
+                        case Lexer.NUMBER -> {
+                            push(Matrix.scalar(lexer.number()));
+                            operand = false;
+                        }
+                        case Lexer.IDENTIFIER -> {
+                            if (nextIs('(')) {
+                                openCall();
+                            } else {
+                                push(lookup(str.substring(lexer.start(), lexer.end())));
+                                operand = false;
+                            }
+                        }
+                        case Lexer.MALFORMED_NUMBER -> throw fail(ParseError.MALFORMED_NUMBER);
+                        default -> {
+                            if (c == '-') {
+                                pushOperator(Expression.NEG, 0);
+                            } else if (c == '(') {
+                                pushOperator(OPEN, 0);
+                                open++;
+                            } else if (c == '[') {
+                                pushOperator(BRACKET, 0);
+                                open++;
+                            } else if (c == ')' && top >= 0 && operators[top] == OPEN && isCall(top - 1)) {
+                                // A call without arguments
+                                close(true);
+                                operand = false;
+                            } else if (c != '+') {
+                                throw fail(type == Lexer.END ? ParseError.UNEXPECTED : ParseError.UNEXPECTED_CHARACTER);
+                            }
+                        }
+                    }
+                    continue;
+                }
+
+                byte binary = switch (c) {
+                    case '+' -> Expression.ADD;
+                    case '-' -> Expression.SUB;
+                    case '*' -> Expression.MUL;
+                    case '/' -> Expression.DIV;
+                    case '%' -> Expression.MOD;
+                    case '^' -> Expression.POW;
+                    default -> OPEN;
+                };
+                if (binary != OPEN) {
+                    int precedence = precedence(binary);
+                    while (top >= 0 && operators[top] >= 0
+                            && (precedence(operators[top]) > precedence
+                            || (precedence(operators[top]) == precedence && binary != Expression.POW))) {
+                        apply(operators[top--]);
+                    }
+                    pushOperator(binary, 0);
+                    operand = true;
+                } else if ((c == ')' || c == ']') && open > 0) {
+                    reduce();
+                    if (operators[top] != (c == ')' ? OPEN : BRACKET)) throw fail(ParseError.UNEXPECTED_CHARACTER);
+                    close(false);
+                } else if (c == ',' && open > 0) {
+                    reduce();
+                    if (operators[top] == OPEN && !isCall(top - 1)) throw fail(ParseError.MISSING_PARENTHESIS);
+                    operatorArgs[top]++;
+                    operand = true;
+                } else if (type == Lexer.END && open == 0) {
+                    while (top >= 0) apply(operators[top--]);
+                    return values[0];
+                } else {
+                    throw fail(open == 0 ? ParseError.UNEXPECTED_CHARACTER
+                            : innermost() == BRACKET ? ParseError.MISSING_BRACKET : ParseError.MISSING_PARENTHESIS);
+                }
+            }
+        }
+
+        private Matrix lookup(String name) {
+            Matrix matrix = variables.get(name);
+            if (matrix != null) return matrix;
+            int symbol = symbols.find(name, 0, name.length());
+            if (symbol < 0) throw fail(ParseError.UNKNOWN_SYMBOL);
+            int slot = symbols.symbolSlot(symbol);
+            if (slot < 0) return Matrix.scalar(symbols.symbolValue(symbol));
+            if (!symbols.isDefined(slot)) throw new IllegalStateException(name + " has no value");
+            return Matrix.scalar(bindings[slot]);
+        }
+
+        private void openCall() {
+            String name = str.substring(lexer.start(), lexer.end());
+            int function;
+            if ((function = FUNCTIONS.indexOf(name)) >= 0) {
+                pushOperator(MATRIX_CALL, function);
+            } else if ((function = symbols.findFunction(name, 0, name.length())) >= 0) {
+                pushOperator(INLINE, function);
+            } else if ((function = FunctionRegistry.find(name, 0, name.length())) >= 0) {
+                pushOperator(Expression.CALL, function);
+            } else {
+                throw fail(ParseError.UNKNOWN_FUNCTION);
+            }
+            lexer.next();
+            pushOperator(OPEN, 0);
+            open++;
+        }
+
+        private boolean isCall(int entry) {
+            return entry >= 0 && (operators[entry] == MATRIX_CALL || operators[entry] == INLINE
+                    || operators[entry] == Expression.CALL);
+        }
+
+        // Applies pending operators down to the innermost '(' or '['
+        private void reduce() {
+            while (operators[top] != OPEN && operators[top] != BRACKET) apply(operators[top--]);
+        }
+
+        private byte innermost() {
+            int entry = top;
+            while (operators[entry] != OPEN && operators[entry] != BRACKET) entry--;
+            return operators[entry];
+        }
+
+        // At the ')' or ']' matching the entry on top; empty is set for the ')' of f()
+        private void close(boolean empty) {
+            int count = empty ? 0 : operatorArgs[top] + 1;
+            boolean bracket = operators[top] == BRACKET;
+            top--;
+            open--;
+            if (bracket) {
+                push(literal(count));
+                return;
+            }
+            if (!isCall(top)) return;
+            byte kind = operators[top];
+            int function = operatorArgs[top];
+            int start = operatorStarts[top];
+            top--;
+            int arity = switch (kind) {
+                case MATRIX_CALL -> ARITY[function];
+                case INLINE -> symbols.functionParameters(function);
+                default -> FunctionRegistry.get(function).arity();
+            };
+            if (count != arity) {
+                int end = start;
+                while (end < str.length() && str.charAt(end) != '(') end++;
+                throw new ExpressionException(ParseError.ARGUMENT_COUNT, start,
+                        ParseError.ARGUMENT_COUNT.message(str, start, end).strip());
+            }
+            Matrix[] args = Arrays.copyOfRange(values, sp - count + 1, sp + 1);
+            sp -= count;
+            push(switch (kind) {
+                case MATRIX_CALL -> matrixFunction(function, args);
+                case INLINE -> definedFunction(function, args);
+                default -> registryFunction(FunctionRegistry.get(function), args);
+            });
+        }
+
+        // [a, b, c] of numbers is a column; of equally long columns, the rows of a matrix
+        private Matrix literal(int count) {
+            if (count == 0) throw new IllegalArgumentException("Empty matrix");
+            Matrix[] elements = Arrays.copyOfRange(values, sp - count + 1, sp + 1);
+            sp -= count;
+            int width = elements[0].isScalar() ? 1 : elements[0].rows();
+            double[] data = new double[count * width];
+            for (int i = 0; i < count; i++) {
+                Matrix element = elements[i];
+                boolean fits = width == 1 ? element.isScalar() : element.columns() == 1 && element.rows() == width;
+                if (!fits) throw new IllegalArgumentException("Rows of a matrix must be lists of numbers of equal length");
+                for (int j = 0; j < width; j++) data[i * width + j] = element.get(j, 0);
+            }
+            return width == 1 ? Matrix.of(count, 1, data) : Matrix.of(count, width, data);
+        }
+
+        private Matrix matrixFunction(int function, Matrix[] args) {
+            return switch (FUNCTIONS.get(function)) {
+                case "transpose" -> args[0].transpose();
+                case "inverse" -> args[0].inverse();
+                case "det" -> Matrix.scalar(args[0].determinant());
+                case "solve" -> args[0].solve(args[1]);
+                case "identity" -> Matrix.identity(size(args[0]));
+                case "zeros" -> Matrix.filled(size(args[0]), size(args[1]), 0);
+                case "ones" -> Matrix.filled(size(args[0]), size(args[1]), 1);
+                default -> Matrix.random(size(args[0]), size(args[1]));
+            };
+        }
+
+        private int size(Matrix arg) {
+            double value = arg.isScalar() ? arg.get(0, 0) : Double.NaN;
+            if (!(value >= 1 && value <= Integer.MAX_VALUE && value == Math.rint(value))) {
+                throw new IllegalArgumentException("Invalid size: " + arg);
+            }
+            return (int) value;
+        }
+
+        private Matrix registryFunction(MathFunction f, Matrix[] args) {
+            return switch (args.length) {
+                case 0 -> Matrix.scalar(f.apply());
+                case 1 -> args[0].map(f::apply);
+                default -> args[0].zip(args[1], f::apply);
+            };
+        }
+
+        // Element by element, with the parameters bound to elements of the
+        // arguments (numbers to every element) and the rest of the body's
+        // slots to the symbol table's values
+        private Matrix definedFunction(int function, Matrix[] args) {
+            Expression body = symbols.functionBody(function);
+            int rows = 1, columns = 1;
+            for (Matrix arg : args) {
+                if (arg.isScalar()) continue;
+                if (rows * columns > 1 && (arg.rows() != rows || arg.columns() != columns)) {
+                    throw new IllegalArgumentException("Arguments of different sizes: " + rows + "x" + columns
+                            + " and " + arg.shape());
+                }
+                rows = arg.rows();
+                columns = arg.columns();
+            }
+            double[][] elements = new double[args.length][];
+            for (int p = 0; p < args.length; p++) elements[p] = args[p].toArray();
+            double[] slots = new double[Math.max(args.length + symbols.size(), body.variables().length)];
+            System.arraycopy(bindings, 0, slots, args.length, symbols.size());
+            double[] out = new double[rows * columns];
+            for (int i = 0; i < out.length; i++) {
+                for (int p = 0; p < args.length; p++) slots[p] = elements[p][elements[p].length == 1 ? 0 : i];
+                out[i] = body.evaluate(slots);
+            }
+            return Matrix.of(rows, columns, out);
+        }
+
+        private void apply(byte op) {
+            if (op == Expression.NEG) {
+                values[sp] = values[sp].scale(-1);
+                return;
+            }
+            Matrix b = values[sp--], a = values[sp];
+            values[sp] = switch (op) {
+                case Expression.ADD -> a.add(b);
+                case Expression.SUB -> a.subtract(b);
+                case Expression.MUL -> a.multiply(b);
+                case Expression.DIV -> a.zip(b, (x, y) -> x / y);
+                case Expression.MOD -> a.zip(b, (x, y) -> x % y);
+                default -> power(a, b);
+            };
+        }
+
+        private Matrix power(Matrix a, Matrix b) {
+            if (a.isScalar()) return a.zip(b, Math::pow);
+            if (!b.isScalar()) throw new IllegalArgumentException("Cannot raise " + a.shape() + " to the power " + b.shape());
+            double n = b.get(0, 0);
+            if (n != Math.rint(n) || Math.abs(n) > Integer.MAX_VALUE) {
+                throw new IllegalArgumentException("Matrix powers must be whole numbers: " + n);
+            }
+            return a.power((int) n);
+        }
+
+        private int precedence(byte op) {
+            return switch (op) {
+                case Expression.ADD, Expression.SUB -> 1;
+                case Expression.MUL, Expression.DIV, Expression.MOD -> 2;
+                case Expression.NEG -> 3;
+                default -> 4; // POW
+            };
+        }
+
+        private boolean nextIs(char c) {
+            int i = lexer.end();
+            while (i < str.length() && str.charAt(i) == ' ') i++;
+            return i < str.length() && str.charAt(i) == c;
+        }
+
+        private void push(Matrix value) {
+            if (++sp == values.length) values = Arrays.copyOf(values, sp * 2);
+            values[sp] = value;
+        }
+
+        private void pushOperator(byte op, int arg) {
+            if (++top == operators.length) {
+                operators = Arrays.copyOf(operators, top * 2);
+                operatorArgs = Arrays.copyOf(operatorArgs, top * 2);
+                operatorStarts = Arrays.copyOf(operatorStarts, top * 2);
+            }
+            operators[top] = op;
+            operatorArgs[top] = arg;
+            operatorStarts[top] = lexer.start();
+        }
+
+        private ExpressionException fail(ParseError error) {
+            return new ExpressionException(error, lexer.start(), error.message(str, lexer.start(), lexer.end()));
+        }
+    }
+}
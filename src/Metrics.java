@@ -0,0 +1,92 @@
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Timespan;
+
+import java.util.Locale;
+import java.util.concurrent.atomic.LongAdder;
+
+// Process-wide latency histograms and failure counts for the stages of a
+// calculation. Off unless -Dcalculator.metrics=true (Main turns it on for
+// the GUI and for --headless --stats); ENABLED is a constant, so when it is
+// false the JIT folds every call here to nothing. Recording never locks or
+// allocates, except that an evaluation slower than
+// calculator.metrics.slowMicros (default 1000) also emits a JFR event.
+public final class Metrics {
+    public static final boolean ENABLED = Boolean.getBoolean("calculator.metrics");
+    static final long SLOW_EVALUATION_NANOS = Long.getLong("calculator.metrics.slowMicros", 1000) * 1000;
+
+    public enum Stage {
+        PARSE, OPTIMIZE, EVALUATE, HISTORY;
+
+        final LatencyHistogram latency = new LatencyHistogram();
+        final LongAdder failures = new LongAdder();
+    }
+
+    private Metrics() {
+    }
+
+    // Start time for record(), or 0 when disabled
+    public static long start() {
+        return ENABLED ? System.nanoTime() : 0;
+    }
+
+    public static void record(Stage stage, long start) {
+        if (ENABLED) stage.latency.record(System.nanoTime() - start);
+    }
+
+    public static void failed(Stage stage) {
+        if (ENABLED) stage.failures.increment();
+    }
+
+    // Records an evaluation of input, reporting it to JFR if it was slow
+    public static void recordEvaluation(String input, long start) {
+        if (!ENABLED) return;
+        long nanos = System.nanoTime() - start;
+        Stage.EVALUATE.latency.record(nanos);
+        if (nanos >= SLOW_EVALUATION_NANOS) {
+            SlowEvaluation event = new SlowEvaluation();
+            if (event.isEnabled()) {
+                event.expression = input;
+                event.micros = nanos / 1000;
+                event.commit();
+            }
+        }
+    }
+
+    public static void reset() {
+        for (Stage stage : Stage.values()) {
+            stage.latency.reset();
+            stage.failures.reset();
+        }
+    }
+
+    // One line per stage, in microseconds
+    public static String dump() {
+        if (!ENABLED) return "Metrics are off; run with -Dcalculator.metrics=true\n";
+        StringBuilder sb = new StringBuilder(String.format(Locale.ROOT, "%-9s %10s %8s %10s %10s %10s %10s%n",
+                "stage", "count", "failed", "mean us", "p50 us", "p99 us", "max us"));
+        for (Stage stage : Stage.values()) {
+            LatencyHistogram h = stage.latency;
+            sb.append(String.format(Locale.ROOT, "%-9s %10d %8d %10.1f %10.1f %10.1f %10.1f%n",
+                    stage.name().toLowerCase(Locale.ROOT), h.count(), stage.failures.sum(), h.mean() / 1e3,
+                    h.percentile(0.5) / 1e3, h.percentile(0.99) / 1e3, h.max() / 1e3));
+        }
+        return sb.toString();
+    }
+
+    @Name("calculator.SlowEvaluation")
+    @Label("Slow Evaluation")
+    @Category("Calculator")
+    @Description("An expression that took longer than calculator.metrics.slowMicros to evaluate")
+    static final class SlowEvaluation extends Event {
+        @Label("Expression")
+        String expression;
+
+        @Label("Evaluation Time")
+        @Timespan(Timespan.MICROSECONDS)
+        long micros;
+    }
+}
@@ -0,0 +1,28 @@
+// Why an input failed to compile. The message text is only built when asked for.
+public enum ParseError {
+    UNEXPECTED_CHARACTER("Unexpected character: "),
+    UNEXPECTED("Unexpected: "),
+    MISSING_PARENTHESIS("Missing ')'"),
+    MISSING_BRACKET("Missing ']'"),
+    UNKNOWN_SYMBOL("Unknown symbol: "),
+    UNKNOWN_FUNCTION("Unknown function: "),
+    ARGUMENT_COUNT("Wrong number of arguments for "),
+    MALFORMED_NUMBER("Malformed number: ");
+
+    private final String prefix;
+
+    ParseError(String prefix) {
+        this.prefix = prefix;
+    }
+
+    // Message for the token at [start, end) of input
+    public String message(CharSequence input, int start, int end) {
+        return switch (this) {
+            case MISSING_PARENTHESIS, MISSING_BRACKET -> prefix;
+            case UNEXPECTED_CHARACTER, UNEXPECTED ->
+                    prefix + (start < input.length() ? String.valueOf(input.charAt(start)) : "end of input");
+            case UNKNOWN_SYMBOL, UNKNOWN_FUNCTION, ARGUMENT_COUNT, MALFORMED_NUMBER ->
+                    prefix + input.subSequence(start, end);
+        };
+    }
+}
@@ -0,0 +1,464 @@
+import javax.swing.JComponent;
+import javax.swing.SwingUtilities;
+import java.awt.BasicStroke;
+import java.awt.Color;
+import java.awt.Graphics;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.event.MouseAdapter;
+import java.awt.event.MouseEvent;
+import java.awt.event.MouseWheelEvent;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+
+// Plot of y = f(x) for a compiled expression. The x axis is cut into tiles
+// of TILE_COLUMNS columns at power-of-two zoom levels; each tile is sampled
+// once on the fork/join pool (a batch pass over a uniform grid, then
+// subdivision only where the curve bends or breaks) and reduced to a
+// min / max range per column. Drawing a frame is therefore one or two lines
+// per pixel column however many samples are behind it, and panning, y zoom
+// and revisiting an area reuse cached tiles instead of evaluating again.
+@SuppressWarnings("serial")
+public final class PlotPanel extends JComponent {
+    static final int TILE_COLUMNS = 256;
+    static final int SAMPLES_PER_COLUMN = 4;
+    // Each grid segment is split at most 2^MAX_DEPTH times
+    static final int MAX_DEPTH = 8;
+    static final int CACHE_TILES = Integer.getInteger("calculator.plot.cacheTiles", 512);
+    // Deviation from a straight line, relative to the tile's y extent, that triggers subdivision
+    private static final double TOLERANCE = 1e-3;
+    private static final Color GRID = new Color(225, 225, 225);
+    private static final Color CURVE = new Color(30, 90, 200);
+
+    private final Expression f;
+    private final int variable;
+    private final double[] bindings;
+    private final Map<TileKey, Tile> tiles = new LinkedHashMap<>(64, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<TileKey, Tile> eldest) {
+            return size() > CACHE_TILES;
+        }
+    };
+    private final Set<TileKey> pending = ConcurrentHashMap.newKeySet();
+
+    // View, touched only on the EDT
+    private double xMin = -10, xMax = 10, yMin = -7.5, yMax = 7.5;
+    private int dragX, dragY;
+    private long visibleSamples;
+    private Columns pixels;
+
+    // Last painted range, read by tile workers to drop requests scrolled out of view
+    private volatile int visibleLevel;
+    private volatile long visibleFrom, visibleTo;
+    private volatile boolean disposed;
+
+    private record TileKey(int level, long index) {
+    }
+
+    // variable is the slot of x; bindings supplies the other variables of f
+    public PlotPanel(Expression f, int variable, double... bindings) {
+        this.f = f;
+        this.variable = variable;
+        this.bindings = Arrays.copyOf(bindings, Math.max(bindings.length,
+                Math.max(variable + 1, f.variables().length)));
+        setBackground(Color.WHITE);
+        setOpaque(true);
+
+        MouseAdapter mouse = new MouseAdapter() {
+            @Override
+            public void mousePressed(MouseEvent e) {
+                dragX = e.getX();
+                dragY = e.getY();
+            }
+
+            @Override
+            public void mouseDragged(MouseEvent e) {
+                double dx = (e.getX() - dragX) * (xMax - xMin) / getWidth();
+                double dy = (e.getY() - dragY) * (yMax - yMin) / getHeight();
+                xMin -= dx;
+                xMax -= dx;
+                yMin += dy;
+                yMax += dy;
+                dragX = e.getX();
+                dragY = e.getY();
+                repaint();
+            }
+
+            @Override
+            public void mouseWheelMoved(MouseWheelEvent e) {
+                double factor = Math.pow(1.1, e.getPreciseWheelRotation());
+                zoom(factor, e.getX(), e.getY());
+            }
+        };
+        addMouseListener(mouse);
+        addMouseMotionListener(mouse);
+        addMouseWheelListener(mouse);
+    }
+
+    // Stops background sampling; call when the plot is closed
+    public void dispose() {
+        disposed = true;
+    }
+
+    public void setView(double xMin, double xMax, double yMin, double yMax) {
+        if (!(xMin < xMax && yMin < yMax)) throw new IllegalArgumentException("Empty view");
+        this.xMin = xMin;
+        this.xMax = xMax;
+        this.yMin = yMin;
+        this.yMax = yMax;
+        repaint();
+    }
+
+    // Samples behind the last painted frame
+    public long visibleSamples() {
+        return visibleSamples;
+    }
+
+    private void zoom(double factor, int px, int py) {
+        double x = xMin + (xMax - xMin) * px / getWidth();
+        double y = yMax - (yMax - yMin) * py / getHeight();
+        double width = (xMax - xMin) * factor, height = (yMax - yMin) * factor;
+        // Stay where doubles can still tell neighbouring pixels apart
+        if (width < Math.ulp(x) * getWidth() * 64 || width > 1e300 || height < Math.ulp(y) * getHeight() * 64) return;
+        xMin = x - (x - xMin) * factor;
+        xMax = xMin + width;
+        yMax = y + (yMax - y) * factor;
+        yMin = yMax - height;
+        repaint();
+    }
+
+    @Override
+    protected void paintComponent(Graphics graphics) {
+        Graphics2D g = (Graphics2D) graphics.create();
+        try {
+            g.setColor(getBackground());
+            g.fillRect(0, 0, getWidth(), getHeight());
+            render(g, getWidth(), getHeight(), false);
+        } finally {
+            g.dispose();
+        }
+    }
+
+    // Draws the current view; with wait set, samples missing tiles on this thread first
+    void render(Graphics2D g, int width, int height, boolean wait) {
+        if (width <= 0 || height <= 0) return;
+        drawAxes(g, width, height);
+
+        double unitsPerPixel = (xMax - xMin) / width;
+        int level = Math.getExponent(unitsPerPixel); // tile columns are never wider than a pixel
+        double tileWidth = Math.scalb((double) TILE_COLUMNS, level);
+        long from = (long) Math.floor(xMin / tileWidth), to = (long) Math.floor(xMax / tileWidth);
+        visibleLevel = level;
+        visibleFrom = from;
+        visibleTo = to;
+
+        g.setColor(CURVE);
+        g.setStroke(new BasicStroke(1f));
+        g.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_OFF);
+        // Tiles have up to two columns per pixel; merging them first halves the lines drawn
+        if (pixels == null || pixels.size() < width) pixels = new Columns(width);
+        pixels.clear(width);
+        long samples = 0;
+        for (long index = from - 1; index <= to + 1; index++) {
+            TileKey key = new TileKey(level, index);
+            Tile tile = wait ? sampleNow(key) : cached(key);
+            double xFrom = index * tileWidth, xTo = xFrom + tileWidth;
+            if (tile == null) {
+                request(key);
+                // Stretch the matching half of the coarser tile, if we have it, until this one arrives
+                Tile parent = cached(new TileKey(level + 1, Math.floorDiv(index, 2)));
+                if (parent != null) accumulate(parent, width, xFrom, xTo);
+            } else if (index >= from && index <= to) {
+                samples += tile.samples;
+                accumulate(tile, width, xFrom, xTo);
+            }
+        }
+        drawPixels(g, width, height);
+        visibleSamples = samples;
+
+        g.setColor(Color.DARK_GRAY);
+        g.drawString(String.format(Locale.ROOT, "%,d samples", samples), 8, height - 8);
+    }
+
+    private void drawAxes(Graphics2D g, int width, int height) {
+        g.setColor(GRID);
+        double step = gridStep(xMax - xMin, width);
+        for (double x = Math.ceil(xMin / step) * step; x <= xMax; x += step) {
+            int px = screenX(x, width);
+            g.drawLine(px, 0, px, height);
+        }
+        step = gridStep(yMax - yMin, height);
+        for (double y = Math.ceil(yMin / step) * step; y <= yMax; y += step) {
+            int py = screenY(y, height);
+            g.drawLine(0, py, width, py);
+        }
+        g.setColor(Color.GRAY);
+        if (xMin <= 0 && xMax >= 0) g.drawLine(screenX(0, width), 0, screenX(0, width), height);
+        if (yMin <= 0 && yMax >= 0) g.drawLine(0, screenY(0, height), width, screenY(0, height));
+        g.drawString(String.format(Locale.ROOT, "x: [%.6g, %.6g]  y: [%.6g, %.6g]", xMin, xMax, yMin, yMax), 8, 16);
+    }
+
+    // A 1, 2 or 5 times power of ten step giving grid lines roughly 80 pixels apart
+    private static double gridStep(double range, int pixels) {
+        double raw = range * 80 / Math.max(1, pixels);
+        double power = Math.pow(10, Math.floor(Math.log10(raw)));
+        double scaled = raw / power;
+        return (scaled < 2 ? 2 : scaled < 5 ? 5 : 10) * power;
+    }
+
+    // Merges the tile's columns in [xFrom, xTo) into the per-pixel ranges, in x order
+    private void accumulate(Tile tile, int width, double xFrom, double xTo) {
+        double columnWidth = Math.scalb(1.0, tile.level);
+        double left = tile.index * TILE_COLUMNS * columnWidth;
+        double pixelsPerUnit = width / (xMax - xMin);
+        int first = (int) Math.max(0, Math.floor((Math.max(xFrom, xMin) - left) / columnWidth));
+        int last = (int) Math.min(TILE_COLUMNS - 1, Math.ceil((Math.min(xTo, xMax) - left) / columnWidth));
+        for (int c = first; c <= last; c++) {
+            double x = left + c * columnWidth;
+            if (x < xFrom || x >= xTo || !tile.hasData(c)) continue;
+            int p = (int) ((x - xMin) * pixelsPerUnit);
+            if (p < 0 || p >= width) continue;
+            boolean joined = tile.connected[c];
+            if (!pixels.hasData(p)) {
+                pixels.first[p] = tile.first[c];
+                pixels.min[p] = tile.min[c];
+                pixels.max[p] = tile.max[c];
+                pixels.connected[p] = joined;
+            } else if (pixels.broken[p] || !joined) {
+                pixels.broken[p] = true;
+                pixels.min2[p] = Math.min(pixels.min2[p], tile.min[c]);
+                pixels.max2[p] = Math.max(pixels.max2[p], tile.max[c]);
+            } else {
+                pixels.min[p] = Math.min(pixels.min[p], tile.min[c]);
+                pixels.max[p] = Math.max(pixels.max[p], tile.max[c]);
+            }
+            if (tile.broken[c]) {
+                pixels.broken[p] = true;
+                pixels.min2[p] = Math.min(pixels.min2[p], tile.min2[c]);
+                pixels.max2[p] = Math.max(pixels.max2[p], tile.max2[c]);
+            }
+            pixels.last[p] = tile.last[c];
+        }
+    }
+
+    private void drawPixels(Graphics2D g, int width, int height) {
+        for (int p = 0; p < width; p++) {
+            if (!pixels.hasData(p)) continue;
+            if (pixels.connected[p] && p > 0 && pixels.hasData(p - 1)) {
+                g.drawLine(p - 1, screenY(pixels.last[p - 1], height), p, screenY(pixels.first[p], height));
+            }
+            g.drawLine(p, screenY(pixels.min[p], height), p, screenY(pixels.max[p], height));
+            if (pixels.broken[p] && pixels.min2[p] <= pixels.max2[p]) {
+                g.drawLine(p, screenY(pixels.min2[p], height), p, screenY(pixels.max2[p], height));
+            }
+        }
+    }
+
+    private int screenX(double x, int width) {
+        return clamp((x - xMin) * width / (xMax - xMin));
+    }
+
+    private int screenY(double y, int height) {
+        return clamp((yMax - y) * height / (yMax - yMin));
+    }
+
+    // Far off-screen coordinates are clamped so Java2D never sees overflowed ints
+    private static int clamp(double pixel) {
+        return (int) Math.max(-1e5, Math.min(1e5, pixel));
+    }
+
+    // Tile cache and background sampling
+
+    private Tile cached(TileKey key) {
+        synchronized (tiles) {
+            return tiles.get(key);
+        }
+    }
+
+    private Tile sampleNow(TileKey key) {
+        Tile tile = cached(key);
+        if (tile != null) return tile;
+        tile = Tile.sample(f, variable, bindings, key.level, key.index);
+        synchronized (tiles) {
+            tiles.put(key, tile);
+        }
+        return tile;
+    }
+
+    private void request(TileKey key) {
+        if (disposed || !pending.add(key)) return;
+        ForkJoinPool.commonPool().execute(() -> {
+            try {
+                // The view may have moved on while this waited in the queue
+                if (disposed || key.level != visibleLevel
+                        || key.index < visibleFrom - 1 || key.index > visibleTo + 1) return;
+                Tile tile = Tile.sample(f, variable, bindings, key.level, key.index);
+                synchronized (tiles) {
+                    tiles.put(key, tile);
+                }
+                SwingUtilities.invokeLater(this::repaint);
+            } finally {
+                pending.remove(key);
+            }
+        });
+    }
+
+    // TILE_COLUMNS columns of width 2^level starting at x = index * TILE_COLUMNS * 2^level.
+    // Each column keeps the range of its samples and the first and last value for
+    // connecting to its neighbours; a column the curve breaks in keeps a second range
+    // for the part after the break, so poles are not drawn as vertical lines.
+    static final class Tile extends Columns {
+        final int level;
+        final long index;
+        int samples;
+
+        private boolean open; // last sample was finite and may be joined to the next
+
+        private Tile(int level, long index) {
+            super(TILE_COLUMNS);
+            this.level = level;
+            this.index = index;
+        }
+
+        static Tile sample(Expression f, int variable, double[] bindings, int level, long index) {
+            Tile tile = new Tile(level, index);
+            double columnWidth = Math.scalb(1.0, level);
+            double left = index * TILE_COLUMNS * columnWidth;
+            double step = columnWidth / SAMPLES_PER_COLUMN;
+
+            // Uniform grid in one batch pass
+            int n = TILE_COLUMNS * SAMPLES_PER_COLUMN + 1;
+            double[] xs = new double[n], ys = new double[n];
+            double[][] columns = new double[bindings.length][];
+            for (int i = 0; i < n; i++) xs[i] = left + i * step;
+            for (int v = 0; v < columns.length; v++) {
+                if (v == variable) {
+                    columns[v] = xs;
+                } else {
+                    columns[v] = new double[n];
+                    Arrays.fill(columns[v], bindings[v]);
+                }
+            }
+            BatchEvaluator.evaluateRange(f, ys, columns, 0, n);
+
+            double low = Double.POSITIVE_INFINITY, high = Double.NEGATIVE_INFINITY;
+            for (double y : ys) {
+                if (Double.isFinite(y)) {
+                    low = Math.min(low, y);
+                    high = Math.max(high, y);
+                }
+            }
+            double extent = high - low;
+            double tolerance = TOLERANCE * (extent > 0 && Double.isFinite(extent) ? extent : 1);
+
+            // Refine each grid segment in order, with an explicit stack of pending halves
+            double[] values = bindings.clone();
+            double[] stack = new double[(MAX_DEPTH + 2) * 5];
+            tile.add(xs[0], ys[0], false, left, columnWidth);
+            for (int i = 0; i + 1 < n; i++) {
+                int sp = 0;
+                stack[sp++] = xs[i];
+                stack[sp++] = ys[i];
+                stack[sp++] = xs[i + 1];
+                stack[sp++] = ys[i + 1];
+                stack[sp++] = 0;
+                while (sp > 0) {
+                    int depth = (int) stack[--sp];
+                    double yb = stack[--sp], xb = stack[--sp], ya = stack[--sp], xa = stack[--sp];
+                    boolean finiteA = Double.isFinite(ya), finiteB = Double.isFinite(yb);
+                    double xm = (xa + xb) / 2;
+                    values[variable] = xm;
+                    double ym = f.evaluate(values);
+                    boolean finiteM = Double.isFinite(ym);
+                    boolean bends = finiteA && finiteB && finiteM
+                            ? Math.abs(ym - (ya + yb) / 2) > tolerance
+                            : finiteA || finiteB || finiteM;
+                    if (bends && depth < MAX_DEPTH) {
+                        // Right half below left half, so the left one is finished first
+                        stack[sp++] = xm;
+                        stack[sp++] = ym;
+                        stack[sp++] = xb;
+                        stack[sp++] = yb;
+                        stack[sp++] = depth + 1;
+                        stack[sp++] = xa;
+                        stack[sp++] = ya;
+                        stack[sp++] = xm;
+                        stack[sp++] = ym;
+                        stack[sp++] = depth + 1;
+                        continue;
+                    }
+                    // Still bending at full depth means a jump, not a curve; it is on the steeper side
+                    boolean jumpFirst = bends && !(Math.abs(ym - ya) <= Math.abs(yb - ym));
+                    tile.add(xm, ym, jumpFirst, left, columnWidth);
+                    tile.add(xb, yb, bends && !jumpFirst, left, columnWidth);
+                }
+            }
+            return tile;
+        }
+
+        private void add(double x, double y, boolean breakBefore, double left, double columnWidth) {
+            samples++;
+            int c = (int) Math.min(TILE_COLUMNS - 1, Math.max(0, Math.floor((x - left) / columnWidth)));
+            if (!Double.isFinite(y)) {
+                if (hasData(c)) broken[c] = true;
+                open = false;
+                return;
+            }
+            boolean joined = open && !breakBefore;
+            open = true;
+            if (!hasData(c)) {
+                first[c] = y;
+                min[c] = max[c] = y;
+                connected[c] = joined;
+            } else if (broken[c] || !joined) {
+                broken[c] = true;
+                min2[c] = Math.min(min2[c], y);
+                max2[c] = Math.max(max2[c], y);
+            } else {
+                min[c] = Math.min(min[c], y);
+                max[c] = Math.max(max[c], y);
+            }
+            last[c] = y;
+        }
+    }
+
+    // Per-column value ranges, for tiles and for the merged pixel columns of a frame
+    static class Columns {
+        final double[] first, last, min, max, min2, max2;
+        final boolean[] connected; // first value joins the previous column
+        final boolean[] broken;
+
+        Columns(int size) {
+            first = new double[size];
+            last = new double[size];
+            min = new double[size];
+            max = new double[size];
+            min2 = new double[size];
+            max2 = new double[size];
+            connected = new boolean[size];
+            broken = new boolean[size];
+            clear(size);
+        }
+
+        final int size() {
+            return first.length;
+        }
+
+        final void clear(int size) {
+            Arrays.fill(min, 0, size, Double.POSITIVE_INFINITY);
+            Arrays.fill(max, 0, size, Double.NEGATIVE_INFINITY);
+            Arrays.fill(min2, 0, size, Double.POSITIVE_INFINITY);
+            Arrays.fill(max2, 0, size, Double.NEGATIVE_INFINITY);
+            Arrays.fill(broken, 0, size, false);
+        }
+
+        final boolean hasData(int column) {
+            return min[column] <= max[column];
+        }
+    }
+}
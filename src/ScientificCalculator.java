@@ -1,24 +1,70 @@
 import javax.swing.*;
+import javax.swing.event.DocumentEvent;
+import javax.swing.event.DocumentListener;
 import java.awt.*;
 import java.awt.event.*;
-import java.util.Stack;
+import java.io.IOException;
+import java.nio.file.Path;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.function.DoubleUnaryOperator;
+import java.util.function.Function;
 
 public class ScientificCalculator {
+    // Sub-intervals searched in parallel when solving over an interval
+    private static final int SOLVE_INTERVALS = 1024;
+    private static final int X_SLOT = 0;
+    // Only compiled against, never changed, so eval() can share it between threads
+    private static final SymbolTable CONSTANTS = SymbolTable.standard();
+
     private JFrame frame;
     private JTextField inputField;
-    private JTextArea historyArea;
-    private Stack<String> history;
+    private JList<String> historyList;
+    private HistoryListModel history;
+    private HistoryJournal journal;
+    private DefinitionListModel definitions;
+    private MatrixEvaluator matrices;
     private JPanel buttonPanel;
-    private Map<String, Double> variables;
+    private final Map<String, JButton> buttons = new HashMap<>();
+    private SymbolTable symbols;
+    private int memorySlot;
+    private ExpressionCache expressionCache;
+    private AsyncEvaluator evaluator;
+    private JLabel statusLabel;
+    private JButton cancelButton;
     private boolean radianMode = false;
+    private boolean complexMode = false;
+    private boolean polarDisplay = false;
+    // Live preview: tokens kept in step with the input field, evaluated once typing pauses
+    private static final int PREVIEW_DELAY_MILLIS = 150;
+    private static final long PREVIEW_BUDGET_MILLIS = 250;
+    private final TokenList previewTokens = new TokenList();
+    private AsyncEvaluator previewEvaluator;
+    private Timer previewTimer;
+    // Matrix work grows with the cube of the size; a 2000x2000 product alone takes seconds
+    private static final long MATRIX_BUDGET_MILLIS = Long.getLong("calculator.matrix.budgetMs", 60_000);
+    private JLabel previewLabel;
 
     public ScientificCalculator() {
-        history = new Stack<>();
-        variables = new HashMap<>();
-        variables.put("π", Math.PI);
-        variables.put("e", Math.E);
+        history = new HistoryListModel(HistoryBuffer.DEFAULT_CAPACITY);
+        loadJournal();
+        symbols = SymbolTable.standard();
+        memorySlot = symbols.variable("M");
+        symbols.alias("MR", "M");
+        definitions = new DefinitionListModel(new Definitions(symbols));
+        definitions.setDegrees(!radianMode);
+        matrices = new MatrixEvaluator(symbols);
+        // MR compiles to a slot load, so cached entries stay valid when memory
+        // changes. Workers compile against snapshots (see compileCached).
+        expressionCache = new ExpressionCache(ExpressionCache.DEFAULT_CAPACITY,
+                text -> Expression.compile(text, symbols));
+        evaluator = new AsyncEvaluator(this::setBusy);
+        previewEvaluator = new AsyncEvaluator(busy -> {
+        });
+        previewEvaluator.setBudgetMillis(PREVIEW_BUDGET_MILLIS);
+        previewTimer = new Timer(PREVIEW_DELAY_MILLIS, e -> updatePreview());
+        previewTimer.setRepeats(false);
         initializeUI();
     }
     private void initializeUI() {
@@ -34,7 +80,33 @@ public class ScientificCalculator {
         inputField.setFont(new Font("Arial", Font.PLAIN, 28));
         inputField.setHorizontalAlignment(JTextField.RIGHT);
         inputField.setMargin(new Insets(10, 10, 10, 10));
-        frame.add(inputField, BorderLayout.NORTH);
+        // A new input makes any calculation still running for the old one stale
+        inputField.getDocument().addDocumentListener(new DocumentListener() {
+            @Override
+            public void insertUpdate(DocumentEvent e) {
+                evaluator.cancel();
+                inputEdited(e.getOffset(), 0, e.getLength());
+            }
+
+            @Override
+            public void removeUpdate(DocumentEvent e) {
+                evaluator.cancel();
+                inputEdited(e.getOffset(), e.getLength(), 0);
+            }
+
+            @Override
+            public void changedUpdate(DocumentEvent e) {
+            }
+        });
+        previewLabel = new JLabel(" ");
+        previewLabel.setFont(new Font("Arial", Font.PLAIN, 16));
+        previewLabel.setForeground(Color.GRAY);
+        previewLabel.setHorizontalAlignment(JLabel.RIGHT);
+        previewLabel.setBorder(BorderFactory.createEmptyBorder(0, 10, 0, 10));
+        JPanel inputPanel = new JPanel(new BorderLayout());
+        inputPanel.add(inputField, BorderLayout.CENTER);
+        inputPanel.add(previewLabel, BorderLayout.SOUTH);
+        frame.add(inputPanel, BorderLayout.NORTH);
 
         // Button panel
         buttonPanel = new JPanel(new GridLayout(0, 5, 5, 5));
@@ -44,11 +116,40 @@ public class ScientificCalculator {
         JScrollPane buttonScrollPane = new JScrollPane(buttonPanel);
         frame.add(buttonScrollPane, BorderLayout.CENTER);
         // History area
-        historyArea = new JTextArea(8, 30);
-        historyArea.setEditable(false);
-        historyArea.setFont(new Font("Monospaced", Font.PLAIN, 14));
-        JScrollPane historyScrollPane = new JScrollPane(historyArea);
-        frame.add(historyScrollPane, BorderLayout.SOUTH);
+        historyList = createHistoryList(history);
+        JScrollPane historyScrollPane = new JScrollPane(historyList);
+        historyScrollPane.setColumnHeaderView(new JLabel(" Calculation History:"));
+        // Definitions are entered in the input field; double-click one to edit it there
+        JList<String> definitionList = createHistoryList(definitions);
+        definitionList.addMouseListener(new MouseAdapter() {
+            @Override
+            public void mouseClicked(MouseEvent e) {
+                int row = definitionList.locationToIndex(e.getPoint());
+                if (e.getClickCount() == 2 && row >= 0) {
+                    inputField.setText(definitions.definitions().all().get(row).source());
+                }
+            }
+        });
+        JScrollPane definitionScrollPane = new JScrollPane(definitionList);
+        definitionScrollPane.setColumnHeaderView(new JLabel(" Definitions (rate = 0.07, f(x) = x*(1+rate)):"));
+        JTabbedPane tabs = new JTabbedPane();
+        tabs.addTab("History", historyScrollPane);
+        tabs.addTab("Definitions", definitionScrollPane);
+
+        // Status bar
+        statusLabel = new JLabel(" ");
+        cancelButton = new JButton("Cancel");
+        cancelButton.setEnabled(false);
+        cancelButton.addActionListener(e -> evaluator.cancel());
+        JPanel statusBar = new JPanel(new BorderLayout(5, 5));
+        statusBar.setBorder(BorderFactory.createEmptyBorder(0, 10, 5, 10));
+        statusBar.add(statusLabel, BorderLayout.CENTER);
+        statusBar.add(cancelButton, BorderLayout.EAST);
+
+        JPanel southPanel = new JPanel(new BorderLayout());
+        southPanel.add(tabs, BorderLayout.CENTER);
+        southPanel.add(statusBar, BorderLayout.SOUTH);
+        frame.add(southPanel, BorderLayout.SOUTH);
         addKeyboardSupport();
         frame.setVisible(true);
     }
@@ -56,17 +157,34 @@ public class ScientificCalculator {
     private void createMenuBar() {
         JMenuBar menuBar = new JMenuBar();
         JMenu modeMenu = new JMenu("Mode");
-        JRadioButtonMenuItem degreeItem = new JRadioButtonMenuItem("Degrees");
-        JRadioButtonMenuItem radianItem = new JRadioButtonMenuItem("Radians", true);
+        JRadioButtonMenuItem degreeItem = new JRadioButtonMenuItem("Degrees", !radianMode);
+        JRadioButtonMenuItem radianItem = new JRadioButtonMenuItem("Radians", radianMode);
         ButtonGroup modeGroup = new ButtonGroup();
         modeGroup.add(degreeItem);
         modeGroup.add(radianItem);
 
-        degreeItem.addActionListener(e -> radianMode = false);
-        radianItem.addActionListener(e -> radianMode = true);
+        degreeItem.addActionListener(e -> setRadianMode(false));
+        radianItem.addActionListener(e -> setRadianMode(true));
 
         modeMenu.add(degreeItem);
         modeMenu.add(radianItem);
+        modeMenu.addSeparator();
+        JCheckBoxMenuItem complexItem = new JCheckBoxMenuItem("Complex Numbers");
+        JRadioButtonMenuItem rectangularItem = new JRadioButtonMenuItem("Rectangular (a + bi)", true);
+        JRadioButtonMenuItem polarItem = new JRadioButtonMenuItem("Polar (r ∠ θ)");
+        ButtonGroup displayGroup = new ButtonGroup();
+        displayGroup.add(rectangularItem);
+        displayGroup.add(polarItem);
+        complexItem.addActionListener(e -> complexMode = complexItem.isSelected());
+        rectangularItem.addActionListener(e -> polarDisplay = false);
+        polarItem.addActionListener(e -> polarDisplay = true);
+        modeMenu.add(complexItem);
+        modeMenu.add(rectangularItem);
+        modeMenu.add(polarItem);
+        modeMenu.addSeparator();
+        JMenuItem budgetItem = new JMenuItem("Time Budget...");
+        budgetItem.addActionListener(e -> changeTimeBudget());
+        modeMenu.add(budgetItem);
         menuBar.add(modeMenu);
 
         // Memory menu
@@ -77,17 +195,37 @@ public class ScientificCalculator {
 
         storeItem.addActionListener(e -> storeToMemory());
         recallItem.addActionListener(e -> recallFromMemory());
-        clearItem.addActionListener(e -> variables.clear());
+        clearItem.addActionListener(e -> symbols.undefine(memorySlot));
 
         memoryMenu.add(storeItem);
         memoryMenu.add(recallItem);
         memoryMenu.add(clearItem);
         menuBar.add(memoryMenu);
 
+        JMenu toolsMenu = new JMenu("Tools");
+        JMenuItem solveItem = new JMenuItem("Solve f(x) = 0...");
+        solveItem.addActionListener(e -> solveEquation());
+        toolsMenu.add(solveItem);
+        JMenuItem integrateItem = new JMenuItem("Integrate f(x) dx...");
+        integrateItem.addActionListener(e -> integrateFunction());
+        toolsMenu.add(integrateItem);
+        JMenuItem plotItem = new JMenuItem("Plot y = f(x)");
+        plotItem.addActionListener(e -> plotFunction());
+        toolsMenu.add(plotItem);
+        JMenuItem fileStatsItem = new JMenuItem("Summarize file...");
+        fileStatsItem.addActionListener(e -> summarizeFile());
+        toolsMenu.add(fileStatsItem);
+        toolsMenu.addSeparator();
+        JMenuItem statsItem = new JMenuItem("Statistics...");
+        statsItem.addActionListener(e -> showStatistics());
+        toolsMenu.add(statsItem);
+        menuBar.add(toolsMenu);
+
         frame.setJMenuBar(menuBar);
     }
 
     private void createButtons() {
+        Map<String, Runnable> commands = createCommands();
         // Button groups
         String[][] buttonGroups = {
                 {"7", "8", "9", "/", "sqrt", "x²", "x^y", "e^x", "ln"},
@@ -113,67 +251,73 @@ public class ScientificCalculator {
                     button.setBackground(new Color(255, 230, 200));
                 }
 
-                button.addActionListener(this::handleButtonClick);
+                // Resolved once here; labels without a command type themselves
+                Runnable command = commands.getOrDefault(text, () -> appendToInput(text));
+                button.addActionListener(e -> runCommand(command));
+                buttons.putIfAbsent(text, button);
                 buttonPanel.add(button);
             }
         }
     }
 
-    private void handleButtonClick(ActionEvent e) {
-        String command = e.getActionCommand();
+    // Button commands by label. Function keys apply the FunctionRegistry
+    // function of the same name that expressions call.
+    private Map<String, Runnable> createCommands() {
+        Map<String, Runnable> commands = new HashMap<>();
+        commands.put("=", this::evaluateExpression);
+        commands.put("C", () -> inputField.setText(""));
+        commands.put("CE", this::clearAll);
+
+        // Memory functions
+        commands.put("MS", this::storeToMemory);
+        commands.put("MR", this::recallFromMemory);
+        commands.put("MC", () -> symbols.undefine(memorySlot));
+        commands.put("M+", this::addToMemory);
+
+        // Scientific functions (computed off the event thread)
+        for (String name : new String[]{"sin", "cos", "tan"}) {
+            MathFunction function = FunctionRegistry.lookup(name);
+            commands.put(name, () -> {
+                boolean radians = radianMode;
+                applyToCurrent(v -> function.apply(radians ? v : Math.toRadians(v)));
+            });
+        }
+        String[][] functionKeys = {{"sqrt", "sqrt"}, {"log", "log"}, {"ln", "ln"}, {"e^x", "exp"}, {"|x|", "abs"}};
+        for (String[] key : functionKeys) {
+            MathFunction function = FunctionRegistry.lookup(key[1]);
+            commands.put(key[0], () -> applyToCurrent(function::apply));
+        }
+        MathFunction rand = FunctionRegistry.lookup("rand");
+        commands.put("rand", () -> inputField.setText(String.valueOf(rand.apply())));
+        commands.put("pow", () -> appendToInput("^"));
+        commands.put("x^y", () -> appendToInput("^"));
+        commands.put("mod", () -> appendToInput("%"));
+        commands.put("π", () -> appendToInput(String.valueOf(Math.PI)));
+        commands.put("e", () -> appendToInput(String.valueOf(Math.E)));
+        commands.put("x²", () -> applyToCurrent(v -> Math.pow(v, 2)));
+        commands.put("x³", () -> applyToCurrent(v -> Math.pow(v, 3)));
+        commands.put("10^x", () -> applyToCurrent(v -> Math.pow(10, v)));
+        commands.put("1/x", () -> applyToCurrent(v -> 1 / v));
+        commands.put("!", () -> {
+            double value = getCurrentValue();
+            evaluator.submit(() -> Factorials.display(value), inputField::setText,
+                    ex -> showError("Invalid operation: " + ex.getMessage()));
+        });
+        return commands;
+    }
+
+    private void runCommand(Runnable command) {
         try {
-            switch (command) {
-                // Basic operations
-                case "=" -> evaluateExpression();
-                case "C" -> inputField.setText("");
-                case "CE" -> clearAll();
-
-                // Memory functions
-                case "MS" -> storeToMemory();
-                case "MR" -> recallFromMemory();
-                case "MC" -> variables.clear();
-                case "M+" -> addToMemory();
-
-                // Scientific functions
-                case "sqrt" -> inputField.setText(String.valueOf(Math.sqrt(getCurrentValue())));
-                case "pow" -> inputField.setText(inputField.getText() + "^");
-                case "sin" -> inputField.setText(String.valueOf(calculateTrigFunction("sin")));
-                case "cos" -> inputField.setText(String.valueOf(calculateTrigFunction("cos")));
-                case "tan" -> inputField.setText(String.valueOf(calculateTrigFunction("tan")));
-                case "log" -> inputField.setText(String.valueOf(Math.log10(getCurrentValue())));
-                case "ln" -> inputField.setText(String.valueOf(Math.log(getCurrentValue())));
-                case "π" -> appendToInput(String.valueOf(Math.PI));
-                case "e" -> appendToInput(String.valueOf(Math.E));
-                case "x²" -> inputField.setText(String.valueOf(Math.pow(getCurrentValue(), 2)));
-                case "x³" -> inputField.setText(String.valueOf(Math.pow(getCurrentValue(), 3)));
-                case "x^y" -> inputField.setText(inputField.getText() + "^");
-                case "10^x" -> inputField.setText(String.valueOf(Math.pow(10, getCurrentValue())));
-                case "e^x" -> inputField.setText(String.valueOf(Math.exp(getCurrentValue())));
-                case "!" -> inputField.setText(String.valueOf(factorial(getCurrentValue())));
-                case "mod" -> inputField.setText(inputField.getText() + "%");
-                case "rand" -> inputField.setText(String.valueOf(Math.random()));
-                case "1/x" -> inputField.setText(String.valueOf(1 / getCurrentValue()));
-                case "|x|" -> inputField.setText(String.valueOf(Math.abs(getCurrentValue())));
-
-                // Default case for numbers and operators
-                default -> appendToInput(command);
-            }
+            command.run();
         } catch (Exception ex) {
             showError("Invalid operation: " + ex.getMessage());
         }
     }
 
-    private double calculateTrigFunction(String function) {
+    private void applyToCurrent(DoubleUnaryOperator function) {
         double value = getCurrentValue();
-        if (!radianMode) {
-            value = Math.toRadians(value);
-        }
-        return switch (function) {
-            case "sin" -> Math.sin(value);
-            case "cos" -> Math.cos(value);
-            case "tan" -> Math.tan(value);
-            default -> throw new IllegalArgumentException("Unknown function");
-        };
+        evaluator.submit(() -> String.valueOf(function.applyAsDouble(value)), inputField::setText,
+                ex -> showError("Invalid operation: " + ex.getMessage()));
     }
 
     private void appendToInput(String text) {
@@ -181,42 +325,44 @@ public class ScientificCalculator {
     }
 
     private void storeToMemory() {
-        try {
-            double value = eval(inputField.getText());
-            variables.put("M", value);
+        evaluator.submit(scalarTask(inputField.getText().trim()), value -> {
+            if (!Double.isFinite(value)) {
+                showError("Cannot store invalid value to memory");
+                return;
+            }
+            symbols.set(memorySlot, value);
             showMessage("Stored " + value + " to memory");
-        } catch (Exception e) {
-            showError("Cannot store invalid value to memory");
-        }
+        }, e -> showError("Cannot store invalid value to memory: " + e.getMessage()));
     }
 
     private void recallFromMemory() {
-        if (variables.containsKey("M")) {
-            inputField.setText(String.valueOf(variables.get("M")));
+        if (symbols.isDefined(memorySlot)) {
+            inputField.setText(String.valueOf(symbols.get(memorySlot)));
         } else {
             showError("No value stored in memory");
         }
     }
 
     private void addToMemory() {
-        if (variables.containsKey("M")) {
-            try {
-                double current = variables.get("M");
-                double toAdd = eval(inputField.getText());
-                variables.put("M", current + toAdd);
-                showMessage("Added " + toAdd + " to memory");
-            } catch (Exception e) {
-                showError("Cannot add invalid value to memory");
-            }
-        } else {
+        if (!symbols.isDefined(memorySlot)) {
             storeToMemory();
+            return;
         }
+        evaluator.submit(scalarTask(inputField.getText().trim()), toAdd -> {
+            if (!Double.isFinite(toAdd)) {
+                showError("Cannot add invalid value to memory");
+                return;
+            }
+            // Memory as it is now, in case it changed while the input was evaluated
+            symbols.set(memorySlot, symbols.get(memorySlot) + toAdd);
+            showMessage("Added " + toAdd + " to memory");
+        }, e -> showError("Cannot add invalid value to memory: " + e.getMessage()));
     }
 
     private void clearAll() {
         inputField.setText("");
         history.clear();
-        historyArea.setText("");
+        if (journal != null) journal.clear();
     }
 
     private double getCurrentValue() {
@@ -230,66 +376,416 @@ public class ScientificCalculator {
         }
     }
 
-    private long factorial(double n) {
-        if (n < 0) throw new IllegalArgumentException("Factorial of negative number");
-        if (n > 20) throw new IllegalArgumentException("Value too large for factorial");
-        long result = 1;
-        for (int i = 1; i <= n; i++) {
-            result *= i;
+    private void evaluateExpression() {
+        String input = inputField.getText().trim();
+        if (input.isEmpty()) {
+            showError("No input provided");
+            return;
+        }
+        // Only input with matrices in it leaves the scalar path
+        if (matrices.handles(input)) {
+            evaluateMatrix(input);
+            return;
+        }
+        if (Definitions.isDefinition(input)) {
+            define(input);
+            return;
+        }
+        if (complexMode) {
+            evaluateComplex(input);
+            return;
         }
-        return result;
+
+        evaluator.submit(scalarTask(input), result -> showResult(input, result),
+                e -> showError("Calculation error: " + e.getMessage()));
     }
 
-    private void evaluateExpression() {
-        try {
-            String input = inputField.getText().trim();
-            if (input.isEmpty()) {
-                showError("No input provided");
-                return;
+    // Evaluates input as a real number on a worker, against the symbols as they are now
+    private Callable<Double> scalarTask(String input) {
+        boolean hasMemory = symbols.isDefined(memorySlot);
+        // Snapshot on the EDT; the worker must not see later memory changes
+        double[] values = symbols.values().clone();
+        Function<String, Expression> compiler = compileCached();
+        return () -> {
+            // Cached by input text, so repeated expressions skip parsing
+            Expression expression = compiler.apply(input);
+            if (!hasMemory && expression.usesVariable(memorySlot)) {
+                throw new IllegalStateException("No value stored in memory");
             }
+            long start = Metrics.start();
+            double result = expression.evaluate(values);
+            Metrics.recordEvaluation(input, start);
+            if (!Double.isFinite(result)) Metrics.failed(Metrics.Stage.EVALUATE);
+            return result;
+        };
+    }
 
-            // Replace special constants and functions
-            input = preprocessInput(input);
+    // Runs on every keystroke, so it only relexes around the edit and
+    // restarts the preview timer; parsing and evaluation wait for a pause
+    private void inputEdited(int offset, int removed, int inserted) {
+        previewTokens.edit(inputField.getText(), offset, removed, inserted);
+        previewEvaluator.cancel();
+        previewTimer.restart();
+    }
 
-            double result = eval(input);
-            if (Double.isInfinite(result)) {
+    // Shows what the input would evaluate to, without recording anything.
+    // Definitions and matrix input are left to =, since evaluating them has
+    // side effects or can take long.
+    private void updatePreview() {
+        String input = previewTokens.text().trim();
+        if (input.isEmpty() || Definitions.isDefinition(input) || matrices.handles(input)) {
+            previewLabel.setText(" ");
+            return;
+        }
+        TokenList tokens = previewTokens.copy();
+        boolean complex = complexMode, polar = polarDisplay;
+        boolean hasMemory = symbols.isDefined(memorySlot);
+        // A copy either way, so the worker never reads the table define() changes
+        SymbolTable table = complex ? compileTable().withParameters("i") : compileTable();
+        double[] values = complex ? functionBindings() : symbols.values().clone();
+        int memory = complex ? 1 + memorySlot : memorySlot;
+        previewEvaluator.submit(() -> {
+            // Usually evaluated once, so not worth optimizing
+            Expression expression = new ExpressionCompiler(tokens, table).compile();
+            if (expression == null || (!hasMemory && expression.usesVariable(memory))) return null;
+            if (!complex) {
+                double result = expression.evaluate(values);
+                return Double.isFinite(result) ? String.valueOf(result) : null;
+            }
+            double[] imaginary = new double[values.length];
+            imaginary[0] = 1;
+            ComplexEvaluator interpreter = new ComplexEvaluator();
+            double re = interpreter.evaluate(expression, values, imaginary);
+            double im = interpreter.imaginary();
+            return Double.isNaN(re) || Double.isNaN(im) ? null : ComplexEvaluator.format(re, im, polar);
+        }, result -> previewLabel.setText(result == null ? " " : "= " + result), e -> previewLabel.setText(" "));
+    }
+
+    // Evaluates the input over complex numbers, with i bound to the imaginary unit
+    private void evaluateComplex(String input) {
+        boolean hasMemory = symbols.isDefined(memorySlot);
+        SymbolTable table = compileTable().withParameters("i");
+        double[] valuesRe = functionBindings();
+        double[] valuesIm = new double[valuesRe.length];
+        valuesIm[0] = 1;
+        boolean polar = polarDisplay;
+        evaluator.submit(() -> {
+            // Unoptimized, so real constant folding cannot turn sqrt(-1) into NaN
+            Expression expression = Expression.compile(input, table, false);
+            if (!hasMemory && expression.usesVariable(1 + memorySlot)) {
+                throw new IllegalStateException("No value stored in memory");
+            }
+            ComplexEvaluator complex = new ComplexEvaluator();
+            double re = complex.evaluate(expression, valuesRe, valuesIm);
+            return new double[]{re, complex.imaginary()};
+        }, z -> {
+            if (Double.isNaN(z[0]) || Double.isNaN(z[1])) {
+                showError("Invalid calculation");
+                return;
+            }
+            if (Double.isInfinite(z[0]) || Double.isInfinite(z[1])) {
                 showError("Result is too large");
                 return;
             }
-            if (Double.isNaN(result)) {
-                showError("Invalid calculation");
+            updateHistory(input + " = " + ComplexEvaluator.format(z[0], z[1], polar));
+            inputField.setText(ComplexEvaluator.toExpression(z[0], z[1]));
+        }, e -> showError("Calculation error: " + e.getMessage()));
+    }
+
+    // A snapshot of the symbols to compile input against, with trig functions
+    // in degrees unless in radian mode
+    private SymbolTable compileTable() {
+        return radianMode ? symbols.copy() : symbols.inDegrees();
+    }
+
+    // Definitions are compiled again in the new unit, which changes the table
+    // as define() does; cached programs and the preview were for the old one
+    private void setRadianMode(boolean radians) {
+        if (radians == radianMode) return;
+        evaluator.cancel();
+        previewEvaluator.cancel();
+        radianMode = radians;
+        definitions.setDegrees(!radians);
+        expressionCache.clear();
+        previewTimer.restart();
+    }
+
+    // Compiles through the expression cache against a snapshot of the symbols
+    // taken now, on the EDT, so a worker never reads the table while define()
+    // changes it and cannot cache a program that a redefinition made stale
+    private Function<String, Expression> compileCached() {
+        SymbolTable table = compileTable();
+        long generation = expressionCache.generation();
+        return input -> expressionCache.get(input, text -> Expression.compile(text, table), generation);
+    }
+
+    // Defines or redefines a value or function and recomputes what depends on it
+    private void define(String input) {
+        // A result still being computed from the old definitions is stale
+        evaluator.cancel();
+        previewEvaluator.cancel();
+        try {
+            Definitions.Update update = definitions.define(input);
+            // Cached programs inlined the old body of a redefined function
+            if (update.recompiled()) expressionCache.clear();
+            updateHistory(update.definition().toString());
+            inputField.setText("");
+        } catch (RuntimeException e) {
+            showError("Definition error: " + e.getMessage());
+        }
+    }
+
+    // Evaluates matrix input, or assigns it for "A = ..." input; the result is
+    // also kept as ans, which the input field shows when it is too big to list
+    private void evaluateMatrix(String input) {
+        boolean assignment = Definitions.isDefinition(input);
+        String name = assignment ? input.substring(0, input.indexOf('=')).trim() : "ans";
+        String expression = assignment ? input.substring(input.indexOf('=') + 1) : input;
+        if (!Definitions.isName(name)) {
+            showError("Matrix definitions cannot take parameters");
+            return;
+        }
+        // Snapshot on the EDT, as for scalar input; define() may change the table meanwhile
+        SymbolTable table = compileTable();
+        evaluator.submit(() -> matrices.evaluate(expression, table), result -> {
+            try {
+                matrices.store(name, result);
+                if (!name.equals("ans")) matrices.store("ans", result);
+            } catch (IllegalArgumentException e) {
+                showError("Matrix error: " + e.getMessage());
                 return;
             }
+            updateHistory(input + " = " + result);
+            inputField.setText(result.isShownInFull() ? result.toString() : "ans");
+        }, e -> showError("Matrix error: " + e.getMessage()), Math.max(MATRIX_BUDGET_MILLIS, evaluator.getBudgetMillis()));
+    }
+
+    private void showResult(String input, double result) {
+        if (Double.isInfinite(result)) {
+            showError("Result is too large");
+            return;
+        }
+        if (Double.isNaN(result)) {
+            showError("Invalid calculation");
+            return;
+        }
+
+        String entry = input + " = " + result;
+        updateHistory(entry);
+        inputField.setText(String.valueOf(result));
+    }
+
+    private void setBusy(boolean busy) {
+        statusLabel.setText(busy ? "Calculating... (Esc to cancel)" : " ");
+        cancelButton.setEnabled(busy);
+    }
+
+    // Solves the input, an expression in x, from a start value or for all roots in an interval
+    private void solveEquation() {
+        String input = inputField.getText().trim();
+        if (input.isEmpty()) {
+            showError("Enter an expression in x to solve");
+            return;
+        }
+        String range = JOptionPane.showInputDialog(frame,
+                "Solve " + input + " = 0 for x.\nStart value, or interval as a, b:", "0");
+        if (range == null) return;
+        String[] parts = range.split(",");
+        double[] bounds = new double[parts.length];
+        try {
+            if (parts.length > 2) throw new IllegalArgumentException();
+            for (int i = 0; i < parts.length; i++) {
+                bounds[i] = eval(parts[i].trim());
+            }
+        } catch (RuntimeException e) {
+            showError("Invalid start value or interval: " + range);
+            return;
+        }
+
+        boolean hasMemory = symbols.isDefined(memorySlot);
+        SymbolTable table = compileTable().withParameters("x");
+        double[] bindings = functionBindings();
+        evaluator.submit(() -> {
+            Solver solver = new Solver(compileFunction(input, table, hasMemory), X_SLOT, bindings);
+            return bounds.length == 1
+                    ? new double[]{solver.solve(bounds[0])}
+                    : solver.roots(bounds[0], bounds[1], SOLVE_INTERVALS);
+        }, roots -> showRoots(input, roots), e -> showError("Solve error: " + e.getMessage()));
+    }
+
+    // Integrates the input, an expression in x, over an interval
+    private void integrateFunction() {
+        String input = inputField.getText().trim();
+        if (input.isEmpty()) {
+            showError("Enter an expression in x to integrate");
+            return;
+        }
+        String range = JOptionPane.showInputDialog(frame,
+                "Integrate " + input + " dx.\nInterval as a, b:", "0, 1");
+        if (range == null) return;
+        String[] parts = range.split(",");
+        double a, b;
+        try {
+            if (parts.length != 2) throw new IllegalArgumentException();
+            a = eval(parts[0].trim());
+            b = eval(parts[1].trim());
+        } catch (RuntimeException e) {
+            showError("Invalid interval: " + range);
+            return;
+        }
+
+        boolean hasMemory = symbols.isDefined(memorySlot);
+        SymbolTable table = compileTable().withParameters("x");
+        double[] bindings = functionBindings();
+        evaluator.submit(() -> new Integrator(compileFunction(input, table, hasMemory), X_SLOT, bindings).integrate(a, b),
+                result -> {
+                    updateHistory("∫ " + input + " dx from " + a + " to " + b + " = " + result);
+                    inputField.setText(String.valueOf(result));
+                }, e -> showError("Integration error: " + e.getMessage()));
+    }
 
-            String entry = input + " = " + result;
-            history.push(entry);
-            updateHistory();
-            inputField.setText(String.valueOf(result));
-        } catch (Exception e) {
-            showError("Calculation error: " + e.getMessage());
+    // Count, mean, spread and quantiles of a column of numbers in a file of any size
+    private void summarizeFile() {
+        JFileChooser chooser = new JFileChooser();
+        if (chooser.showOpenDialog(frame) != JFileChooser.APPROVE_OPTION) return;
+        Path path = chooser.getSelectedFile().toPath();
+        String column = JOptionPane.showInputDialog(frame, "Column of " + path.getFileName() + " (from 1):", "1");
+        if (column == null) return;
+        int index;
+        try {
+            index = Integer.parseInt(column.trim()) - 1;
+            if (index < 0) throw new NumberFormatException();
+        } catch (NumberFormatException e) {
+            showError("Invalid column: " + column);
+            return;
         }
+
+        // Large files take as long as they take; Cancel or Esc stops the scan
+        evaluator.submit(() -> StreamingStatistics.read(path, index), stats -> {
+            updateHistory("mean of " + path.getFileName() + " = " + stats.mean());
+            inputField.setText(String.valueOf(stats.mean()));
+            JTextArea text = new JTextArea(stats.toString());
+            text.setFont(new Font("Monospaced", Font.PLAIN, 12));
+            text.setEditable(false);
+            JOptionPane.showMessageDialog(frame, text, path.getFileName().toString(), JOptionPane.PLAIN_MESSAGE);
+        }, e -> showError("Statistics error: " + e.getMessage()), AsyncEvaluator.NO_BUDGET);
     }
 
-    private String preprocessInput(String input) {
-        // Replace constants
-        input = input.replace("π", String.valueOf(Math.PI))
-                .replace("e", String.valueOf(Math.E));
+    // Opens a zoomable plot of the input as a function of x
+    private void plotFunction() {
+        String input = inputField.getText().trim();
+        if (input.isEmpty()) {
+            showError("Enter an expression in x to plot");
+            return;
+        }
+        Expression f;
+        try {
+            f = compileFunction(input, compileTable().withParameters("x"), symbols.isDefined(memorySlot));
+        } catch (RuntimeException e) {
+            showError("Plot error: " + e.getMessage());
+            return;
+        }
+        PlotPanel plot = new PlotPanel(f, X_SLOT, functionBindings());
+        JFrame plotFrame = new JFrame("y = " + input);
+        plotFrame.setDefaultCloseOperation(JFrame.DISPOSE_ON_CLOSE);
+        plotFrame.addWindowListener(new WindowAdapter() {
+            @Override
+            public void windowClosed(WindowEvent e) {
+                plot.dispose();
+            }
+        });
+        plotFrame.add(plot);
+        plotFrame.setSize(800, 600);
+        plotFrame.setLocationRelativeTo(frame);
+        plotFrame.setVisible(true);
+    }
 
-        // Replace memory variable
-        if (variables.containsKey("M")) {
-            input = input.replace("MR", String.valueOf(variables.get("M")));
+    // Compiles input as a function of x (slot X_SLOT) against compileTable().withParameters("x"),
+    // so memory, definitions and defined functions can be used in it
+    private Expression compileFunction(String input, SymbolTable table, boolean hasMemory) {
+        Expression f = Expression.compile(input, table);
+        if (!hasMemory && f.usesVariable(X_SLOT + 1 + memorySlot)) {
+            throw new IllegalStateException("No value stored in memory");
         }
+        return f;
+    }
 
-        return input;
+    // Values for the slots of compileFunction's table, with x = 0
+    private double[] functionBindings() {
+        double[] bindings = new double[symbols.size() + 1];
+        System.arraycopy(symbols.values(), 0, bindings, X_SLOT + 1, symbols.size());
+        return bindings;
     }
 
-    private void updateHistory() {
-        StringBuilder sb = new StringBuilder();
-        sb.append("Calculation History:\n");
-        for (String entry : history) {
-            sb.append("• ").append(entry).append("\n");
+    private void showRoots(String input, double[] roots) {
+        if (roots.length == 0) {
+            showMessage("No roots of " + input + " found");
+            return;
         }
-        historyArea.setText(sb.toString());
+        StringBuilder entry = new StringBuilder(input).append(" = 0 for x = ");
+        for (int i = 0; i < roots.length; i++) {
+            if (i > 0) entry.append(", ");
+            entry.append(roots[i]);
+        }
+        updateHistory(entry.toString());
+        inputField.setText(String.valueOf(roots[0]));
+    }
+
+    private void changeTimeBudget() {
+        String value = JOptionPane.showInputDialog(frame, "Maximum time per calculation (ms):",
+                evaluator.getBudgetMillis());
+        if (value == null) return;
+        try {
+            evaluator.setBudgetMillis(Long.parseLong(value.trim()));
+        } catch (IllegalArgumentException e) {
+            showError("Invalid time budget: " + value);
+        }
+    }
+
+    private void loadJournal() {
+        try {
+            journal = HistoryJournal.open(HistoryJournal.DEFAULT_PATH);
+            history.addAll(journal.readLast(history.entries().capacity()));
+        } catch (IOException e) {
+            System.err.println("History will not be saved: " + e.getMessage());
+        }
+    }
+
+    private void updateHistory(String entry) {
+        long start = Metrics.start();
+        if (journal != null) journal.append(entry);
+        history.add(entry);
+        historyList.ensureIndexIsVisible(history.getSize() - 1);
+        Metrics.record(Metrics.Stage.HISTORY, start);
+    }
+
+    // Fixed cell metrics let the list skip measuring every row, so only visible rows are rendered
+    static JList<String> createHistoryList(ListModel<String> model) {
+        JList<String> list = new JList<>(model);
+        list.setFont(new Font("Monospaced", Font.PLAIN, 14));
+        list.setVisibleRowCount(8);
+        list.setPrototypeCellValue("• " + "0".repeat(30));
+        list.setCellRenderer(new DefaultListCellRenderer() {
+            @Override
+            public Component getListCellRendererComponent(JList<?> list, Object value, int index,
+                                                          boolean isSelected, boolean cellHasFocus) {
+                super.getListCellRendererComponent(list, "• " + value, index, isSelected, cellHasFocus);
+                setToolTipText(String.valueOf(value));
+                return this;
+            }
+        });
+        ToolTipManager.sharedInstance().registerComponent(list);
+        return list;
+    }
+
+    private void showStatistics() {
+        JTextArea text = new JTextArea(Metrics.dump() + "\n" + expressionCache + "\n");
+        text.setFont(new Font("Monospaced", Font.PLAIN, 12));
+        text.setEditable(false);
+        Object[] options = {"Close", "Reset"};
+        int choice = JOptionPane.showOptionDialog(frame, text, "Statistics", JOptionPane.DEFAULT_OPTION,
+                JOptionPane.PLAIN_MESSAGE, null, options, options[0]);
+        if (choice == 1) Metrics.reset();
     }
 
     private void showError(String message) {
@@ -320,88 +816,35 @@ public class ScientificCalculator {
         };
 
         for (String key : keyBindings) {
+            JButton button = buttons.get(key);
             inputMap.put(KeyStroke.getKeyStroke(key.charAt(0)), key);
             actionMap.put(key, new AbstractAction() {
                 @Override
                 public void actionPerformed(ActionEvent e) {
-                    for (Component comp : buttonPanel.getComponents()) {
-                        if (comp instanceof JButton) {
-                            JButton btn = (JButton) comp;
-                            if (btn.getText().equals(key)) {
-                                btn.doClick();
-                                break;
-                            }
-                        }
-                    }
+                    button.doClick();
                 }
             });
         }
-    }
-
-    // Enhanced eval method with better error handling
-    public static double eval(final String str) {
-        return new Object() {
-            int pos = -1, ch;
 
-            void nextChar() {
-                ch = (++pos < str.length()) ? str.charAt(pos) : -1;
-            }
-
-            boolean eat(int charToEat) {
-                while (ch == ' ') nextChar();
-                if (ch == charToEat) {
-                    nextChar();
-                    return true;
-                }
-                return false;
-            }
-
-            double parse() {
-                nextChar();
-                double x = parseExpression();
-                if (pos < str.length()) throw new RuntimeException("Unexpected character: " + (char)ch);
-                return x;
-            }
-
-            double parseExpression() {
-                double x = parseTerm();
-                for (;;) {
-                    if      (eat('+')) x += parseTerm();
-                    else if (eat('-')) x -= parseTerm();
-                    else return x;
-                }
-            }
-
-            double parseTerm() {
-                double x = parseFactor();
-                for (;;) {
-                    if      (eat('*')) x *= parseFactor();
-                    else if (eat('/')) x /= parseFactor();
-                    else if (eat('%')) x %= parseFactor();
-                    else return x;
-                }
+        // Escape cancels a running calculation
+        inputMap.put(KeyStroke.getKeyStroke(KeyEvent.VK_ESCAPE, 0), "cancel");
+        actionMap.put("cancel", new AbstractAction() {
+            @Override
+            public void actionPerformed(ActionEvent e) {
+                evaluator.cancel();
             }
+        });
+    }
 
-            double parseFactor() {
-                if (eat('+')) return parseFactor();
-                if (eat('-')) return -parseFactor();
-
-                double x;
-                int startPos = this.pos;
-                if (eat('(')) {
-                    x = parseExpression();
-                    if (!eat(')')) throw new RuntimeException("Missing ')'");
-                } else if ((ch >= '0' && ch <= '9') || ch == '.') {
-                    while ((ch >= '0' && ch <= '9') || ch == '.') nextChar();
-                    x = Double.parseDouble(str.substring(startPos, this.pos));
-                } else {
-                    throw new RuntimeException("Unexpected: " + (char)ch);
-                }
+    // Enhanced eval method with better error handling. Input is evaluated
+    // once, so it is not optimized, and it only sees the built-in constants.
+    public static double eval(final String str) {
+        return Expression.compile(str, CONSTANTS, false).evaluate();
+    }
 
-                if (eat('^')) x = Math.pow(x, parseFactor());
-                return x;
-            }
-        }.parse();
+    // Parses once; the returned expression can be evaluated repeatedly without re-scanning
+    public static Expression compile(String str, String... variables) {
+        return Expression.compile(str, variables);
     }
 
 
@@ -0,0 +1,258 @@
+import java.util.Arrays;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+// Finds roots of f(x) = 0 for a compiled expression. f' and f'' are derived
+// symbolically once, so every iteration is just a few passes over compiled
+// programs. Halley's method (Newton's when f'' is unavailable) runs from a
+// starting point; when the derivative misbehaves or there is no derivative,
+// it falls back to bracketing the root and Brent's method.
+public final class Solver {
+    static final int MAX_ITERATIONS = 100;
+    private static final double EPSILON = Math.ulp(1.0);
+    private static final int MAX_BRACKET_STEPS = 64;
+
+    private final Expression f;
+    private final Expression df, d2f; // null where f cannot be differentiated
+    private final int variable;
+    private final double[] bindings;
+
+    // variable is the slot of x; bindings supplies the other variables of f
+    public Solver(Expression f, int variable, double... bindings) {
+        this.f = f;
+        this.variable = variable;
+        this.bindings = Arrays.copyOf(bindings, Math.max(bindings.length,
+                Math.max(variable + 1, f.variables().length)));
+        Expression first = null, second = null;
+        try {
+            first = Derivatives.derivative(f, variable);
+            second = Derivatives.derivative(first, variable);
+        } catch (IllegalArgumentException e) {
+            // No closed form; Newton without f'' or bracketing only
+        }
+        this.df = first;
+        this.d2f = second;
+    }
+
+    // f', or null if f has no closed-form derivative
+    public Expression derivative() {
+        return df;
+    }
+
+    // A root near x0
+    public double solve(double x0) {
+        double[] values = bindings.clone();
+        double root = iterate(values, x0, Double.NEGATIVE_INFINITY, Double.POSITIVE_INFINITY);
+        if (!Double.isNaN(root)) return root;
+        root = bracketAndSolve(values, x0);
+        if (!Double.isNaN(root)) return root;
+        throw new ArithmeticException("No root found near " + x0);
+    }
+
+    // A root in [a, b]: Brent's method if f changes sign, otherwise iteration from the midpoint
+    public double solve(double a, double b) {
+        if (!(a < b)) throw new IllegalArgumentException("Empty interval [" + a + ", " + b + "]");
+        double[] values = bindings.clone();
+        double fa = eval(f, values, a), fb = eval(f, values, b);
+        double root = brackets(fa, fb) ? brent(values, a, b, fa, fb) : iterate(values, (a + b) / 2, a, b);
+        if (!Double.isNaN(root)) return root;
+        throw new ArithmeticException("No root found in [" + a + ", " + b + "]");
+    }
+
+    // All roots found in [a, b], sorted, searching the given number of
+    // sub-intervals in parallel. Roots closer together than a sub-interval
+    // may be missed; use more intervals to resolve them.
+    public double[] roots(double a, double b, int intervals) {
+        if (!(a < b)) throw new IllegalArgumentException("Empty interval [" + a + ", " + b + "]");
+        if (intervals < 1) throw new IllegalArgumentException("Intervals must be positive: " + intervals);
+        // Each interval reports at most a sign-change root and a touching (even multiplicity) root
+        double[] found = new double[intervals * 2];
+        Arrays.fill(found, Double.NaN);
+        int grain = Math.max(1, intervals / (ForkJoinPool.getCommonPoolParallelism() * 4));
+        ForkJoinPool.commonPool().invoke(new IntervalTask(a, b, intervals, 0, intervals, grain, found,
+                Thread.currentThread()));
+
+        Arrays.sort(found); // NaNs sort last
+        double[] roots = new double[found.length];
+        int count = 0;
+        double width = (b - a) / intervals;
+        for (double root : found) {
+            if (Double.isNaN(root)) break;
+            if (count > 0 && root - roots[count - 1] <= Math.max(1e-9 * width, 4 * Math.ulp(root))) continue;
+            roots[count++] = root;
+        }
+        return Arrays.copyOf(roots, count);
+    }
+
+    private void searchInterval(double[] values, double lo, double hi, double[] found, int index) {
+        double flo = eval(f, values, lo), fhi = eval(f, values, hi);
+        if (flo == 0) {
+            found[index] = lo;
+        } else if (fhi != 0 && brackets(flo, fhi)) {
+            found[index] = brent(values, lo, hi, flo, fhi);
+        }
+        if (df != null) {
+            // Roots that touch zero without crossing it give no sign change
+            double root = iterate(values, (lo + hi) / 2, lo, hi);
+            if (!Double.isNaN(root) && root < hi) found[index + 1] = root;
+        }
+    }
+
+    // Halley / Newton from x0, staying within [lo, hi]; NaN if it does not converge there
+    private double iterate(double[] values, double x0, double lo, double hi) {
+        if (df == null) return Double.NaN;
+        double x = x0;
+        for (int i = 0; i < MAX_ITERATIONS; i++) {
+            double fx = eval(f, values, x);
+            if (fx == 0) return x;
+            double dfx = eval(df, values, x);
+            if (!Double.isFinite(fx) || !Double.isFinite(dfx) || dfx == 0) return Double.NaN;
+            double step = fx / dfx;
+            if (d2f != null) {
+                double denominator = 1 - step * eval(d2f, values, x) / (2 * dfx);
+                // Halley's correction only where it is well behaved; plain Newton otherwise
+                if (Double.isFinite(denominator) && denominator > 0.5 && denominator < 2) step /= denominator;
+            }
+            double next = x - step;
+            if (!(next >= lo && next <= hi)) return Double.NaN;
+            if (Math.abs(next - x) <= 4 * EPSILON * Math.abs(next) || next == x) {
+                return next;
+            }
+            x = next;
+        }
+        return Double.NaN;
+    }
+
+    // Walks outwards from x0 in doubling steps until f changes sign, then runs Brent
+    private double bracketAndSolve(double[] values, double x0) {
+        double f0 = eval(f, values, x0);
+        if (f0 == 0) return x0;
+        double step = Math.max(1e-3, Math.abs(x0) * 1e-3);
+        double left = x0, fLeft = f0, right = x0, fRight = f0;
+        for (int i = 0; i < MAX_BRACKET_STEPS; i++, step *= 2) {
+            checkInterrupted(Thread.currentThread());
+            double r = x0 + step, fr = eval(f, values, r);
+            if (Double.isFinite(fr)) {
+                if (brackets(fRight, fr)) {
+                    double root = brent(values, right, r, fRight, fr);
+                    if (!Double.isNaN(root)) return root;
+                }
+                right = r;
+                fRight = fr;
+            }
+            double l = x0 - step, fl = eval(f, values, l);
+            if (Double.isFinite(fl)) {
+                if (brackets(fl, fLeft)) {
+                    double root = brent(values, l, left, fl, fLeft);
+                    if (!Double.isNaN(root)) return root;
+                }
+                left = l;
+                fLeft = fl;
+            }
+        }
+        return Double.NaN;
+    }
+
+    // Brent's zeroin: inverse quadratic interpolation and secant steps, falling back
+    // to bisection, so it always converges on a sign change. NaN if the sign change
+    // turns out to be a pole rather than a root.
+    private double brent(double[] values, double a, double b, double fa, double fb) {
+        double limit = Math.min(Math.abs(fa), Math.abs(fb));
+        double c = b, fc = fb, d = b - a, e = d;
+        for (int i = 0; i < MAX_ITERATIONS * 2; i++) {
+            if ((fb > 0) == (fc > 0)) {
+                c = a;
+                fc = fa;
+                d = e = b - a;
+            }
+            if (Math.abs(fc) < Math.abs(fb)) {
+                a = b;
+                b = c;
+                c = a;
+                fa = fb;
+                fb = fc;
+                fc = fa;
+            }
+            double tolerance = 2 * EPSILON * Math.abs(b) + Double.MIN_NORMAL;
+            double m = (c - b) / 2;
+            if (Math.abs(m) <= tolerance || fb == 0) break;
+            if (Math.abs(e) >= tolerance && Math.abs(fa) > Math.abs(fb)) {
+                double s = fb / fa, p, q;
+                if (a == c) {
+                    p = 2 * m * s;
+                    q = 1 - s;
+                } else {
+                    q = fa / fc;
+                    double r = fb / fc;
+                    p = s * (2 * m * q * (q - r) - (b - a) * (r - 1));
+                    q = (q - 1) * (r - 1) * (s - 1);
+                }
+                if (p > 0) q = -q;
+                p = Math.abs(p);
+                if (2 * p < Math.min(3 * m * q - Math.abs(tolerance * q), Math.abs(e * q))) {
+                    e = d;
+                    d = p / q;
+                } else {
+                    d = e = m;
+                }
+            } else {
+                d = e = m;
+            }
+            a = b;
+            fa = fb;
+            b += Math.abs(d) > tolerance ? d : Math.copySign(tolerance, m);
+            fb = eval(f, values, b);
+        }
+        return Math.abs(fb) <= limit ? b : Double.NaN;
+    }
+
+    private static boolean brackets(double fa, double fb) {
+        return (fa <= 0 && fb >= 0) || (fa >= 0 && fb <= 0);
+    }
+
+    private double eval(Expression expression, double[] values, double x) {
+        values[variable] = x;
+        return expression.evaluate(values);
+    }
+
+    private static void checkInterrupted(Thread caller) {
+        if (caller.isInterrupted()) throw new CancellationException("Solve cancelled");
+    }
+
+    @SuppressWarnings("serial")
+    private final class IntervalTask extends RecursiveAction {
+        private final double a, b;
+        private final int intervals, from, to, grain;
+        private final double[] found;
+        private final Thread caller; // polled for cancellation from the pool threads
+
+        IntervalTask(double a, double b, int intervals, int from, int to, int grain, double[] found, Thread caller) {
+            this.a = a;
+            this.b = b;
+            this.intervals = intervals;
+            this.from = from;
+            this.to = to;
+            this.grain = grain;
+            this.found = found;
+            this.caller = caller;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from <= grain) {
+                double[] values = bindings.clone();
+                for (int i = from; i < to; i++) {
+                    checkInterrupted(caller);
+                    double lo = a + (b - a) * i / intervals;
+                    double hi = i == intervals - 1 ? b : a + (b - a) * (i + 1) / intervals;
+                    searchInterval(values, lo, hi, found, i * 2);
+                }
+                return;
+            }
+            int mid = (from + to) >>> 1;
+            invokeAll(new IntervalTask(a, b, intervals, from, mid, grain, found, caller),
+                    new IntervalTask(a, b, intervals, mid, to, grain, found, caller));
+        }
+    }
+}
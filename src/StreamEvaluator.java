@@ -0,0 +1,173 @@
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+// Headless evaluation of one expression per line. Lines are grouped into
+// batches that are evaluated on a worker pool; results are written back in
+// input order as "expr = result" or "expr = error: message".
+public final class StreamEvaluator implements AutoCloseable {
+    private static final int BATCH_LINES = 4096;
+    private static final int BATCH_BYTES = 256 * 1024;
+    private static final long MAP_SEGMENT = 64L * 1024 * 1024;
+    // Only read during compilation, so one table is shared by all workers
+    private static final SymbolTable CONSTANTS = SymbolTable.standard();
+
+    private final ExecutorService workers;
+    private final int maxInFlight;
+    private final OutputStream out;
+    private final ExpressionCache cache;
+    private final ArrayDeque<Future<byte[]>> pending = new ArrayDeque<>();
+
+    public StreamEvaluator(int threads, OutputStream out) {
+        this.workers = Executors.newFixedThreadPool(threads, r -> {
+            Thread t = new Thread(r, "evaluator");
+            t.setDaemon(true);
+            return t;
+        });
+        this.maxInFlight = threads * 4;
+        this.out = out;
+        this.cache = new ExpressionCache(ExpressionCache.DEFAULT_CAPACITY,
+                text -> Expression.compile(text, CONSTANTS, false)); // lines are mostly evaluated once
+    }
+
+    public void evaluate(InputStream in) throws IOException {
+        BufferedReader reader = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8), 1 << 16);
+        List<String> batch = new ArrayList<>(BATCH_LINES);
+        String line;
+        while ((line = reader.readLine()) != null) {
+            batch.add(line);
+            if (batch.size() == BATCH_LINES) {
+                List<String> lines = batch;
+                submit(() -> evaluateLines(lines));
+                batch = new ArrayList<>(BATCH_LINES);
+            }
+        }
+        if (!batch.isEmpty()) {
+            List<String> lines = batch;
+            submit(() -> evaluateLines(lines));
+        }
+        drain(0);
+    }
+
+    // Maps the file in segments and hands workers byte ranges ending on line boundaries
+    public void evaluate(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long size = channel.size();
+            long position = 0;
+            while (position < size) {
+                long length = Math.min(MAP_SEGMENT, size - position);
+                MappedByteBuffer segment = channel.map(FileChannel.MapMode.READ_ONLY, position, length);
+                int end = (int) length;
+                if (position + length < size) {
+                    // Stop after the last complete line; the remainder starts the next segment
+                    while (end > 0 && segment.get(end - 1) != '\n') end--;
+                    if (end == 0) throw new IOException("Line longer than " + MAP_SEGMENT + " bytes");
+                }
+                int start = 0;
+                while (start < end) {
+                    int stop = Math.min(end, start + BATCH_BYTES);
+                    while (stop < end && segment.get(stop - 1) != '\n') stop++;
+                    int from = start, to = stop;
+                    submit(() -> evaluateBytes(segment, from, to));
+                    start = stop;
+                }
+                position += end;
+            }
+            drain(0);
+        }
+    }
+
+    public void flush() throws IOException {
+        drain(0);
+        out.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        flush();
+        workers.shutdown();
+    }
+
+    private void submit(Callable<byte[]> task) throws IOException {
+        pending.add(workers.submit(task));
+        drain(maxInFlight);
+    }
+
+    // Writes completed batches in submission order until at most limit remain
+    private void drain(int limit) throws IOException {
+        while (pending.size() > limit) {
+            try {
+                out.write(pending.poll().get());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while evaluating", e);
+            } catch (ExecutionException e) {
+                throw new IOException("Evaluation failed", e.getCause());
+            }
+        }
+    }
+
+    private byte[] evaluateBytes(MappedByteBuffer segment, int from, int to) {
+        byte[] bytes = new byte[to - from];
+        segment.get(from, bytes);
+        StringBuilder sb = new StringBuilder(bytes.length * 2);
+        int lineStart = 0;
+        for (int i = 0; i <= bytes.length; i++) {
+            if (i == bytes.length || bytes[i] == '\n') {
+                int lineEnd = i;
+                if (lineEnd > lineStart && bytes[lineEnd - 1] == '\r') lineEnd--;
+                if (i < bytes.length || lineEnd > lineStart) {
+                    appendResult(sb, new String(bytes, lineStart, lineEnd - lineStart, StandardCharsets.UTF_8));
+                }
+                lineStart = i + 1;
+            }
+        }
+        return sb.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    private byte[] evaluateLines(List<String> lines) {
+        StringBuilder sb = new StringBuilder(lines.size() * 32);
+        for (String line : lines) {
+            appendResult(sb, line);
+        }
+        return sb.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    private void appendResult(StringBuilder sb, String line) {
+        String input = line.trim();
+        if (input.isEmpty()) return;
+        sb.append(input).append(" = ");
+        try {
+            Expression expression = cache.get(input);
+            long start = Metrics.start();
+            double result = expression.evaluate();
+            Metrics.recordEvaluation(input, start);
+            if (!Double.isFinite(result)) Metrics.failed(Metrics.Stage.EVALUATE);
+            if (Double.isInfinite(result)) {
+                sb.append("error: Result is too large");
+            } else if (Double.isNaN(result)) {
+                sb.append("error: Invalid calculation");
+            } else {
+                sb.append(result);
+            }
+        } catch (RuntimeException e) {
+            sb.append("error: ").append(e.getMessage());
+        }
+        sb.append('\n');
+    }
+}
@@ -0,0 +1,305 @@
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+// Count, mean, variance, extremes and quantiles of a stream of numbers in
+// one pass and fixed memory. Mean and variance use Welford's update, and
+// partial results merge with Chan's formula, so a file can be summarized
+// in chunks on several threads and the chunks combined; quantiles come
+// from a TDigest.
+//
+// read() takes one column of a text file: fields are separated by commas,
+// semicolons, tabs or spaces, and lines whose field is not a number (a
+// header, say) are counted as skipped. The file is memory-mapped in
+// chunks that start on line boundaries and are summarized in parallel,
+// so neither the file nor its numbers ever pass through the heap.
+public final class StreamingStatistics {
+    private static final long CHUNK = 64L * 1024 * 1024;
+    private static final int PROBE = 4096; // bytes read at a time looking for a chunk's first line
+    private static final int WINDOW = 64 * 1024;
+    private static final double[] QUANTILES = {0.01, 0.05, 0.25, 0.5, 0.75, 0.95, 0.99};
+
+    private long count;
+    private double mean;
+    private double m2; // sum of squared differences from the mean
+    private long skipped;
+    private final TDigest digest = new TDigest();
+
+    public void add(double x) {
+        count++;
+        double delta = x - mean;
+        mean += delta / count;
+        m2 += delta * (x - mean);
+        digest.add(x);
+    }
+
+    public void merge(StreamingStatistics other) {
+        skipped += other.skipped;
+        if (other.count == 0) return;
+        long n = count + other.count;
+        double delta = other.mean - mean;
+        mean += delta * ((double) other.count / n);
+        m2 += other.m2 + delta * delta * ((double) count / n * other.count);
+        count = n;
+        digest.merge(other.digest);
+    }
+
+    public long count() {
+        return count;
+    }
+
+    public long skipped() {
+        return skipped;
+    }
+
+    public double mean() {
+        return count == 0 ? Double.NaN : mean;
+    }
+
+    // Sample variance
+    public double variance() {
+        return count < 2 ? Double.NaN : m2 / (count - 1);
+    }
+
+    public double standardDeviation() {
+        return Math.sqrt(variance());
+    }
+
+    public double min() {
+        return digest.min();
+    }
+
+    public double max() {
+        return digest.max();
+    }
+
+    public double quantile(double q) {
+        return digest.quantile(q);
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        sb.append("count     ").append(count);
+        if (skipped > 0) sb.append(" (").append(skipped).append(" lines skipped)");
+        sb.append("\nmean      ").append(mean());
+        sb.append("\nstd dev   ").append(standardDeviation());
+        sb.append("\nmin       ").append(min());
+        sb.append("\nmax       ").append(max());
+        for (double q : QUANTILES) {
+            String label = "p" + Math.round(q * 100);
+            sb.append('\n').append(label).append(" ".repeat(10 - label.length())).append(quantile(q));
+        }
+        return sb.append('\n').toString();
+    }
+
+    // Summarizes column (from 0) of every line of path
+    public static StreamingStatistics read(Path path, int column) throws IOException {
+        if (column < 0) throw new IllegalArgumentException("Invalid column: " + column);
+        Thread caller = Thread.currentThread();
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            long[] bounds = chunkBounds(channel);
+            if (bounds.length > 2 && ForkJoinPool.getCommonPoolParallelism() > 1) {
+                try {
+                    ChunkTask all = new ChunkTask(channel, bounds, 0, bounds.length - 1, column, caller);
+                    return ForkJoinPool.commonPool().invoke(all);
+                } catch (UncheckedIOException e) {
+                    throw e.getCause();
+                }
+            }
+            StreamingStatistics stats = new StreamingStatistics();
+            for (int i = 0; i + 1 < bounds.length; i++) {
+                stats.scan(channel.map(FileChannel.MapMode.READ_ONLY, bounds[i], bounds[i + 1] - bounds[i]), column, caller);
+            }
+            return stats;
+        }
+    }
+
+    // Chunk starts: about every CHUNK bytes, moved forward to the start of a line
+    private static long[] chunkBounds(FileChannel channel) throws IOException {
+        long size = channel.size();
+        int chunks = (int) Math.max(1, (size + CHUNK - 1) / CHUNK);
+        long[] bounds = new long[chunks + 1];
+        ByteBuffer probe = ByteBuffer.allocate(PROBE);
+        for (int i = 1; i < chunks; i++) {
+            long position = Math.max(i * CHUNK, bounds[i - 1]);
+            bounds[i] = size;
+            search:
+            while (position < size) {
+                probe.clear();
+                int read = channel.read(probe, position);
+                if (read <= 0) break;
+                for (int j = 0; j < read; j++) {
+                    if (probe.get(j) == '\n') {
+                        bounds[i] = position + j + 1;
+                        break search;
+                    }
+                }
+                position += read;
+            }
+            if (bounds[i] - bounds[i - 1] > Integer.MAX_VALUE) throw new IOException("Line longer than 2 GB");
+        }
+        bounds[chunks] = size;
+        if (size - bounds[chunks - 1] > Integer.MAX_VALUE) throw new IOException("Line longer than 2 GB");
+        return bounds;
+    }
+
+    // Copies the chunk through a small heap window, which is much faster to
+    // scan byte by byte than the mapping itself
+    private void scan(MappedByteBuffer chunk, int column, Thread caller) {
+        byte[] window = new byte[WINDOW];
+        int size = chunk.limit();
+        int kept = 0; // bytes of an unfinished line at the start of window
+        for (int position = 0; position < size; ) {
+            if (kept == window.length) window = Arrays.copyOf(window, window.length * 2);
+            int read = Math.min(window.length - kept, size - position);
+            chunk.get(position, window, kept, read);
+            position += read;
+            int end = kept + read;
+            int lines = position == size ? end : lastLine(window, end);
+            scanLines(window, lines, column);
+            kept = end - lines;
+            System.arraycopy(window, lines, window, 0, kept);
+            if (caller.isInterrupted()) throw new CancellationException("Statistics cancelled");
+        }
+        if (kept > 0) scanLines(window, kept, column);
+    }
+
+    // Start of the last, unfinished line in window[0, end)
+    private static int lastLine(byte[] window, int end) {
+        int i = end;
+        while (i > 0 && window[i - 1] != '\n') i--;
+        return i;
+    }
+
+    private void scanLines(byte[] text, int end, int column) {
+        for (int start = 0; start < end; ) {
+            int stop = start;
+            while (stop < end && text[stop] != '\n') stop++;
+            int from = skipSpace(text, start, stop);
+            if (from < stop) {
+                for (int f = 0; f < column && from < stop; f++) {
+                    while (from < stop && !isSeparator(text[from])) from++;
+                    from = skipSpace(text, from, stop);
+                    if (from < stop && (text[from] == ',' || text[from] == ';')) from = skipSpace(text, from + 1, stop);
+                }
+                int to = from;
+                while (to < stop && !isSeparator(text[to])) to++;
+                double x = parseNumber(text, from, to);
+                if (Double.isNaN(x)) {
+                    skipped++;
+                } else {
+                    add(x);
+                }
+            }
+            start = stop + 1;
+        }
+    }
+
+    private static int skipSpace(byte[] text, int from, int to) {
+        while (from < to && (text[from] == ' ' || text[from] == '\t' || text[from] == '\r')) from++;
+        return from;
+    }
+
+    private static boolean isSeparator(byte b) {
+        return b == ',' || b == ';' || b == ' ' || b == '\t' || b == '\r';
+    }
+
+    // Like Lexer.parseNumber, plus a sign and an exponent; NaN if [from, to) is not a number
+    static double parseNumber(byte[] text, int from, int to) {
+        int i = from;
+        boolean negative = i < to && text[i] == '-';
+        if (i < to && (text[i] == '-' || text[i] == '+')) i++;
+        long mantissa = 0;
+        int digits = 0;
+        int exponent = 0;
+        boolean point = false, any = false, exact = true;
+        for (; i < to; i++) {
+            byte c = text[i];
+            if (c == '.') {
+                if (point) return Double.NaN;
+                point = true;
+                continue;
+            }
+            if (c == 'e' || c == 'E') break;
+            if (c < '0' || c > '9') return Double.NaN;
+            any = true;
+            if (digits < 18) {
+                mantissa = mantissa * 10 + (c - '0');
+                if (mantissa != 0) digits++;
+                if (point) exponent--;
+            } else {
+                if (c != '0') exact = false;
+                if (!point) exponent++;
+            }
+        }
+        if (!any) return Double.NaN;
+        if (i < to) {
+            i++;
+            boolean negativeExponent = i < to && text[i] == '-';
+            if (i < to && (text[i] == '-' || text[i] == '+')) i++;
+            if (i == to) return Double.NaN;
+            int e = 0;
+            for (; i < to; i++) {
+                byte c = text[i];
+                if (c < '0' || c > '9') return Double.NaN;
+                if (e < 100_000) e = e * 10 + (c - '0');
+            }
+            exponent += negativeExponent ? -e : e;
+        }
+        if (mantissa == 0) return negative ? -0.0 : 0.0;
+        if (exact && mantissa < 1L << 53 && exponent >= -22 && exponent <= 22) {
+            double value = exponent >= 0 ? mantissa * Lexer.POWERS_OF_TEN[exponent]
+                    : mantissa / Lexer.POWERS_OF_TEN[-exponent];
+            return negative ? -value : value;
+        }
+        return Double.parseDouble(new String(text, from, to - from, StandardCharsets.ISO_8859_1));
+    }
+
+    // Summarizes chunks [from, to), splitting the range while it has more than one
+    @SuppressWarnings("serial")
+    private static final class ChunkTask extends RecursiveTask<StreamingStatistics> {
+        private final FileChannel channel;
+        private final long[] bounds;
+        private final int from, to, column;
+        private final Thread caller; // polled for cancellation from the pool threads
+
+        ChunkTask(FileChannel channel, long[] bounds, int from, int to, int column, Thread caller) {
+            this.channel = channel;
+            this.bounds = bounds;
+            this.from = from;
+            this.to = to;
+            this.column = column;
+            this.caller = caller;
+        }
+
+        @Override
+        protected StreamingStatistics compute() {
+            if (to - from > 1) {
+                int mid = (from + to) >>> 1;
+                ChunkTask right = new ChunkTask(channel, bounds, mid, to, column, caller);
+                right.fork();
+                StreamingStatistics left = new ChunkTask(channel, bounds, from, mid, column, caller).compute();
+                left.merge(right.join());
+                return left;
+            }
+            StreamingStatistics stats = new StreamingStatistics();
+            try {
+                stats.scan(channel.map(FileChannel.MapMode.READ_ONLY, bounds[from], bounds[to] - bounds[from]),
+                        column, caller);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            return stats;
+        }
+    }
+}
@@ -0,0 +1,268 @@
+import java.util.Arrays;
+
+// Names known to the compiler. Named constants are folded into the program
+// at compile time; variables get an integer slot in a primitive double[]
+// store, so reading one during evaluation is a single array load. Functions
+// defined here (see Definitions) are inlined into every program that calls
+// them, so a call costs nothing at evaluation time.
+public final class SymbolTable {
+    // Every name the compiler resolves, with its slot or -1 for a constant.
+    // Tables hold a handful of names, so lookups are a linear scan that can
+    // match a range of the input without cutting it out as a String.
+    private String[] symbols = new String[8];
+    private int[] symbolSlots = new int[8];
+    private double[] symbolValues = new double[8];
+    private int symbolCount;
+
+    private String[] names = new String[4];
+    private double[] values = new double[4];
+    private boolean[] defined = new boolean[4];
+    private int size;
+
+    private String[] functionNames = new String[4];
+    private int[] functionParameters = new int[4];
+    private Expression[] functionBodies = new Expression[4];
+    private int functionCount;
+    private int parameters; // slots taken by parameters; see withParameters
+
+    // Table with the calculator's built-in constants
+    public static SymbolTable standard() {
+        SymbolTable table = new SymbolTable();
+        table.defineConstant("π", Math.PI);
+        table.defineConstant("pi", Math.PI);
+        table.defineConstant("e", Math.E);
+        return table;
+    }
+
+    public void defineConstant(String name, double value) {
+        int symbol = find(name, 0, name.length());
+        if (symbol >= 0 && symbolSlots[symbol] >= 0) throw new IllegalArgumentException(name + " is already a variable");
+        define(symbol, name, -1, value);
+    }
+
+    // Returns the slot for name, creating an undefined variable if needed.
+    // A variable shadows a built-in constant of the same name.
+    public int variable(String name) {
+        int symbol = find(name, 0, name.length());
+        if (symbol >= 0 && symbolSlots[symbol] >= 0) return symbolSlots[symbol];
+        int slot = newSlot(name);
+        define(symbol, name, slot, 0);
+        return slot;
+    }
+
+    private int newSlot(String name) {
+        if (size == names.length) {
+            names = Arrays.copyOf(names, size * 2);
+            values = Arrays.copyOf(values, size * 2);
+            defined = Arrays.copyOf(defined, size * 2);
+        }
+        names[size] = name;
+        return size++;
+    }
+
+    // Makes alias resolve to the same slot as name
+    public void alias(String alias, String name) {
+        int slot = variable(name);
+        define(find(alias, 0, alias.length()), alias, slot, 0);
+    }
+
+    private void define(int symbol, String name, int slot, double value) {
+        if (symbol < 0) {
+            if (symbolCount == symbols.length) {
+                symbols = Arrays.copyOf(symbols, symbolCount * 2);
+                symbolSlots = Arrays.copyOf(symbolSlots, symbolCount * 2);
+                symbolValues = Arrays.copyOf(symbolValues, symbolCount * 2);
+            }
+            symbol = symbolCount++;
+            symbols[symbol] = name;
+        }
+        symbolSlots[symbol] = slot;
+        symbolValues[symbol] = value;
+    }
+
+    // Defines or replaces the function name, whose body was compiled against
+    // withParameters(...) with the given number of parameters. Programs
+    // compiled earlier keep the body they inlined.
+    public void defineFunction(String name, int parameters, Expression body) {
+        int function = findFunction(name, 0, name.length());
+        if (function < 0) {
+            if (functionCount == functionNames.length) {
+                functionNames = Arrays.copyOf(functionNames, functionCount * 2);
+                functionParameters = Arrays.copyOf(functionParameters, functionCount * 2);
+                functionBodies = Arrays.copyOf(functionBodies, functionCount * 2);
+            }
+            function = functionCount++;
+            functionNames[function] = name;
+        }
+        functionParameters[function] = parameters;
+        functionBodies[function] = body;
+    }
+
+    // Table for compiling a function body: the parameters take slots 0..n-1
+    // and shadow any other meaning of their names, and slot s of this table
+    // becomes slot n + s. Bodies are compiled against such a table over the
+    // table they are defined in.
+    public SymbolTable withParameters(String... parameters) {
+        SymbolTable table = new SymbolTable();
+        for (String parameter : parameters) {
+            if (table.find(parameter, 0, parameter.length()) >= 0) {
+                throw new IllegalArgumentException("Duplicate parameter: " + parameter);
+            }
+            table.variable(parameter);
+        }
+        for (int slot = 0; slot < size; slot++) table.newSlot(names[slot]);
+        for (int i = 0; i < symbolCount; i++) {
+            // Symbols are unique here, so a match can only be a parameter
+            if (table.find(symbols[i], 0, symbols[i].length()) >= 0) continue;
+            int slot = symbolSlots[i] < 0 ? -1 : symbolSlots[i] + parameters.length;
+            table.define(-1, symbols[i], slot, symbolValues[i]);
+        }
+        table.functionNames = functionNames.clone();
+        table.functionParameters = functionParameters.clone();
+        table.functionBodies = functionBodies.clone();
+        table.functionCount = functionCount;
+        table.parameters = parameters.length + this.parameters;
+        return table;
+    }
+
+    // A copy with the same slots that later changes to this table do not
+    // show in, for a worker thread to compile against
+    public SymbolTable copy() {
+        SymbolTable table = new SymbolTable();
+        table.symbols = symbols.clone();
+        table.symbolSlots = symbolSlots.clone();
+        table.symbolValues = symbolValues.clone();
+        table.symbolCount = symbolCount;
+        table.names = names.clone();
+        table.values = values.clone();
+        table.defined = defined.clone();
+        table.size = size;
+        table.functionNames = functionNames.clone();
+        table.functionParameters = functionParameters.clone();
+        table.functionBodies = functionBodies.clone();
+        table.functionCount = functionCount;
+        table.parameters = parameters;
+        return table;
+    }
+
+    // A copy in which sin, cos and tan take degrees and the inverse functions
+    // return them, for input entered in degree mode. The conversions are
+    // inlined like any function defined here, so they cost one multiply.
+    public SymbolTable inDegrees() {
+        SymbolTable table = copy();
+        for (int i = 0; i < Degrees.NAMES.length; i++) {
+            String name = Degrees.NAMES[i];
+            table.defineFunction(name, FunctionRegistry.lookup(name).arity(), Degrees.BODIES[i]);
+        }
+        return table;
+    }
+
+    // Compiled when degree mode is first used
+    private static final class Degrees {
+        static final String[] NAMES = {"sin", "cos", "tan", "asin", "acos", "atan", "atan2"};
+        static final Expression[] BODIES = new Expression[NAMES.length];
+
+        static {
+            SymbolTable radians = standard();
+            for (int i = 0; i < NAMES.length; i++) {
+                String name = NAMES[i];
+                boolean inverse = name.startsWith("a");
+                String[] parameters = name.equals("atan2") ? new String[]{"y", "x"} : new String[]{"x"};
+                String body = inverse ? name + "(" + String.join(", ", parameters) + ") * (180 / π)"
+                        : name + "(x * (π / 180))";
+                BODIES[i] = Expression.compile(body, radians.withParameters(parameters));
+            }
+        }
+    }
+
+    public void set(int slot, double value) {
+        values[slot] = value;
+        defined[slot] = true;
+    }
+
+    public double get(int slot) {
+        return values[slot];
+    }
+
+    public boolean isDefined(int slot) {
+        return defined[slot];
+    }
+
+    public void undefine(int slot) {
+        values[slot] = 0;
+        defined[slot] = false;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public String name(int slot) {
+        return names[slot];
+    }
+
+    // Live value store indexed by slot, passed straight to Expression.evaluate
+    public double[] values() {
+        return values;
+    }
+
+    // Compile-time lookups
+
+    // Index of the symbol spelled by text[start, end), or -1
+    int find(CharSequence text, int start, int end) {
+        int length = end - start;
+        for (int i = 0; i < symbolCount; i++) {
+            String symbol = symbols[i];
+            if (symbol.length() == length && matches(symbol, text, start)) return i;
+        }
+        return -1;
+    }
+
+    private static boolean matches(String symbol, CharSequence text, int start) {
+        for (int i = 0; i < symbol.length(); i++) {
+            if (symbol.charAt(i) != text.charAt(start + i)) return false;
+        }
+        return true;
+    }
+
+    // Index of the function spelled by text[start, end), or -1
+    int findFunction(CharSequence text, int start, int end) {
+        int length = end - start;
+        for (int i = 0; i < functionCount; i++) {
+            String name = functionNames[i];
+            if (name.length() == length && matches(name, text, start)) return i;
+        }
+        return -1;
+    }
+
+    String functionName(int function) {
+        return functionNames[function];
+    }
+
+    int functionParameters(int function) {
+        return functionParameters[function];
+    }
+
+    Expression functionBody(int function) {
+        return functionBodies[function];
+    }
+
+    // Slots before those of the table a function is defined in; nonzero only
+    // in the tables withParameters returns
+    int parameterCount() {
+        return parameters;
+    }
+
+    // Slot of a found symbol, or -1 if it is a constant
+    int symbolSlot(int symbol) {
+        return symbolSlots[symbol];
+    }
+
+    double symbolValue(int symbol) {
+        return symbolValues[symbol];
+    }
+
+    String[] names() {
+        return Arrays.copyOf(names, size);
+    }
+}
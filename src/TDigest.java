@@ -0,0 +1,154 @@
+import java.util.Arrays;
+
+// Approximate quantiles of a stream in fixed memory: a merging t-digest
+// (Dunning & Ertl). Values collect in a buffer; when it fills it is sorted
+// and merged with the centroids, which stay sorted by mean. The k1 scale
+// function limits how much weight a centroid may hold by where it sits, so
+// centroids near the tails stay small and the error at quantile q shrinks
+// with q(1 - q). Digests built over parts of a stream merge into one.
+public final class TDigest {
+    public static final double DEFAULT_COMPRESSION = 200;
+    private static final int BUFFER_FACTOR = 10; // buffered values per unit of compression
+
+    private final double compression;
+    private double[] means, weights; // centroids, sorted by mean
+    private int centroids;
+    private double total; // weight of the centroids
+    private double[] mergedMeans, mergedWeights; // the next centroids while merging; swapped in after
+    private final double[] buffer;
+    private int buffered;
+    private double min = Double.POSITIVE_INFINITY, max = Double.NEGATIVE_INFINITY;
+
+    public TDigest() {
+        this(DEFAULT_COMPRESSION);
+    }
+
+    public TDigest(double compression) {
+        if (!(compression >= 10)) throw new IllegalArgumentException("Compression must be at least 10: " + compression);
+        this.compression = compression;
+        // The scale function spans compression / 2 and every two neighbours
+        // cover at least one unit of it, so merging leaves at most compression + 2 centroids
+        int capacity = (int) compression + 8;
+        means = new double[capacity];
+        weights = new double[capacity];
+        mergedMeans = new double[capacity];
+        mergedWeights = new double[capacity];
+        buffer = new double[(int) compression * BUFFER_FACTOR];
+    }
+
+    public void add(double x) {
+        if (Double.isNaN(x)) throw new IllegalArgumentException("Cannot add NaN");
+        if (x < min) min = x;
+        if (x > max) max = x;
+        buffer[buffered++] = x;
+        if (buffered == buffer.length) flush();
+    }
+
+    public void merge(TDigest other) {
+        other.flush();
+        flush();
+        if (other.centroids == 0) return;
+        min = Math.min(min, other.min);
+        max = Math.max(max, other.max);
+        merge(other.means, other.weights, other.centroids, other.total);
+    }
+
+    public long size() {
+        return (long) (total + buffered);
+    }
+
+    // The value below which a fraction q of the values fall, interpolated
+    // between centroid means and out to the extremes at either end
+    public double quantile(double q) {
+        if (!(q >= 0 && q <= 1)) throw new IllegalArgumentException("Quantile must be in [0, 1]: " + q);
+        flush();
+        if (centroids == 0) return Double.NaN;
+        if (q == 0) return min;
+        if (q == 1) return max;
+        if (centroids == 1) return means[0];
+        double index = q * total;
+        // Each centroid's weight is centred on its mean
+        double first = weights[0] / 2;
+        if (index < first) return min + (means[0] - min) * (index / first);
+        double soFar = first;
+        for (int i = 0; i < centroids - 1; i++) {
+            double step = (weights[i] + weights[i + 1]) / 2;
+            if (soFar + step > index) {
+                return means[i] + (means[i + 1] - means[i]) * ((index - soFar) / step);
+            }
+            soFar += step;
+        }
+        double last = weights[centroids - 1] / 2;
+        return means[centroids - 1] + (max - means[centroids - 1]) * Math.min(1, (index - soFar) / last);
+    }
+
+    public double min() {
+        return size() == 0 ? Double.NaN : min;
+    }
+
+    public double max() {
+        return size() == 0 ? Double.NaN : max;
+    }
+
+    private void flush() {
+        if (buffered == 0) return;
+        Arrays.sort(buffer, 0, buffered);
+        int count = buffered;
+        buffered = 0;
+        merge(buffer, null, count, count);
+    }
+
+    // Merges sorted centroids (all of weight 1 when weights is null) with
+    // these into mergedMeans and mergedWeights, combining neighbours while
+    // the result stays within one unit of the scale function
+    private void merge(double[] otherMeans, double[] otherWeights, int count, double weight) {
+        double newTotal = total + weight;
+        int out = 0;
+        double mean = 0, w = 0; // centroid being built
+        double soFar = 0; // weight of the centroids already written
+        double limit = newTotal * quantileOfScale(scale(0) + 1);
+        for (int i = 0, j = 0; i < centroids || j < count; ) {
+            double m, wi;
+            if (j == count || (i < centroids && means[i] <= otherMeans[j])) {
+                m = means[i];
+                wi = weights[i++];
+            } else {
+                m = otherMeans[j];
+                wi = otherWeights == null ? 1 : otherWeights[j];
+                j++;
+            }
+            if (w == 0 || soFar + w + wi <= limit) {
+                w += wi;
+                mean += (m - mean) * (wi / w);
+            } else {
+                mergedMeans[out] = mean;
+                mergedWeights[out++] = w;
+                soFar += w;
+                limit = newTotal * quantileOfScale(scale(soFar / newTotal) + 1);
+                mean = m;
+                w = wi;
+            }
+        }
+        mergedMeans[out] = mean;
+        mergedWeights[out++] = w;
+
+        double[] t = means;
+        means = mergedMeans;
+        mergedMeans = t;
+        t = weights;
+        weights = mergedWeights;
+        mergedWeights = t;
+        centroids = out;
+        total = newTotal;
+    }
+
+    // k1: k(q) = compression / 2π * asin(2q - 1), steep at the tails
+    private double scale(double q) {
+        return compression / (2 * Math.PI) * Math.asin(2 * q - 1);
+    }
+
+    private double quantileOfScale(double k) {
+        if (k >= compression / 4) return 1;
+        return (Math.sin(k * (2 * Math.PI) / compression) + 1) / 2;
+    }
+}
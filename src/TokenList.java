@@ -0,0 +1,147 @@
+import java.util.Arrays;
+
+// The tokens of an input that changes a little at a time, like the input
+// field while someone types. An edit relexes from the first token it
+// touches only until the new tokens line up with old ones again; the tokens
+// after that are kept and shifted by the change in length. The lexer looks
+// only forward, so once a token starts where an old one did, past the
+// edit, the rest cannot have changed. A Lexer over a copy replays the
+// tokens for the compiler without scanning the text again.
+final class TokenList {
+    private String text = "";
+    private int count;
+    private int[] starts, ends;
+    private byte[] types;
+    private double[] numbers;
+
+    // Tokens lexed by the current edit, before they are moved into place
+    private int[] newStarts = new int[16], newEnds = new int[16];
+    private byte[] newTypes = new byte[16];
+    private double[] newNumbers = new double[16];
+    private final Lexer lexer = new Lexer("");
+
+    TokenList() {
+        this(new int[16], new int[16], new byte[16], new double[16]);
+    }
+
+    private TokenList(int[] starts, int[] ends, byte[] types, double[] numbers) {
+        this.starts = starts;
+        this.ends = ends;
+        this.types = types;
+        this.numbers = numbers;
+    }
+
+    // text is the whole input after replacing removed characters at offset with inserted ones
+    void edit(String text, int offset, int removed, int inserted) {
+        int delta = inserted - removed;
+        if (text.length() != this.text.length() + delta || offset < 0 || offset + removed > this.text.length()) {
+            throw new IllegalArgumentException("Edit does not match the text");
+        }
+        // A token ending right at the edit may grow into it, as 12 does when 3 is typed after it
+        int first = firstEndingAtOrAfter(offset);
+        int from = first < count ? Math.min(starts[first], offset) : offset;
+        int reuse = first; // old tokens from here on start past the edit
+        while (reuse < count && starts[reuse] < offset + removed) reuse++;
+
+        lexer.reset(text, from);
+        int added = 0;
+        int resync = count;
+        for (int type = lexer.next(); type != Lexer.END; type = lexer.next()) {
+            int start = lexer.start();
+            if (start >= offset + inserted) {
+                while (reuse < count && starts[reuse] + delta < start) reuse++;
+                if (reuse < count && starts[reuse] + delta == start) {
+                    resync = reuse;
+                    break;
+                }
+            }
+            if (added == newStarts.length) {
+                newStarts = Arrays.copyOf(newStarts, added * 2);
+                newEnds = Arrays.copyOf(newEnds, added * 2);
+                newTypes = Arrays.copyOf(newTypes, added * 2);
+                newNumbers = Arrays.copyOf(newNumbers, added * 2);
+            }
+            newStarts[added] = start;
+            newEnds[added] = lexer.end();
+            newTypes[added] = (byte) type;
+            newNumbers[added++] = type == Lexer.NUMBER ? lexer.number() : 0;
+        }
+
+        int tail = count - resync;
+        int size = first + added + tail;
+        if (size > starts.length) {
+            int capacity = Math.max(size, starts.length * 2);
+            starts = Arrays.copyOf(starts, capacity);
+            ends = Arrays.copyOf(ends, capacity);
+            types = Arrays.copyOf(types, capacity);
+            numbers = Arrays.copyOf(numbers, capacity);
+        }
+        System.arraycopy(starts, resync, starts, first + added, tail);
+        System.arraycopy(ends, resync, ends, first + added, tail);
+        System.arraycopy(types, resync, types, first + added, tail);
+        System.arraycopy(numbers, resync, numbers, first + added, tail);
+        if (delta != 0) {
+            for (int i = first + added; i < size; i++) {
+                starts[i] += delta;
+                ends[i] += delta;
+            }
+        }
+        System.arraycopy(newStarts, 0, starts, first, added);
+        System.arraycopy(newEnds, 0, ends, first, added);
+        System.arraycopy(newTypes, 0, types, first, added);
+        System.arraycopy(newNumbers, 0, numbers, first, added);
+        count = size;
+        this.text = text;
+    }
+
+    // Replaces the whole text
+    void set(String text) {
+        edit(text, 0, this.text.length(), text.length());
+    }
+
+    // A snapshot that later edits do not change, for another thread to read
+    TokenList copy() {
+        TokenList copy = new TokenList(Arrays.copyOf(starts, count), Arrays.copyOf(ends, count),
+                Arrays.copyOf(types, count), Arrays.copyOf(numbers, count));
+        copy.text = text;
+        copy.count = count;
+        return copy;
+    }
+
+    String text() {
+        return text;
+    }
+
+    int size() {
+        return count;
+    }
+
+    int start(int token) {
+        return starts[token];
+    }
+
+    int end(int token) {
+        return ends[token];
+    }
+
+    int type(int token) {
+        return types[token];
+    }
+
+    double number(int token) {
+        return numbers[token];
+    }
+
+    private int firstEndingAtOrAfter(int offset) {
+        int lo = 0, hi = count;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (ends[mid] < offset) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return lo;
+    }
+}